@@ -19,6 +19,13 @@
 
 package de.tsenger.animamea;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.smartcardio.ATR;
 import javax.smartcardio.Card;
 import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
@@ -29,6 +36,7 @@ import javax.smartcardio.TerminalFactory;
 
 import org.apache.log4j.Logger;
 
+import de.tsenger.animamea.iso7816.CardCommands;
 import de.tsenger.animamea.iso7816.SecureMessaging;
 import de.tsenger.animamea.iso7816.SecureMessagingException;
 import de.tsenger.animamea.tools.HexString;
@@ -40,9 +48,18 @@ import de.tsenger.animamea.tools.HexString;
 public class AmCardHandler {
 
 	private Card card = null;;
+	private CardTerminal terminal = null;
 	private CardChannel channel = null;
 	private SecureMessaging sm = null;
 	private boolean connected = false;
+
+	// Extended Length Unterstützung der Karte (Voreinstellung: unterstützt)
+	private boolean extendedLength = true;
+	private int maxCommandLength = 0xFFFF;
+	private int maxResponseLength = 0x10000;
+
+	private static final byte[] FID_ATR = new byte[] { (byte) 0x2F, (byte) 0x01 };
+	private static final byte[] FID_EFCardAccess = new byte[] { (byte) 0x01, (byte) 0x1C };
 	
 	static Logger logger = Logger.getLogger(AmCardHandler.class);
 
@@ -61,23 +78,6 @@ public class AmCardHandler {
 		
 		if (sm != null)	{ 
 			capdu = sm.wrap(capdu);
-			byte[] capdu_long = capdu.getBytes();
-			int len = capdu_long.length;
-			if(capdu_long.length > 261 && capdu_long[4] == 0 && capdu_long[5] == 0 && capdu_long[len-1] == 0 && capdu_long[len-2] == 0) {
-				System.out.println("caught a very long (encrypted) capdu");
-				System.out.println("shrinking Lc to 1 byte and Le to 1 byte...");
-				logger.debug("original C-APDU:\n"+ HexString.bufferToHex(capdu.getBytes()));
-				logger.debug("removing zeros in Lc:\n");
-				byte[] patchedBytes = new byte[capdu_long.length - 3];
-				for(int i=0;i<4;i++) {
-					patchedBytes[i] = capdu_long[i];
-				}
-				for(int i=4;i<patchedBytes.length;i++) {
-					patchedBytes[i] = capdu_long[i+2];
-				}
-				logger.debug("patched plain:\n"+ HexString.bufferToHex(patchedBytes));
-				capdu = new CommandAPDU(patchedBytes);
-			}
 			logger.debug("potected C-APDU:\n"+ HexString.bufferToHex(capdu.getBytes()));
 		}
 		
@@ -94,12 +94,277 @@ public class AmCardHandler {
 	}
 	
 
+	/**
+	 * Sendet die übergebene CommandAPDU an die konnektierte Karte und schreibt
+	 * die Daten der Antwort in den übergebenen OutputStream. Falls
+	 * SecureMessaging gesetzt ist, werden die Daten nach der MAC-Prüfung
+	 * blockweise entschlüsselt, ohne die Klartextdaten als Ganzes im Speicher
+	 * zu halten.
+	 * 
+	 * @param capdu Plain Command-APDU
+	 * @param data Stream für die Daten der Response-APDU
+	 * @return Statuswort der (plain) Response-APDU
+	 * @throws SecureMessagingException
+	 * @throws CardException
+	 * @throws IOException
+	 */
+	public int transceive(CommandAPDU capdu, OutputStream data) throws SecureMessagingException, CardException, IOException {
+
+		logger.debug("plain C-APDU:\n" + HexString.bufferToHex(capdu.getBytes()));
+
+		if (sm == null) {
+			ResponseAPDU resp = channel.transmit(capdu);
+			logger.debug("plain R-APDU:\n" + HexString.bufferToHex(resp.getBytes()));
+			data.write(resp.getData());
+			return resp.getSW();
+		}
+
+		capdu = sm.wrap(capdu);
+		logger.debug("potected C-APDU:\n"+ HexString.bufferToHex(capdu.getBytes()));
+
+		ResponseAPDU resp = channel.transmit(capdu);
+		logger.debug("potected R-APDU:\n"+ HexString.bufferToHex(resp.getBytes()));
+
+		int sw = sm.unwrap(ByteBuffer.wrap(resp.getBytes()), data);
+		logger.debug("plain SW: " + Integer.toHexString(sw));
+
+		return sw;
+	}
+
+	/**
+	 * Sendet die übergebenen CommandAPDUs direkt nacheinander an die
+	 * konnektierte Karte. Falls SecureMessaging gesetzt ist, werden alle APDUs
+	 * vor dem ersten Senden gemeinsam geschützt (@see
+	 * SecureMessaging#wrapBatch(List)) und die Antworten danach gemeinsam
+	 * entpackt. Antwortet die Karte ohne SM-Datenobjekte (SM-Fehler), werden
+	 * die restlichen APDUs nicht mehr gesendet.
+	 * 
+	 * @param capdus Plain Command-APDUs
+	 * @return plain Response-APDUs in gleicher Reihenfolge
+	 * @throws SecureMessagingException
+	 * @throws CardException
+	 */
+	public List<ResponseAPDU> transceive(List<CommandAPDU> capdus) throws SecureMessagingException, CardException {
+
+		if (sm == null) {
+			List<ResponseAPDU> responses = new ArrayList<ResponseAPDU>(capdus.size());
+			for (CommandAPDU capdu : capdus) {
+				responses.add(transceive(capdu));
+			}
+			return responses;
+		}
+
+		List<CommandAPDU> protectedCapdus = sm.wrapBatch(capdus);
+		List<ResponseAPDU> protectedResponses = new ArrayList<ResponseAPDU>(protectedCapdus.size());
+
+		for (int i = 0; i < protectedCapdus.size(); i++) {
+			logger.debug("plain C-APDU:\n" + HexString.bufferToHex(capdus.get(i).getBytes()));
+			CommandAPDU capdu = protectedCapdus.get(i);
+			logger.debug("potected C-APDU:\n"+ HexString.bufferToHex(capdu.getBytes()));
+
+			ResponseAPDU resp = channel.transmit(capdu);
+			logger.debug("potected R-APDU:\n"+ HexString.bufferToHex(resp.getBytes()));
+			protectedResponses.add(resp);
+
+			if (resp.getData().length == 0) break;
+		}
+
+		List<ResponseAPDU> responses = sm.unwrapBatch(protectedResponses);
+		for (ResponseAPDU resp : responses) {
+			logger.debug("plain R-APDU:\n" + HexString.bufferToHex(resp.getBytes()));
+		}
+
+		return responses;
+	}
+
 	/**
 	 * Aktiviert das SecureMessaging für alle nachfolgenden transceive-Aufrufe.
 	 * @param sm initialisiertes SecureMessaging-Objekt
 	 */
 	public void setSecureMessaging(SecureMessaging sm) {
 		this.sm = sm;
+		if (sm != null) {
+			sm.setExtendedLength(extendedLength);
+			sm.setMaxCommandLength(maxCommandLength);
+		}
+	}
+
+	/**
+	 * Ermittelt ob die Karte Extended Length APDUs unterstützt. Ausgewertet
+	 * werden der Reihe nach die Card Capabilities in den Historical Bytes des
+	 * ATR, die ExtendedLengthInfo (Tag 7F66) in EF.ATR/INFO und zuletzt ein
+	 * READ BINARY mit Extended Le auf EF.CardAccess. Muss vor dem Aufbau von
+	 * Secure Messaging aufgerufen werden, da die Dateien im MF gelesen werden.
+	 * 
+	 * @return <code>true</code> falls die Karte Extended Length unterstützt
+	 * @throws CardException
+	 * @throws SecureMessagingException
+	 */
+	public boolean detectExtendedLength() throws CardException, SecureMessagingException {
+		return detectExtendedLength(readEFATR());
+	}
+
+	/**
+	 * Liest EF.ATR/INFO aus dem MF
+	 * 
+	 * @return Inhalt von EF.ATR/INFO oder <code>null</code> falls die Karte
+	 *         die Datei nicht hat
+	 */
+	byte[] readEFATR() throws CardException, SecureMessagingException {
+		ResponseAPDU resp = transceive(CardCommands.selectEF(FID_ATR));
+		if (resp.getSW() != 0x9000) return null;
+		resp = transceive(CardCommands.readBinary(0, 0x100));
+		if (resp.getSW1() == 0x90 || resp.getSW() == 0x6282) return resp.getData();
+		return null;
+	}
+
+	/**
+	 * Wie {@link #detectExtendedLength()}, aber mit bereits gelesenem Inhalt
+	 * von EF.ATR/INFO
+	 * 
+	 * @param efATR
+	 *            Inhalt von EF.ATR/INFO oder <code>null</code>
+	 */
+	boolean detectExtendedLength(byte[] efATR) throws CardException, SecureMessagingException {
+
+		Boolean supported = null;
+
+		// Card Capabilities im ATR (ISO/IEC 7816-4, 8.1.1.2.7)
+		byte[] hist = new ATR(getATR()).getHistoricalBytes();
+		if (hist.length > 0 && hist[0] == (byte) 0x80) {
+			int i = 1;
+			while (i < hist.length) {
+				int tag = (hist[i] & 0xF0) >> 4;
+				int len = hist[i] & 0x0F;
+				if (tag == 0x7 && len == 3 && i + 3 < hist.length) {
+					if ((hist[i + 3] & 0x40) == 0x40) supported = Boolean.TRUE;
+					break;
+				}
+				i += 1 + len;
+			}
+		}
+
+		// ExtendedLengthInfo in EF.ATR/INFO
+		if (efATR != null) {
+			int[] info = parseExtendedLengthInfo(efATR);
+			if (info != null) {
+				maxCommandLength = info[0];
+				maxResponseLength = info[1];
+				supported = Boolean.valueOf(maxCommandLength > 261 || maxResponseLength > 258);
+			}
+		}
+
+		// Probe: READ BINARY mit Extended Le. Lehnt schon der Leser bzw. Treiber
+		// die Extended APDU ab, wird mit kurzen APDUs weitergearbeitet.
+		if (supported == null) {
+			try {
+				ResponseAPDU resp = transceive(CardCommands.selectEF(FID_EFCardAccess));
+				if (resp.getSW() == 0x9000) {
+					resp = transceive(CardCommands.readBinary(0, 0x10000));
+					supported = Boolean.valueOf(resp.getSW1() == 0x90 || resp.getSW() == 0x6282);
+				} else {
+					supported = Boolean.FALSE;
+				}
+			} catch (CardException e) {
+				logger.debug("Extended length probe failed: " + e.getMessage());
+				supported = Boolean.FALSE;
+			}
+		}
+
+		setExtendedLength(supported.booleanValue(), maxCommandLength, maxResponseLength);
+
+		logger.debug("Extended length supported: " + extendedLength + ", max. C-APDU: " + maxCommandLength + ", max. R-APDU: " + maxResponseLength);
+
+		return extendedLength;
+	}
+
+	/**
+	 * Sucht die ExtendedLengthInfo (7F66) in den BER-TLV Objekten aus EF.ATR/INFO
+	 * 
+	 * @return maximale Länge von C-APDU und R-APDU oder <code>null</code>
+	 */
+	private static int[] parseExtendedLengthInfo(byte[] data) {
+		int i = 0;
+		while (i < data.length) {
+			int tag = data[i++] & 0xFF;
+			if ((tag & 0x1F) == 0x1F) {
+				if (i >= data.length) return null;
+				tag = (tag << 8) | (data[i++] & 0xFF);
+			}
+			if (i >= data.length) return null;
+			int len = data[i++] & 0xFF;
+			if (len == 0x81) {
+				if (i >= data.length) return null;
+				len = data[i++] & 0xFF;
+			} else if (len == 0x82) {
+				if (i + 1 >= data.length) return null;
+				len = ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+				i += 2;
+			}
+			if (i + len > data.length) return null;
+
+			if (tag == 0x7F66) {
+				int[] info = new int[2];
+				int j = i, n = 0;
+				while (j + 1 < i + len && n < 2) {
+					int intLen = data[j + 1] & 0xFF;
+					if (data[j] != 0x02 || j + 2 + intLen > i + len) return null;
+					int value = 0;
+					for (int k = 0; k < intLen; k++) {
+						value = (value << 8) | (data[j + 2 + k] & 0xFF);
+					}
+					info[n++] = value;
+					j += 2 + intLen;
+				}
+				return (n == 2) ? info : null;
+			}
+			i += len;
+		}
+		return null;
+	}
+
+	/**
+	 * Übernimmt ein früher ermitteltes Ergebnis von
+	 * {@link #detectExtendedLength()}, z.B. aus dem {@link CardInfoCache}
+	 */
+	void setExtendedLength(boolean supported, int maxCommandLength, int maxResponseLength) {
+		extendedLength = supported;
+		this.maxCommandLength = supported ? maxCommandLength : 261;
+		this.maxResponseLength = supported ? maxResponseLength : 258;
+		if (sm != null) {
+			sm.setExtendedLength(extendedLength);
+			sm.setMaxCommandLength(this.maxCommandLength);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> falls die Karte Extended Length unterstützt
+	 */
+	public boolean isExtendedLengthSupported() {
+		return extendedLength;
+	}
+
+	int getMaxCommandLength() {
+		return maxCommandLength;
+	}
+
+	int getMaxResponseLength() {
+		return maxResponseLength;
+	}
+
+	/**
+	 * Liefert die maximale Anzahl Datenbytes die mit einem READ BINARY gelesen
+	 * werden sollten. Bei Secure Messaging wird der Overhead von DO87 (inkl.
+	 * Padding), DO99 und DO8E berücksichtigt.
+	 * 
+	 * @return maximale Anzahl Bytes pro READ BINARY
+	 */
+	public int getMaxReadLength() {
+		if (!extendedLength) return 0xDF; // 223 Byte passen mit SM in eine kurze R-APDU
+		// Tag + Länge (0x82) + Padding-Indikator + Padding, DO99, DO8E, SW
+		int max = maxResponseLength - (1 + 3 + 1 + 16) - 4 - 10 - 2;
+		if (max < 0xDF) return 0xDF;
+		return Math.min(max, 0xFFFF) & ~0x0F;
 	}
 
 	/**
@@ -119,7 +384,7 @@ public class AmCardHandler {
 		}
 
 		/* Terminal we are working on */
-		CardTerminal terminal = TerminalFactory.getDefault().terminals().list().get(index);
+		terminal = TerminalFactory.getDefault().terminals().list().get(index);
 
 		/* Is a card present? */
 		if (!terminal.isCardPresent()) {
@@ -144,4 +409,35 @@ public class AmCardHandler {
 		return card.getATR().getBytes();
 	}
 
+	/**
+	 * @return Name des Lesers mit dem die Verbindung besteht
+	 */
+	public String getTerminalName() {
+		return terminal.getName();
+	}
+
+	/**
+	 * @return <code>true</code> falls noch eine Karte im Leser steckt
+	 * @throws CardException
+	 */
+	public boolean isCardPresent() throws CardException {
+		return terminal.isCardPresent();
+	}
+
+	/**
+	 * Fragt mit dem PC/SC-Kommando GET DATA (FF CA 00 00 00) die UID der
+	 * kontaktlosen Karte beim Leser ab. Das Kommando wird immer ohne Secure
+	 * Messaging gesendet. Karten mit zufälliger UID liefern nach jedem
+	 * Einbringen ins Feld eine neue UID.
+	 * 
+	 * @return UID oder ein leeres Array, falls der Leser das Kommando nicht
+	 *         unterstützt
+	 * @throws CardException
+	 */
+	public byte[] getCardIdentifier() throws CardException {
+		ResponseAPDU resp = channel.transmit(new CommandAPDU(0xFF, 0xCA, 0x00, 0x00, 0x100));
+		if (resp.getSW() != 0x9000) return new byte[0];
+		return resp.getData();
+	}
+
 }
@@ -0,0 +1,106 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.apache.log4j.Logger;
+
+import de.tsenger.animamea.iso7816.SecureMessaging;
+import de.tsenger.animamea.iso7816.SecureMessagingException;
+import de.tsenger.animamea.tools.HexString;
+
+/**
+ * Asynchrones Gegenstück zum {@link AmCardHandler}: sendet APDUs über einen
+ * {@link AsyncCardTransport} und schützt sie bei gesetztem Secure Messaging.
+ * Pro Session darf immer nur eine APDU unterwegs sein, da der SSC
+ * fortlaufend ist. Die Protokolle in {@link AsyncProtocol} halten dies ein,
+ * indem sie die nächste APDU erst nach Erhalt der vorherigen Antwort senden.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public class AsyncCardHandler {
+
+	private final AsyncCardTransport transport;
+	private volatile SecureMessaging sm = null;
+
+	static Logger logger = Logger.getLogger(AsyncCardHandler.class);
+
+	/**
+	 * Konstruktor
+	 * 
+	 * @param transport
+	 *            Transport über den die APDUs gesendet werden
+	 */
+	public AsyncCardHandler(AsyncCardTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Sendet die übergebene CommandAPDU. Falls SecureMessaging gesetzt ist,
+	 * wird die APDU vor dem Senden SM-geschützt und die Antwort SM-befreit.
+	 * 
+	 * @param capdu
+	 *            Plain Command-APDU
+	 * @return CompletionStage mit der plain Response-APDU
+	 */
+	public CompletionStage<ResponseAPDU> transceive(CommandAPDU capdu) {
+
+		logger.debug("plain C-APDU:\n" + HexString.bufferToHex(capdu.getBytes()));
+
+		final SecureMessaging sm = this.sm;
+		if (sm == null) return transport.transmit(capdu);
+
+		CommandAPDU protectedCapdu;
+		try {
+			protectedCapdu = sm.wrap(capdu);
+		} catch (SecureMessagingException e) {
+			CompletableFuture<ResponseAPDU> failed = new CompletableFuture<ResponseAPDU>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		logger.debug("potected C-APDU:\n" + HexString.bufferToHex(protectedCapdu.getBytes()));
+
+		return transport.transmit(protectedCapdu).thenApply(resp -> {
+			logger.debug("potected R-APDU:\n" + HexString.bufferToHex(resp.getBytes()));
+			try {
+				return sm.unwrap(resp);
+			} catch (SecureMessagingException e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	/**
+	 * Aktiviert das SecureMessaging für alle nachfolgenden transceive-Aufrufe.
+	 * 
+	 * @param sm
+	 *            initialisiertes SecureMessaging-Objekt oder <code>null</code>
+	 */
+	public void setSecureMessaging(SecureMessaging sm) {
+		this.sm = sm;
+	}
+}
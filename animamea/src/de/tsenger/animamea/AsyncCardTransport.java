@@ -0,0 +1,48 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea;
+
+import java.util.concurrent.CompletionStage;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Asynchroner Transport für APDUs, z.B. zu einer Karte hinter einem
+ * entfernten Kartenleser-Relay. Die Implementierung darf beim Senden nicht
+ * blockieren; die Antwort wird über die zurückgegebene CompletionStage
+ * geliefert. Secure Messaging wird nicht vom Transport, sondern vom
+ * {@link AsyncCardHandler} behandelt.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public interface AsyncCardTransport {
+
+	/**
+	 * Sendet die APDU unverändert an die Karte
+	 * 
+	 * @param capdu
+	 *            Command-APDU
+	 * @return CompletionStage die mit der Response-APDU abgeschlossen wird,
+	 *         bzw. mit einer Exception falls die Übertragung fehlschlägt
+	 */
+	CompletionStage<ResponseAPDU> transmit(CommandAPDU capdu);
+}
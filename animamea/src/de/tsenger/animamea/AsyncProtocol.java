@@ -0,0 +1,183 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Basisklasse für Protokolle (PACE, TA, CA) als explizite Zustandsautomaten
+ * über einem {@link AsyncCardHandler}. Während eine APDU unterwegs ist, belegt
+ * die Session keinen Thread. Die Antwort der Karte wird im Thread des
+ * Transports an {@link #onResponse(ResponseAPDU)} übergeben, aufwändige
+ * Berechnungen werden mit {@link #compute(Step)} an den Executor abgegeben.
+ * 
+ * @param <T>
+ *            Ergebnis des Protokolls
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public abstract class AsyncProtocol<T> {
+
+	/**
+	 * Ein Schritt des Protokolls, der entweder die nächste APDU sendet oder
+	 * das Protokoll abschließt.
+	 */
+	protected interface Step {
+		void run() throws Exception;
+	}
+
+	private final AsyncCardHandler cardHandler;
+	private final Executor executor;
+	private final CompletableFuture<T> result = new CompletableFuture<T>();
+
+	/** Aktueller Zustand, wird von den Unterklassen gesetzt */
+	protected int state = 0;
+
+	/**
+	 * @param ch
+	 *            AsyncCardHandler über den die Kartenkommandos gesendet werden
+	 * @param executor
+	 *            Executor für die Berechnungen. Mit <code>null</code> wird im
+	 *            Thread gerechnet, der die Antwort der Karte liefert.
+	 */
+	protected AsyncProtocol(AsyncCardHandler ch, Executor executor) {
+		this.cardHandler = ch;
+		this.executor = executor;
+	}
+
+	/**
+	 * Startet das Protokoll
+	 * 
+	 * @return CompletionStage die mit dem Ergebnis des Protokolls bzw. mit der
+	 *         aufgetretenen Exception abgeschlossen wird
+	 */
+	public CompletionStage<T> run() {
+		compute(this::start);
+		return result;
+	}
+
+	/**
+	 * Erster Schritt des Protokolls, sendet die erste APDU
+	 */
+	protected abstract void start() throws Exception;
+
+	/**
+	 * Verarbeitet die Antwort der Karte abhängig von {@link #state}
+	 * 
+	 * @param resp
+	 *            plain Response-APDU
+	 */
+	protected abstract void onResponse(ResponseAPDU resp) throws Exception;
+
+	/**
+	 * Sendet eine APDU. Die Antwort wird an {@link #onResponse(ResponseAPDU)}
+	 * übergeben.
+	 */
+	protected void send(CommandAPDU capdu) {
+		receive(cardHandler.transceive(capdu));
+	}
+
+	/**
+	 * Sendet eine APDU und führt, während die Karte sie verarbeitet, einen
+	 * Schritt auf dem Executor aus. Die Antwort wird erst an
+	 * {@link #onResponse(ResponseAPDU)} übergeben, wenn auch der Schritt
+	 * abgeschlossen ist; dessen Ergebnisse sind dort sichtbar.
+	 * 
+	 * @param capdu
+	 *            zu sendende APDU
+	 * @param overlapped
+	 *            Berechnung, die nicht von der Antwort der Karte abhängt
+	 */
+	protected void send(CommandAPDU capdu, Step overlapped) {
+		CompletionStage<ResponseAPDU> response = cardHandler.transceive(capdu);
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		execute(() -> {
+			try {
+				overlapped.run();
+				done.complete(null);
+			} catch (Exception e) {
+				done.completeExceptionally(e);
+			}
+		}, done);
+		receive(response.thenCombine(done, (resp, v) -> resp));
+	}
+
+	private void receive(CompletionStage<ResponseAPDU> response) {
+		response.whenComplete((resp, t) -> {
+			if (t != null) {
+				fail(t);
+				return;
+			}
+			try {
+				onResponse(resp);
+			} catch (Exception e) {
+				fail(e);
+			}
+		});
+	}
+
+	/**
+	 * Führt einen Schritt auf dem Executor aus
+	 */
+	protected void compute(Step step) {
+		execute(() -> {
+			try {
+				step.run();
+			} catch (Exception e) {
+				fail(e);
+			}
+		}, result);
+	}
+
+	private void execute(Runnable task, CompletableFuture<?> onReject) {
+		if (executor == null) {
+			task.run();
+			return;
+		}
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			onReject.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Schließt das Protokoll erfolgreich ab
+	 */
+	protected void complete(T value) {
+		result.complete(value);
+	}
+
+	/**
+	 * Bricht das Protokoll ab
+	 */
+	protected void fail(Throwable t) {
+		if (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+		result.completeExceptionally(t);
+	}
+}
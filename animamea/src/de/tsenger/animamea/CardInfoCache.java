@@ -0,0 +1,339 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.ResponseAPDU;
+
+import org.apache.log4j.Logger;
+
+import de.tsenger.animamea.asn1.SecurityInfos;
+import de.tsenger.animamea.iso7816.CardCommands;
+import de.tsenger.animamea.iso7816.FileAccess;
+import de.tsenger.animamea.iso7816.SecureMessagingException;
+import de.tsenger.animamea.tools.HexString;
+
+/**
+ * LRU-Cache für die vor PACE im MF gelesenen Dateien EF.ATR/INFO, EF.DIR und
+ * EF.CardAccess (roh und als SecurityInfos dekodiert) sowie das Ergebnis der
+ * Extended Length Erkennung. Bleibt dieselbe Karte im Leser, entfallen bei
+ * wiederholten Operationen SELECT und READ BINARY für diese Dateien.
+ *
+ * Schlüssel ist ein {@link CardFingerprint} aus Lesername, ATR und der vom
+ * Leser gemeldeten UID. Da in einem Leser höchstens eine Karte steckt, wird
+ * der Eintrag eines Lesers entfernt, sobald dort eine andere Karte erkannt
+ * wird oder keine Karte mehr steckt. Wird die Entnahme anderweitig bemerkt
+ * (z.B. mit CardTerminal.waitForCardAbsent), sollte
+ * {@link #cardRemoved(String)} aufgerufen werden. Liefert der Leser keine UID,
+ * lässt sich eine Karte nicht von einer anderen Karte desselben Modells
+ * unterscheiden; die Dateien werden dann bei jedem Aufruf gelesen und nicht
+ * gespeichert. Mit {@link #setValidator(Validator)} kann zusätzlich jeder
+ * Treffer vor der Verwendung geprüft werden. Die Klasse ist thread-safe.
+ *
+ * @author Tobias Senger (tobias@t-senger.de)
+ *
+ */
+public class CardInfoCache {
+
+	/**
+	 * Prüft einen Cache-Eintrag bevor er für die verbundene Karte verwendet
+	 * wird
+	 */
+	public interface Validator {
+
+		/**
+		 * @param ch
+		 *            AmCardHandler der verbundenen Karte (noch ohne Secure
+		 *            Messaging)
+		 * @param info
+		 *            gespeicherte Informationen zum Fingerprint der Karte
+		 * @return <code>false</code> falls der Eintrag verworfen und die
+		 *         Dateien neu gelesen werden sollen
+		 */
+		boolean isValid(AmCardHandler ch, CardInfo info) throws CardException, SecureMessagingException;
+	}
+
+	private static final byte[] FID_EFCardAccess = new byte[] { (byte) 0x01, (byte) 0x1C };
+	private static final byte[] FID_DIR = new byte[] { (byte) 0x2F, (byte) 0x00 };
+
+	static Logger logger = Logger.getLogger(CardInfoCache.class);
+
+	private final int maxEntries;
+	private final LinkedHashMap<CardFingerprint, CardInfo> entries;
+	private Validator validator = null;
+
+	/**
+	 * Konstruktor
+	 *
+	 * @param maxEntries
+	 *            maximale Anzahl gespeicherter Karten
+	 */
+	public CardInfoCache(int maxEntries) {
+		if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive");
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<CardFingerprint, CardInfo>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<CardFingerprint, CardInfo> eldest) {
+				return size() > CardInfoCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Setzt die Prüfung, die bei jedem Treffer ausgeführt wird
+	 *
+	 * @param validator
+	 *            Validator oder <code>null</code> für keine Prüfung
+	 */
+	public synchronized void setValidator(Validator validator) {
+		this.validator = validator;
+	}
+
+	/**
+	 * Liefert die Informationen zur verbundenen Karte aus dem Cache oder liest
+	 * sie von der Karte und speichert sie, sofern der Leser eine UID liefert.
+	 * In beiden Fällen wird die Extended
+	 * Length Unterstützung im AmCardHandler gesetzt. Muss vor dem Aufbau von
+	 * Secure Messaging aufgerufen werden.
+	 *
+	 * @param ch
+	 *            AmCardHandler der verbundenen Karte
+	 * @return Informationen zur Karte
+	 * @throws CardException
+	 *             falls keine Karte im Leser steckt oder die Dateien nicht
+	 *             gelesen werden können
+	 * @throws SecureMessagingException
+	 * @throws IOException
+	 *             falls EF.CardAccess nicht dekodiert werden kann
+	 */
+	public CardInfo getCardInfo(AmCardHandler ch) throws CardException, SecureMessagingException, IOException {
+
+		String terminalName = ch.getTerminalName();
+		if (!ch.isCardPresent()) {
+			cardRemoved(terminalName);
+			throw new CardException("No card available");
+		}
+		CardFingerprint fingerprint = new CardFingerprint(terminalName, ch.getATR(), ch.getCardIdentifier());
+
+		if (fingerprint.identifier.length == 0) {
+			// ohne UID wäre ein Treffer auch für eine gewechselte Karte möglich
+			cardRemoved(terminalName);
+			return readCardInfo(ch, fingerprint);
+		}
+
+		CardInfo info;
+		Validator v;
+		synchronized (this) {
+			removeOtherCards(fingerprint);
+			info = entries.get(fingerprint);
+			v = validator;
+		}
+
+		if (info != null && v != null && !v.isValid(ch, info)) {
+			logger.debug("Cached card info rejected by validator");
+			invalidate(fingerprint);
+			info = null;
+		}
+
+		if (info == null) {
+			info = readCardInfo(ch, fingerprint);
+			synchronized (this) {
+				removeOtherCards(fingerprint);
+				entries.put(fingerprint, info);
+			}
+		} else {
+			ch.setExtendedLength(info.extendedLength, info.maxCommandLength, info.maxResponseLength);
+		}
+		return info;
+	}
+
+	/**
+	 * Entfernt den Eintrag der Karte, die in dem angegebenen Leser gesteckt
+	 * hat
+	 *
+	 * @param terminalName
+	 *            Name des Lesers
+	 */
+	public synchronized void cardRemoved(String terminalName) {
+		for (Iterator<CardFingerprint> it = entries.keySet().iterator(); it.hasNext();) {
+			if (it.next().terminalName.equals(terminalName)) it.remove();
+		}
+	}
+
+	/**
+	 * Entfernt den Eintrag zum angegebenen Fingerprint
+	 */
+	public synchronized void invalidate(CardFingerprint fingerprint) {
+		entries.remove(fingerprint);
+	}
+
+	/**
+	 * Entfernt alle Einträge
+	 */
+	public synchronized void invalidateAll() {
+		entries.clear();
+	}
+
+	/**
+	 * @return Anzahl der Einträge
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private void removeOtherCards(CardFingerprint fingerprint) {
+		for (Iterator<CardFingerprint> it = entries.keySet().iterator(); it.hasNext();) {
+			CardFingerprint other = it.next();
+			if (other.terminalName.equals(fingerprint.terminalName) && !other.equals(fingerprint)) it.remove();
+		}
+	}
+
+	private static CardInfo readCardInfo(AmCardHandler ch, CardFingerprint fingerprint) throws CardException, SecureMessagingException, IOException {
+
+		CardInfo info = new CardInfo(fingerprint);
+
+		// EF.ATR/INFO wird auch für die Extended Length Erkennung benötigt
+		info.efATR = ch.readEFATR();
+		info.extendedLength = ch.detectExtendedLength(info.efATR);
+		info.maxCommandLength = ch.getMaxCommandLength();
+		info.maxResponseLength = ch.getMaxResponseLength();
+
+		ResponseAPDU resp = ch.transceive(CardCommands.selectEF(FID_DIR));
+		if (resp.getSW() == 0x9000) {
+			resp = ch.transceive(CardCommands.readBinary(0, 0x100));
+			if (resp.getSW1() == 0x90 || resp.getSW() == 0x6282) info.efDIR = resp.getData();
+		}
+
+		info.efCardAccess = new FileAccess(ch).getFile(FID_EFCardAccess, true);
+		info.cardAccess = new SecurityInfos();
+		info.cardAccess.decode(info.efCardAccess);
+
+		logger.debug("Card info read for " + fingerprint);
+		return info;
+	}
+
+	/**
+	 * Identifiziert eine Karte in einem Leser
+	 */
+	public static final class CardFingerprint {
+
+		private final String terminalName;
+		private final byte[] atr;
+		private final byte[] identifier;
+		private final int hash;
+
+		/**
+		 * @param terminalName
+		 *            Name des Lesers
+		 * @param atr
+		 *            ATR der Karte
+		 * @param identifier
+		 *            UID der Karte oder leeres Array
+		 */
+		public CardFingerprint(String terminalName, byte[] atr, byte[] identifier) {
+			this.terminalName = terminalName;
+			this.atr = atr.clone();
+			this.identifier = identifier.clone();
+			this.hash = 31 * (31 * terminalName.hashCode() + Arrays.hashCode(this.atr)) + Arrays.hashCode(this.identifier);
+		}
+
+		public String getTerminalName() {
+			return terminalName;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CardFingerprint)) return false;
+			CardFingerprint other = (CardFingerprint) obj;
+			return terminalName.equals(other.terminalName) && Arrays.equals(atr, other.atr) && Arrays.equals(identifier, other.identifier);
+		}
+
+		@Override
+		public String toString() {
+			return terminalName + ", ATR: " + HexString.bufferToHex(atr) + ", UID: " + HexString.bufferToHex(identifier);
+		}
+	}
+
+	/**
+	 * Die von einer Karte gelesenen Informationen. Die dekodierten
+	 * SecurityInfos werden von allen Operationen mit dieser Karte gemeinsam
+	 * verwendet und dürfen nicht verändert werden.
+	 */
+	public static final class CardInfo {
+
+		private final CardFingerprint fingerprint;
+		private byte[] efATR = null;
+		private byte[] efDIR = null;
+		private byte[] efCardAccess = null;
+		private SecurityInfos cardAccess = null;
+		private boolean extendedLength;
+		private int maxCommandLength;
+		private int maxResponseLength;
+
+		CardInfo(CardFingerprint fingerprint) {
+			this.fingerprint = fingerprint;
+		}
+
+		public CardFingerprint getFingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * @return Inhalt von EF.ATR/INFO oder <code>null</code>
+		 */
+		public byte[] getEFATR() {
+			return (efATR != null) ? efATR.clone() : null;
+		}
+
+		/**
+		 * @return Inhalt von EF.DIR oder <code>null</code>
+		 */
+		public byte[] getEFDIR() {
+			return (efDIR != null) ? efDIR.clone() : null;
+		}
+
+		/**
+		 * @return Inhalt von EF.CardAccess
+		 */
+		public byte[] getEFCardAccessBytes() {
+			return efCardAccess.clone();
+		}
+
+		/**
+		 * @return dekodiertes EF.CardAccess
+		 */
+		public SecurityInfos getEFCardAccess() {
+			return cardAccess;
+		}
+	}
+}
@@ -41,6 +41,7 @@ import org.bouncycastle.asn1.cms.SignedData;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.operator.OperatorCreationException;
 
+import de.tsenger.animamea.asn1.ChipAuthenticationPublicKeyInfo;
 import de.tsenger.animamea.asn1.DomainParameter;
 import de.tsenger.animamea.asn1.SecurityInfos;
 import de.tsenger.animamea.ca.CAOperator;
@@ -85,6 +86,10 @@ public class Operator {
 	
 	private AmCardHandler ch = null;
 	private FileAccess facs = null;
+	private PaceOperator paceOperator = null;
+	
+	// EF.ATR, EF.DIR und EF.CardAccess der Karten, die im Leser stecken bleiben
+	private static final CardInfoCache cardInfoCache = new CardInfoCache(16);
 	
     // default values
     private static String pin = "123456"; 		// THAT'S AMAZING! I HAVE THE SAME COMBINATION ON MY LUGGAGE! @spaceballs
@@ -221,20 +226,26 @@ public class Operator {
 				logger.info("EF.CardSecurity decoded");
 
 				
-				// Erzeuge Chip Authentication SandOp und übergebe CardHandler
-				CAOperator cop = new CAOperator(ch);
+				// Bei PACE-CAM wurde der Chip bereits während PACE authentisiert
+				if (verifyChipAuthenticationMapping(efcs)) {
+					logger.info("Chip authenticated by PACE-CAM, skipping CA");
+				} else {
+				
+					// Erzeuge Chip Authentication SandOp und übergebe CardHandler
+					CAOperator cop = new CAOperator(ch);
 				
 				
-				//Initialisiere und führe CA durch
-				cop.initialize(efcs.getChipAuthenticationInfoList().get(0), efcs.getChipAuthenticationPublicKeyInfoList().get(0), ephPCDKeyPair);
-				SecureMessaging sm2 = cop.performCA();
+					//Initialisiere und führe CA durch
+					cop.initialize(efcs.getChipAuthenticationInfoList().get(0), efcs.getChipAuthenticationPublicKeyInfoList().get(0), ephPCDKeyPair);
+					SecureMessaging sm2 = cop.performCA();
 				
-				// Wenn CA erfolgreich war, wird ein neues SecureMessaging Object zurückgeliefert welches die neuen Schlüssel enthält
-				if (sm2 != null) {
-					logger.info("CA established!");
-					ch.setSecureMessaging(sm2);
-				} else {
-					logger.warn("Couldn't establish CA");
+					// Wenn CA erfolgreich war, wird ein neues SecureMessaging Object zurückgeliefert welches die neuen Schlüssel enthält
+					if (sm2 != null) {
+						logger.info("CA established!");
+						ch.setSecureMessaging(sm2);
+					} else {
+						logger.warn("Couldn't establish CA");
+					}
 				}
 
 
@@ -341,10 +352,12 @@ public class Operator {
 		
 		SecurityInfos efca = null;
 		try {
-			byte[] efcaBytes = facs.getFile(FID_EFCardAccess, true);
-			efca = new SecurityInfos();
-			efca.decode(efcaBytes);
-			logger.info("EF.CardAccess bytes:\n"+HexString.bufferToHex(efcaBytes));
+			// vor PACE im MF: Extended Length Unterstützung der Karte ermitteln und EF.CardAccess lesen,
+			// beides entfällt wenn die Karte seit der letzten Operation im Leser steckt und der Leser ihre UID liefert
+			CardInfoCache.CardInfo info = cardInfoCache.getCardInfo(ch);
+			logger.info("Extended length supported: " + ch.isExtendedLengthSupported());
+			efca = info.getEFCardAccess();
+			logger.info("EF.CardAccess bytes:\n"+HexString.bufferToHex(info.getEFCardAccessBytes()));
 			logger.info("EF.CardAccess decoded");
 			logger.debug("\n"+efca);
 		} catch (IOException e) {
@@ -362,6 +375,7 @@ public class Operator {
 		
 		//Initialisiere PACE mit dem ersten PACE-Info aus dem EF.CardAccess
 		PaceOperator pop = new PaceOperator(ch);
+		paceOperator = pop;
 	
 		if (cardAccess.getPaceDomainParameterInfoList().size()>0) //Properitäre PACE Domain-Paramter vorhanden
 			pop.setAuthTemplate(cardAccess.getPaceInfoList().get(0), cardAccess.getPaceDomainParameterInfoList().get(0), 
@@ -387,6 +401,23 @@ public class Operator {
 		return pop.getPKpicc();
 	}
 	
+	/**
+	 * Prüft nach PACE-CAM die Chip Authentication Data gegen die Chip
+	 * Authentication Public Keys aus dem EF.CardSecurity.
+	 * 
+	 * @return <code>true</code> falls PACE-CAM durchgeführt wurde und einer
+	 *         der Schlüssel passt. Dann entfällt die Chip Authentication.
+	 * @throws PaceException
+	 *             falls PACE-CAM durchgeführt wurde aber kein Schlüssel passt
+	 */
+	private boolean verifyChipAuthenticationMapping(SecurityInfos efcs) throws PaceException {
+		if (paceOperator == null || !paceOperator.isChipAuthenticationMapping()) return false;
+		for (ChipAuthenticationPublicKeyInfo caPKInfo : efcs.getChipAuthenticationPublicKeyInfoList()) {
+			if (paceOperator.verifyChipAuthenticationMapping(caPKInfo)) return true;
+		}
+		throw new PaceException("PACE-CAM: Chip Authentication Data doesn't match any public key in EF.CardSecurity");
+	}
+	
 	private KeyPair performTerminalAuthentication(SecurityInfos cardAccess, PublicKey ephPacePublicKey) throws TAException, SecureMessagingException, CardException {
 		if (ephPacePublicKey==null) {
 			logger.error("PACE didn't provide an ephemeral Public Key for Terminal Terminal Authentication.");
@@ -396,7 +427,7 @@ public class Operator {
 		TAOperator top = new TAOperator(ch);
 
 		//TA benötigt zur Berechnung des ephemeralen PCD public Key die DomainParameter für die CA
-		DomainParameter dp = new DomainParameter(cardAccess.getChipAuthenticationDomainParameterInfoList().get(0).getDomainParameter());
+		DomainParameter dp = DomainParameter.getInstance(cardAccess.getChipAuthenticationDomainParameterInfoList().get(0).getDomainParameter());
 
 
 		//Zertifikate für TA festlegen
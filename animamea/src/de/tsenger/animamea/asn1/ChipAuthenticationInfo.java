@@ -45,6 +45,10 @@ public class ChipAuthenticationInfo extends ASN1Object{
 		}
 	}
 
+	public ASN1ObjectIdentifier getProtocol() {
+		return protocol;
+	}
+
 	public String getProtocolOID() {
 		return protocol.toString();
 	}
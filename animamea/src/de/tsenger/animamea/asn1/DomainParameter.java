@@ -22,22 +22,98 @@ import static de.tsenger.animamea.crypto.DHStandardizedDomainParameters.modp1024
 import static de.tsenger.animamea.crypto.DHStandardizedDomainParameters.modp2048_224;
 import static de.tsenger.animamea.crypto.DHStandardizedDomainParameters.modp2048_256;
 
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bouncycastle.asn1.ASN1Encoding;
 import org.bouncycastle.asn1.ASN1Integer;
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.asn1.x9.X9ECParameters;
 import org.bouncycastle.crypto.params.DHParameters;
 import org.bouncycastle.jce.ECNamedCurveTable;
 import org.bouncycastle.jce.spec.ECParameterSpec;
+import org.bouncycastle.util.encoders.Hex;
 
 /**
+ * Domain Parameter für DH oder ECDH. Instanzen werden nach der Erzeugung
+ * nicht mehr verändert. Über {@link #getInstance(int)} und
+ * {@link #getInstance(AlgorithmIdentifier)} erhalten alle Sessions dieselbe
+ * Instanz (und damit dieselben Kurven-Objekte samt ihrer Vorberechnungen).
+ * 
  * @author Tobias Senger (tobias@t-senger.de)
  *
  */
 public class DomainParameter {
 	
+	/** Maximale Anzahl gespeicherter nicht standardisierter Domain Parameter */
+	private static final int MAX_CACHED_EXPLICIT = 32;
+
+	private static final HashMap<Integer, DomainParameter> standardized = new HashMap<Integer, DomainParameter>();
+	private static final LinkedHashMap<String, DomainParameter> explicit = new LinkedHashMap<String, DomainParameter>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DomainParameter> eldest) {
+			return size() > MAX_CACHED_EXPLICIT;
+		}
+	};
+
 	private DHParameters dhParameters = null;
 	private ECParameterSpec ecSpec = null;
 	
+	/**
+	 * Liefert die gemeinsam genutzte Instanz der standardisierten Domain
+	 * Parameter.
+	 * 
+	 * @param ref
+	 *            Referenz auf Standardized Domain Parameters
+	 * @return Domain Parameter
+	 */
+	public static DomainParameter getInstance(int ref) {
+		synchronized (standardized) {
+			DomainParameter dp = standardized.get(ref);
+			if (dp == null) {
+				dp = new DomainParameter(ref);
+				standardized.put(ref, dp);
+			}
+			return dp;
+		}
+	}
+
+	/**
+	 * Liefert die gemeinsam genutzte Instanz der im AlgorithmIdentifier
+	 * angegebenen Domain Parameter. Standardisierte Parameter werden über ihre
+	 * Referenz, explizite Parameter über die DER-Kodierung des
+	 * AlgorithmIdentifier wiedererkannt.
+	 * 
+	 * @param aid
+	 *            AlgorithmIdentifier mit standardisierten oder expliziten
+	 *            Domain Parametern
+	 * @return Domain Parameter
+	 */
+	public static DomainParameter getInstance(AlgorithmIdentifier aid) {
+		if (aid.getAlgorithm().equals(BSIObjectIdentifiers.standardizedDomainParameters)) {
+			return getInstance(((ASN1Integer) aid.getParameters()).getPositiveValue().intValue());
+		}
+
+		String key;
+		try {
+			key = Hex.toHexString(aid.getEncoded(ASN1Encoding.DER));
+		} catch (IOException e) {
+			return new DomainParameter(aid);
+		}
+		synchronized (explicit) {
+			DomainParameter dp = explicit.get(key);
+			if (dp == null) {
+				dp = new DomainParameter(aid);
+				explicit.put(key, dp);
+			}
+			return dp;
+		}
+	}
+
 	/**
 	 * Extrahiert aus dem AlogorithmIdentifier standardisierte Parameter für DH oder ECDH.
 	 * @param Referenz auf Standardized Domain Parameters
@@ -51,6 +51,10 @@ public class PaceInfo extends ASN1Object{
 		this.parameterId = new ASN1Integer(parameterId);
 	}
 
+	public ASN1ObjectIdentifier getProtocol() {
+		return protocol;
+	}
+
 	public String getProtocolOID() {
 		return protocol.toString();
 	}
@@ -0,0 +1,159 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.asn1;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+
+import de.tsenger.animamea.crypto.AmCryptoAlgorithm;
+import de.tsenger.animamea.crypto.AmCryptoProvider;
+import de.tsenger.animamea.crypto.AmCryptoSelector;
+
+/**
+ * Beschreibt die durch eine Protokoll-OID festgelegten Eigenschaften: Art der
+ * SecurityInfo, Schlüsselvereinbarung, Mapping, Verschlüsselungsverfahren und
+ * Schlüssellänge. Instanzen werden einmalig von {@link ProtocolRegistry}
+ * erzeugt und sind unveränderlich.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public final class ProtocolDescriptor {
+
+	// Art der SecurityInfo
+	public static final int TYPE_PACE_INFO = 1;
+	public static final int TYPE_PACE_DOMAIN_PARAMETER_INFO = 2;
+	public static final int TYPE_CA_INFO = 3;
+	public static final int TYPE_CA_DOMAIN_PARAMETER_INFO = 4;
+	public static final int TYPE_CA_PUBLIC_KEY_INFO = 5;
+	public static final int TYPE_TA_INFO = 6;
+	public static final int TYPE_CARD_INFO_LOCATOR = 7;
+	public static final int TYPE_PRIVILEGED_TERMINAL_INFO = 8;
+
+	// Schlüsselvereinbarung
+	public static final int KEY_AGREEMENT_NONE = 0;
+	public static final int KEY_AGREEMENT_DH = 1;
+	public static final int KEY_AGREEMENT_ECDH = 2;
+
+	// Mapping (nur PACE)
+	public static final int MAPPING_NONE = 0;
+	public static final int MAPPING_GENERIC = 1;
+	public static final int MAPPING_INTEGRATED = 2;
+	public static final int MAPPING_CHIP_AUTHENTICATION = 3;
+
+	// Verschlüsselung und MAC
+	public static final int CIPHER_NONE = 0;
+	public static final int CIPHER_3DES_CBC_CBC = 1;
+	public static final int CIPHER_AES_CBC_CMAC = 2;
+
+	private final ASN1ObjectIdentifier oid;
+	private final int type;
+	private final int keyAgreement;
+	private final int mapping;
+	private final int cipher;
+	private final int keyLength;
+
+	ProtocolDescriptor(ASN1ObjectIdentifier oid, int type, int keyAgreement, int mapping, int cipher, int keyLength) {
+		this.oid = oid;
+		this.type = type;
+		this.keyAgreement = keyAgreement;
+		this.mapping = mapping;
+		this.cipher = cipher;
+		this.keyLength = keyLength;
+	}
+
+	public ASN1ObjectIdentifier getOID() {
+		return oid;
+	}
+
+	/**
+	 * @return Art der SecurityInfo (TYPE_...)
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return KEY_AGREEMENT_DH, KEY_AGREEMENT_ECDH oder KEY_AGREEMENT_NONE
+	 */
+	public int getKeyAgreement() {
+		return keyAgreement;
+	}
+
+	/**
+	 * @return MAPPING_GENERIC, MAPPING_INTEGRATED, MAPPING_CHIP_AUTHENTICATION
+	 *         oder MAPPING_NONE
+	 */
+	public int getMapping() {
+		return mapping;
+	}
+
+	/**
+	 * @return CIPHER_3DES_CBC_CBC, CIPHER_AES_CBC_CMAC oder CIPHER_NONE
+	 */
+	public int getCipher() {
+		return cipher;
+	}
+
+	/**
+	 * @return Schlüssellänge in Bit (112 für 3DES) oder 0 falls die OID kein
+	 *         Verschlüsselungsverfahren festlegt
+	 */
+	public int getKeyLength() {
+		return keyLength;
+	}
+
+	/**
+	 * Liefert das durch die OID festgelegte Verschlüsselungsverfahren. Das
+	 * Ergebnis ist thread-safe und kann von mehreren Sessions gemeinsam
+	 * verwendet werden.
+	 * 
+	 * @return AmCryptoAlgorithm
+	 * @throws IllegalStateException
+	 *             falls die OID kein Verschlüsselungsverfahren festlegt
+	 */
+	public AmCryptoAlgorithm getCryptoAlgorithm() {
+		switch (cipher) {
+		case CIPHER_3DES_CBC_CBC:
+			return AmCryptoSelector.getDES();
+		case CIPHER_AES_CBC_CMAC:
+			return AmCryptoSelector.getAES();
+		default:
+			throw new IllegalStateException("OID " + oid + " doesn't define a cipher");
+		}
+	}
+
+	/**
+	 * Erzeugt einen neuen AmCryptoProvider für das durch die OID festgelegte
+	 * Verschlüsselungsverfahren.
+	 * 
+	 * @return AmCryptoProvider-Instanz
+	 * @throws IllegalStateException
+	 *             falls die OID kein Verschlüsselungsverfahren festlegt
+	 */
+	public AmCryptoProvider createCryptoProvider() {
+		return getCryptoAlgorithm().createContext();
+	}
+
+	@Override
+	public String toString() {
+		return "ProtocolDescriptor " + oid + " (type " + type + ", key agreement " + keyAgreement + ", mapping " + mapping + ", cipher " + cipher
+				+ ", key length " + keyLength + ")";
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.asn1;
+
+import static de.tsenger.animamea.asn1.ProtocolDescriptor.CIPHER_3DES_CBC_CBC;
+import static de.tsenger.animamea.asn1.ProtocolDescriptor.CIPHER_AES_CBC_CMAC;
+import static de.tsenger.animamea.asn1.ProtocolDescriptor.CIPHER_NONE;
+import static de.tsenger.animamea.asn1.ProtocolDescriptor.KEY_AGREEMENT_DH;
+import static de.tsenger.animamea.asn1.ProtocolDescriptor.KEY_AGREEMENT_ECDH;
+import static de.tsenger.animamea.asn1.ProtocolDescriptor.KEY_AGREEMENT_NONE;
+import static de.tsenger.animamea.asn1.ProtocolDescriptor.MAPPING_CHIP_AUTHENTICATION;
+import static de.tsenger.animamea.asn1.ProtocolDescriptor.MAPPING_GENERIC;
+import static de.tsenger.animamea.asn1.ProtocolDescriptor.MAPPING_INTEGRATED;
+import static de.tsenger.animamea.asn1.ProtocolDescriptor.MAPPING_NONE;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+
+/**
+ * Unveränderliche Zuordnung der Protokoll-OIDs aus {@link BSIObjectIdentifiers}
+ * zu ihren {@link ProtocolDescriptor}en. Die Tabelle wird beim Laden der
+ * Klasse einmalig aufgebaut, danach ist die Auswertung einer OID ein einzelner
+ * Hash-Zugriff.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public final class ProtocolRegistry implements BSIObjectIdentifiers {
+
+	private static final Map<ASN1ObjectIdentifier, ProtocolDescriptor> registry;
+
+	static {
+		Map<ASN1ObjectIdentifier, ProtocolDescriptor> map = new HashMap<ASN1ObjectIdentifier, ProtocolDescriptor>(64);
+
+		// PACE
+		addPace(map, id_PACE_DH_GM, KEY_AGREEMENT_DH, MAPPING_GENERIC);
+		addPace(map, id_PACE_ECDH_GM, KEY_AGREEMENT_ECDH, MAPPING_GENERIC);
+		addPace(map, id_PACE_DH_IM, KEY_AGREEMENT_DH, MAPPING_INTEGRATED);
+		addPace(map, id_PACE_ECDH_IM, KEY_AGREEMENT_ECDH, MAPPING_INTEGRATED);
+		// PACE-CAM ist nur für ECDH mit AES definiert
+		add(map, id_PACE_ECDH_CAM, ProtocolDescriptor.TYPE_PACE_DOMAIN_PARAMETER_INFO, KEY_AGREEMENT_ECDH, MAPPING_CHIP_AUTHENTICATION, CIPHER_NONE, 0);
+		add(map, id_PACE_ECDH_CAM_AES_CBC_CMAC_128, ProtocolDescriptor.TYPE_PACE_INFO, KEY_AGREEMENT_ECDH, MAPPING_CHIP_AUTHENTICATION, CIPHER_AES_CBC_CMAC, 128);
+		add(map, id_PACE_ECDH_CAM_AES_CBC_CMAC_192, ProtocolDescriptor.TYPE_PACE_INFO, KEY_AGREEMENT_ECDH, MAPPING_CHIP_AUTHENTICATION, CIPHER_AES_CBC_CMAC, 192);
+		add(map, id_PACE_ECDH_CAM_AES_CBC_CMAC_256, ProtocolDescriptor.TYPE_PACE_INFO, KEY_AGREEMENT_ECDH, MAPPING_CHIP_AUTHENTICATION, CIPHER_AES_CBC_CMAC, 256);
+
+		// Chip Authentication
+		addCA(map, id_CA_DH, KEY_AGREEMENT_DH);
+		addCA(map, id_CA_ECDH, KEY_AGREEMENT_ECDH);
+		add(map, id_PK_DH, ProtocolDescriptor.TYPE_CA_PUBLIC_KEY_INFO, KEY_AGREEMENT_DH, MAPPING_NONE, CIPHER_NONE, 0);
+		add(map, id_PK_ECDH, ProtocolDescriptor.TYPE_CA_PUBLIC_KEY_INFO, KEY_AGREEMENT_ECDH, MAPPING_NONE, CIPHER_NONE, 0);
+
+		// Terminal Authentication, CardInfoLocator, PrivilegedTerminalInfo
+		add(map, new ASN1ObjectIdentifier(id_TA), ProtocolDescriptor.TYPE_TA_INFO, KEY_AGREEMENT_NONE, MAPPING_NONE, CIPHER_NONE, 0);
+		add(map, id_CI, ProtocolDescriptor.TYPE_CARD_INFO_LOCATOR, KEY_AGREEMENT_NONE, MAPPING_NONE, CIPHER_NONE, 0);
+		add(map, id_PT, ProtocolDescriptor.TYPE_PRIVILEGED_TERMINAL_INFO, KEY_AGREEMENT_NONE, MAPPING_NONE, CIPHER_NONE, 0);
+
+		registry = Collections.unmodifiableMap(map);
+	}
+
+	private ProtocolRegistry() {
+	}
+
+	/**
+	 * Liefert den Deskriptor zur übergebenen OID
+	 * 
+	 * @param oid
+	 *            Protokoll-OID
+	 * @return ProtocolDescriptor oder <code>null</code> falls die OID nicht
+	 *         bekannt ist
+	 */
+	public static ProtocolDescriptor lookup(ASN1ObjectIdentifier oid) {
+		return registry.get(oid);
+	}
+
+	/**
+	 * Wie {@link #lookup(ASN1ObjectIdentifier)}, wirft aber eine Exception
+	 * falls die OID nicht bekannt ist.
+	 * 
+	 * @param oid
+	 *            Protokoll-OID
+	 * @return ProtocolDescriptor
+	 * @throws IllegalArgumentException
+	 *             falls die OID nicht bekannt ist
+	 */
+	public static ProtocolDescriptor get(ASN1ObjectIdentifier oid) {
+		ProtocolDescriptor pd = registry.get(oid);
+		if (pd == null) throw new IllegalArgumentException("Unknown protocol OID: " + oid);
+		return pd;
+	}
+
+	private static void addPace(Map<ASN1ObjectIdentifier, ProtocolDescriptor> map, ASN1ObjectIdentifier base, int keyAgreement, int mapping) {
+		// PACE-Domain-Parameter-Info verwendet die OID ohne Verschlüsselungsverfahren
+		add(map, base, ProtocolDescriptor.TYPE_PACE_DOMAIN_PARAMETER_INFO, keyAgreement, mapping, CIPHER_NONE, 0);
+		addCiphers(map, base, ProtocolDescriptor.TYPE_PACE_INFO, keyAgreement, mapping);
+	}
+
+	private static void addCA(Map<ASN1ObjectIdentifier, ProtocolDescriptor> map, ASN1ObjectIdentifier base, int keyAgreement) {
+		add(map, base, ProtocolDescriptor.TYPE_CA_DOMAIN_PARAMETER_INFO, keyAgreement, MAPPING_NONE, CIPHER_NONE, 0);
+		addCiphers(map, base, ProtocolDescriptor.TYPE_CA_INFO, keyAgreement, MAPPING_NONE);
+	}
+
+	/**
+	 * Fügt die Varianten base.1 (3DES) bis base.4 (AES-256) hinzu
+	 */
+	private static void addCiphers(Map<ASN1ObjectIdentifier, ProtocolDescriptor> map, ASN1ObjectIdentifier base, int type, int keyAgreement, int mapping) {
+		add(map, base.branch("1"), type, keyAgreement, mapping, CIPHER_3DES_CBC_CBC, 112);
+		add(map, base.branch("2"), type, keyAgreement, mapping, CIPHER_AES_CBC_CMAC, 128);
+		add(map, base.branch("3"), type, keyAgreement, mapping, CIPHER_AES_CBC_CMAC, 192);
+		add(map, base.branch("4"), type, keyAgreement, mapping, CIPHER_AES_CBC_CMAC, 256);
+	}
+
+	private static void add(Map<ASN1ObjectIdentifier, ProtocolDescriptor> map, ASN1ObjectIdentifier oid, int type, int keyAgreement, int mapping, int cipher,
+			int keyLength) {
+		map.put(oid, new ProtocolDescriptor(oid, type, keyAgreement, mapping, cipher, keyLength));
+	}
+}
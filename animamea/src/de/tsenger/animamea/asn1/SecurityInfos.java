@@ -70,29 +70,32 @@ public class SecurityInfos extends ASN1Object {
 			securityInfo[i] = (ASN1Sequence) securityInfos.getObjectAt(i);
 			ASN1ObjectIdentifier oid = (ASN1ObjectIdentifier) securityInfo[i].getObjectAt(0);
 
-			switch (oid.toString().charAt(18)) {
-			case '1': 
+			ProtocolDescriptor pd = ProtocolRegistry.lookup(oid);
+			if (pd == null) continue; // unbekannte SecurityInfo
+
+			switch (pd.getType()) {
+			case ProtocolDescriptor.TYPE_CA_PUBLIC_KEY_INFO:
 				chipAuthenticationPublicKeyInfoList.add(new ChipAuthenticationPublicKeyInfo(securityInfo[i]));
 				break;
-			case '2':
+			case ProtocolDescriptor.TYPE_TA_INFO:
 				terminalAuthenticationInfoList.add(new TerminalAuthenticationInfo(securityInfo[i]));
 				break;
-			case '3':
-				if (oid.toString().length() == 23)
-					chipAuthenticationInfoList.add(new ChipAuthenticationInfo(securityInfo[i]));
-				else
-					chipAuthenticationDomainParameterInfoList.add(new ChipAuthenticationDomainParameterInfo(securityInfo[i]));
+			case ProtocolDescriptor.TYPE_CA_INFO:
+				chipAuthenticationInfoList.add(new ChipAuthenticationInfo(securityInfo[i]));
+				break;
+			case ProtocolDescriptor.TYPE_CA_DOMAIN_PARAMETER_INFO:
+				chipAuthenticationDomainParameterInfoList.add(new ChipAuthenticationDomainParameterInfo(securityInfo[i]));
+				break;
+			case ProtocolDescriptor.TYPE_PACE_INFO:
+				paceInfoList.add(new PaceInfo(securityInfo[i]));
 				break;
-			case '4':
-				if (oid.toString().length() == 23)
-					paceInfoList.add(new PaceInfo(securityInfo[i]));
-				else
-					paceDomainParameterInfoList.add(new PaceDomainParameterInfo(securityInfo[i]));
+			case ProtocolDescriptor.TYPE_PACE_DOMAIN_PARAMETER_INFO:
+				paceDomainParameterInfoList.add(new PaceDomainParameterInfo(securityInfo[i]));
 				break;
-			case '6':
+			case ProtocolDescriptor.TYPE_CARD_INFO_LOCATOR:
 				cardInfoLocatorList.add(new CardInfoLocator(securityInfo[i]));
 				break;
-			case '8':
+			case ProtocolDescriptor.TYPE_PRIVILEGED_TERMINAL_INFO:
 				privilegedTerminalInfoList.add(new PrivilegedTerminalInfo(securityInfo[i]));
 				break;
 			} // SWITCH
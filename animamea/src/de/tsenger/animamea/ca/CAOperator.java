@@ -18,45 +18,41 @@
  */
 package de.tsenger.animamea.ca;
 
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_CA_DH_3DES_CBC_CBC;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_CA_DH_AES_CBC_CMAC_128;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_CA_DH_AES_CBC_CMAC_192;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_CA_DH_AES_CBC_CMAC_256;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_CA_ECDH_3DES_CBC_CBC;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_CA_ECDH_AES_CBC_CMAC_128;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_CA_ECDH_AES_CBC_CMAC_192;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_CA_ECDH_AES_CBC_CMAC_256;
-
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
+import javax.crypto.interfaces.DHPublicKey;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
 import org.bouncycastle.asn1.ASN1Encoding;
 import org.bouncycastle.jce.interfaces.ECPublicKey;
-import org.bouncycastle.jce.provider.JCEDHPublicKey;
 import org.bouncycastle.math.ec.ECPoint;
 import org.bouncycastle.util.Arrays;
 
 import de.tsenger.animamea.AmCardHandler;
+import de.tsenger.animamea.AsyncCardHandler;
+import de.tsenger.animamea.AsyncProtocol;
 import de.tsenger.animamea.asn1.AmDHPublicKey;
 import de.tsenger.animamea.asn1.AmECPublicKey;
 import de.tsenger.animamea.asn1.ChipAuthenticationInfo;
 import de.tsenger.animamea.asn1.ChipAuthenticationPublicKeyInfo;
 import de.tsenger.animamea.asn1.DomainParameter;
 import de.tsenger.animamea.asn1.DynamicAuthenticationData;
-import de.tsenger.animamea.crypto.AmAESCrypto;
+import de.tsenger.animamea.asn1.ProtocolDescriptor;
+import de.tsenger.animamea.asn1.ProtocolRegistry;
 import de.tsenger.animamea.crypto.AmCryptoProvider;
-import de.tsenger.animamea.crypto.AmDESCrypto;
 import de.tsenger.animamea.crypto.KeyDerivationFunction;
 import de.tsenger.animamea.iso7816.MSESetAT;
 import de.tsenger.animamea.iso7816.SecureMessaging;
 import de.tsenger.animamea.iso7816.SecureMessagingException;
+import de.tsenger.animamea.tools.Converter;
 import de.tsenger.animamea.tools.HexString;
 
 /**
@@ -92,7 +88,7 @@ public class CAOperator {
 		this.caPKref = caInfo.getKeyId();
 		if (caPKref != caPKInfo.getKeyId()) throw new CAException("Key Identifier in ChipAuthenticationInfo and ChipAuthenticationPublicKeyInfo doesn't match");
 		
-		this.dp = new DomainParameter(caPKInfo.getPublicKey().getAlgorithm());
+		this.dp = DomainParameter.getInstance(caPKInfo.getPublicKey().getAlgorithm());
 		
 		if (dp.getDPType().equals("ECDH")) {
 			ca = new ChipAuthenticationECDH(dp.getECParameter());
@@ -108,37 +104,48 @@ public class CAOperator {
 	
 	public SecureMessaging performCA() throws SecureMessagingException, CardException, CAException {
 		//send MSE:Set AT
-		MSESetAT mse = new MSESetAT();
-		mse.setAT(MSESetAT.setAT_CA);
-		mse.setProtocol(protocol);
-		mse.setPrivateKeyReference(caPKref);
-		ch.transceive(mse.getCommandAPDU());
+		ch.transceive(createMSESetAT());
 		
 		// General Authenticate
 		DynamicAuthenticationData dad = sendGA(); //TODO Rückgabe der Karte prüfen (z.B. SW != 9000)
 		
+		return computeSessionKeys(dad);
+	}
+	
+	/**
+	 * Asynchrone Variante von {@link #performCA()}. Während auf die Karte
+	 * gewartet wird, belegt die Session keinen Thread; die Schlüsselvereinbarung
+	 * läuft auf dem übergebenen Executor.
+	 * 
+	 * @param ach AsyncCardHandler über den die Kartenkommandos gesendet werden
+	 * @param executor Executor für die Berechnungen oder <code>null</code>
+	 * @return CompletionStage mit dem neuen SecureMessaging-Objekt bzw. mit einer
+	 *         CAException oder SecureMessagingException
+	 */
+	public CompletionStage<SecureMessaging> performCAAsync(AsyncCardHandler ach, Executor executor) {
+		return new AsyncCA(ach, executor).run();
+	}
+	
+	private CommandAPDU createMSESetAT() {
+		MSESetAT mse = new MSESetAT();
+		mse.setAT(MSESetAT.setAT_CA);
+		mse.setProtocol(protocol);
+		mse.setPrivateKeyReference(caPKref);
+		return mse.getCommandAPDU();
+	}
+	
+	/**
+	 * Berechnet die Session Keys und prüft den Authentication Token der Karte
+	 */
+	private SecureMessaging computeSessionKeys(DynamicAuthenticationData dad) throws CAException {
 		//Schlüssel für Secure Messaging berechnen
 		byte[] rnd_picc = dad.getDataObject(1);
 		
 		byte[] K = ca.getSharedSecret_K(ephSKPCD, caPK);
 		
-		byte[] kenc = null;
-		byte[] kmac = null;
-				
-		switch (keyLength) {
-		case 112: 	kenc = new KeyDerivationFunction(K, rnd_picc, 1).getDESedeKey();
-					kmac = new KeyDerivationFunction(K, rnd_picc, 2).getDESedeKey();
-					break;
-		case 128:	kenc = new KeyDerivationFunction(K, rnd_picc, 1).getAES128Key();
-					kmac = new KeyDerivationFunction(K, rnd_picc, 2).getAES128Key();
-					break;
-		case 192:	kenc = new KeyDerivationFunction(K, rnd_picc, 1).getAES192Key();
-					kmac = new KeyDerivationFunction(K, rnd_picc, 2).getAES192Key();
-					break;
-		case 256:	kenc = new KeyDerivationFunction(K, rnd_picc, 1).getAES256Key();
-					kmac = new KeyDerivationFunction(K, rnd_picc, 2).getAES256Key();
-					break;
-		}
+		byte[] kenc = new byte[KeyDerivationFunction.getKeySize(keyLength)];
+		byte[] kmac = new byte[kenc.length];
+		new KeyDerivationFunction(K, rnd_picc).deriveSessionKeys(keyLength, kenc, kmac);
 		
 		//Authentication Token vergleichen
 		byte[] tpcd = calcToken(kmac, ephPKPCD);
@@ -156,7 +163,7 @@ public class CAOperator {
 			tpcd = crypto.getMAC(kmac, pk.getEncoded());
 		}
 		else if (ca instanceof ChipAuthenticationDH) {
-			BigInteger y = ((JCEDHPublicKey)data).getY();
+			BigInteger y = ((DHPublicKey)data).getY();
 			AmDHPublicKey pk = new AmDHPublicKey(protocol, y);
 			tpcd = crypto.getMAC(kmac, pk.getEncoded());
 		}
@@ -164,8 +171,19 @@ public class CAOperator {
 	}
 	
 	private DynamicAuthenticationData sendGA() throws SecureMessagingException, CardException {
+		ResponseAPDU resp = ch.transceive(createGA());
+		
+		DynamicAuthenticationData dad = new DynamicAuthenticationData(resp.getData());
+		
+		return dad;
+	}
+	
+	private CommandAPDU createGA() {
 		DynamicAuthenticationData dad80 = new DynamicAuthenticationData();
-		dad80.addDataObject(0, ((ECPublicKey)ephPKPCD).getQ().getEncoded());
+		if (ephPKPCD instanceof ECPublicKey)
+			dad80.addDataObject(0, ((ECPublicKey)ephPKPCD).getQ().getEncoded());
+		else
+			dad80.addDataObject(0, Converter.bigIntToByteArray(((DHPublicKey)ephPKPCD).getY()));
 		
 		byte[] dadBytes = null;
 		try {
@@ -176,35 +194,64 @@ public class CAOperator {
 		}
 				
 		//TODO Length Expected steht hier auf 0xFF weil CommandAPDU den Wert 0x00 nicht berücksichtigt.
-		ResponseAPDU resp = ch.transceive(new CommandAPDU(0x00, 0x86, 00, 00, dadBytes, 0xFF));
-		
-		DynamicAuthenticationData dad = new DynamicAuthenticationData(resp.getData());
-		
-		return dad;
+		return new CommandAPDU(0x00, 0x86, 00, 00, dadBytes, 0xFF);
 	}
 	
 	/**
 	 * Ermittelt anhand der ProtokollOID den Algorithmus und die Schlüssellänge
 	 * für Chip Authentication
 	 */
-	private void getCryptoInformation(ChipAuthenticationInfo cai) {
-		String protocolOIDString = cai.getProtocolOID();
-		if (protocolOIDString.equals(id_CA_DH_3DES_CBC_CBC.toString())
-				|| protocolOIDString.equals(id_CA_ECDH_3DES_CBC_CBC.toString())) {
-			keyLength = 112;
-			crypto = new AmDESCrypto();
-		} else if (protocolOIDString.equals(id_CA_DH_AES_CBC_CMAC_128.toString())
-				|| protocolOIDString.equals(id_CA_ECDH_AES_CBC_CMAC_128.toString())) {
-			keyLength = 128;
-			crypto = new AmAESCrypto();
-		} else if (protocolOIDString.equals(id_CA_DH_AES_CBC_CMAC_192.toString())
-				|| protocolOIDString.equals(id_CA_ECDH_AES_CBC_CMAC_192.toString())) {
-			keyLength = 192;
-			crypto = new AmAESCrypto();
-		} else if (protocolOIDString.equals(id_CA_DH_AES_CBC_CMAC_256.toString())
-				|| protocolOIDString.equals(id_CA_ECDH_AES_CBC_CMAC_256.toString())) {
-			keyLength = 256;
-			crypto = new AmAESCrypto();
+	private void getCryptoInformation(ChipAuthenticationInfo cai) throws CAException {
+		ProtocolDescriptor pd = ProtocolRegistry.lookup(cai.getProtocol());
+		if (pd == null || pd.getType() != ProtocolDescriptor.TYPE_CA_INFO)
+			throw new CAException("Unsupported Chip Authentication protocol: " + cai.getProtocolOID());
+		keyLength = pd.getKeyLength();
+		crypto = pd.createCryptoProvider();
+	}
+
+	/**
+	 * Chip Authentication als Zustandsautomat. Der Zustand gibt an, auf
+	 * welche APDU die Antwort erwartet wird.
+	 */
+	private class AsyncCA extends AsyncProtocol<SecureMessaging> {
+
+		private static final int SET_AT = 1;
+		private static final int GENERAL_AUTHENTICATE = 2;
+
+		AsyncCA(AsyncCardHandler ach, Executor executor) {
+			super(ach, executor);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see de.tsenger.animamea.AsyncProtocol#start()
+		 */
+		@Override
+		protected void start() {
+			state = SET_AT;
+			send(createMSESetAT());
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see de.tsenger.animamea.AsyncProtocol#onResponse(javax.smartcardio.ResponseAPDU)
+		 */
+		@Override
+		protected void onResponse(ResponseAPDU resp) {
+			switch (state) {
+			case SET_AT:
+				state = GENERAL_AUTHENTICATE;
+				send(createGA());
+				break;
+			case GENERAL_AUTHENTICATE:
+				final DynamicAuthenticationData dad = new DynamicAuthenticationData(resp.getData());
+				compute(() -> complete(computeSessionKeys(dad)));
+				break;
+			default:
+				throw new IllegalStateException("Unexpected state: " + state);
+			}
 		}
 	}
 
@@ -18,10 +18,20 @@
  */
 package de.tsenger.animamea.ca;
 
+import static de.tsenger.animamea.tools.Converter.bigIntToByteArray;
+
+import java.io.IOException;
+import java.math.BigInteger;
 import java.security.PrivateKey;
 
+import javax.crypto.interfaces.DHPrivateKey;
+
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1Primitive;
 import org.bouncycastle.crypto.params.DHParameters;
 
+import de.tsenger.animamea.crypto.DHEngine;
+
 /**
  * @author Tobias Senger (tobias@t-senger.de)
  *
@@ -29,10 +39,12 @@ import org.bouncycastle.crypto.params.DHParameters;
 public class ChipAuthenticationDH extends ChipAuthentication {
 	
 	private DHParameters dp = null;
+	private DHEngine engine = null;
 	
 	public ChipAuthenticationDH(DHParameters dp) {
 		
 		this.dp = dp;
+		this.engine = new DHEngine(dp);
 		
 	}
 
@@ -41,8 +53,27 @@ public class ChipAuthenticationDH extends ChipAuthentication {
 	 */
 	@Override
 	public byte[] getSharedSecret_K(PrivateKey ephskpcd, byte[] pkpicc) {
-		// TODO Auto-generated method stub
-		return null;
+		
+		BigInteger privKey = ((DHPrivateKey)ephskpcd).getX();
+		BigInteger PK_PICC = decodePublicValue(pkpicc);
+		
+		BigInteger K = engine.modPow(PK_PICC, privKey);
+		return bigIntToByteArray(K);
+	}
+
+	/**
+	 * Der statische Public Key der Karte ist im SubjectPublicKeyInfo als
+	 * DER-kodierter INTEGER enthalten, andernfalls wird er als vorzeichenloser
+	 * Wert interpretiert.
+	 */
+	private BigInteger decodePublicValue(byte[] pkpicc) {
+		try {
+			ASN1Primitive obj = ASN1Primitive.fromByteArray(pkpicc);
+			if (obj instanceof ASN1Integer) return ((ASN1Integer) obj).getPositiveValue();
+		} catch (IOException e) {
+			// kein DER, sondern der Wert selbst
+		}
+		return new BigInteger(1, pkpicc);
 	}
 
 }
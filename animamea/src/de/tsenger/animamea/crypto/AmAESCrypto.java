@@ -19,6 +19,13 @@
 
 package de.tsenger.animamea.crypto;
 
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
 import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.Mac;
 import org.bouncycastle.crypto.engines.AESFastEngine;
@@ -40,8 +47,29 @@ public class AmAESCrypto extends AmCryptoProvider {
 	private KeyParameter keyP = null;
 	private byte[] IV = null;
 	private byte[] sscBytes = null;
-
-	public static int blockSize = 16;
+	private Mac mac = null;
+	private int macDataLength = 0;
+
+	// Für die Dauer einer SM-Session vorberechnete Kontexte
+	private byte[] sessionKenc = null;
+	private byte[] sessionKmac = null;
+	private KeyParameter sessionEncKey = null;
+	private BlockCipher sessionIVCipher = null;
+	private PaddedBufferedBlockCipher sessionEncryptCipher = null;
+	private PaddedBufferedBlockCipher sessionDecryptCipher = null;
+	private ParametersWithIV sessionIVParameter = null; // IV für die Session-Cipher, wird wiederverwendet
+	private Mac sessionMac = null;
+	private boolean useSessionMac = false;
+
+	// Vorausberechnung der IVs E(K_enc, SSC) im Hintergrund
+	private ExecutorService ivExecutor = null;
+	private int ivPrecomputeCount = 0;
+	private long ivBatchStart = 0;
+	private Future<byte[][]> ivBatch = null;
+	private long nextIVBatchStart = 0;
+	private Future<byte[][]> nextIVBatch = null;
+
+	public static final int blockSize = 16;
 
 	private void initCiphers(byte[] key, byte[] iv) {
 
@@ -57,11 +85,9 @@ public class AmAESCrypto extends AmCryptoProvider {
 
 		// create the ciphers
 		// AES block cipher in CBC mode with ISO7816d4 padding
-		encryptCipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(
-				new AESFastEngine()), new ISO7816d4Padding());
+		encryptCipher = createCBCCipher();
 
-		decryptCipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(
-				new AESFastEngine()), new ISO7816d4Padding());
+		decryptCipher = createCBCCipher();
 
 		// create the IV parameter
 		ParametersWithIV parameterIV = new ParametersWithIV(keyP, IV);
@@ -78,11 +104,161 @@ public class AmAESCrypto extends AmCryptoProvider {
 	@Override
 	public void init(byte[] keyBytes, byte[] ssc) {
 
-		sscBytes = ssc.clone();
+		if (sscBytes == null || sscBytes.length != ssc.length) sscBytes = new byte[ssc.length];
+		System.arraycopy(ssc, 0, sscBytes, 0, ssc.length);
+		mac = null;
+		useSessionMac = false;
+
+		if (sessionKenc != null && Arrays.equals(keyBytes, sessionKenc)) {
+			// IV = E(K_enc, SSC) mit dem bereits expandierten Schlüssel
+			IV = sessionIVParameter.getIV();
+			sessionIVCipher.processBlock(sscBytes, 0, IV, 0);
+			initSessionCiphers(IV);
+		} else if (sessionKmac != null && Arrays.equals(keyBytes, sessionKmac)) {
+			// Für K_mac wird nur der CMAC-Kontext mit K1/K2 benötigt
+			useSessionMac = true;
+			encryptCipher = null;
+			decryptCipher = null;
+		} else {
+			byte[] iv = encryptBlock(keyBytes, sscBytes);
+			initCiphers(keyBytes, iv);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.tsenger.animamea.crypto.AmCryptoProvider#init(byte[], long)
+	 */
+	@Override
+	public void init(byte[] keyBytes, long ssc) {
+
+		if (ivExecutor == null || sessionKenc == null || !Arrays.equals(keyBytes, sessionKenc)) {
+			super.init(keyBytes, ssc);
+			return;
+		}
+
+		if (sscBytes == null || sscBytes.length != blockSize) sscBytes = new byte[blockSize];
+		encodeSSC(ssc, sscBytes, 0);
+		mac = null;
+		useSessionMac = false;
+		IV = getPrecomputedIV(ssc);
+		initSessionCiphers(IV);
+	}
+
+	private void initSessionCiphers(byte[] iv) {
+		// ParametersWithIV kopiert den IV, daher wird das Objekt der Session
+		// wiederverwendet und nur dessen IV überschrieben
+		byte[] sessionIV = sessionIVParameter.getIV();
+		if (iv != sessionIV) System.arraycopy(iv, 0, sessionIV, 0, blockSize);
+		keyP = sessionEncKey;
+		encryptCipher = sessionEncryptCipher;
+		decryptCipher = sessionDecryptCipher;
+		encryptCipher.init(true, sessionIVParameter);
+		decryptCipher.init(false, sessionIVParameter);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.tsenger.animamea.crypto.AmCryptoProvider#setIVPrecomputation(java.util.concurrent.ExecutorService, int)
+	 */
+	@Override
+	public void setIVPrecomputation(ExecutorService executor, int count) {
+		cancelIVBatches();
+		ivExecutor = (count > 0) ? executor : null;
+		ivPrecomputeCount = count;
+	}
+
+	/**
+	 * Liefert den IV für den angegebenen SSC aus den im Hintergrund
+	 * berechneten Blöcken. Sobald ein Block verwendet wird, wird bereits der
+	 * folgende Block berechnet, so dass dies während der Bearbeitungszeit der
+	 * Karte geschieht. Nimmt der Executor keine Aufgaben mehr an, wird der IV
+	 * direkt berechnet.
+	 */
+	private byte[] getPrecomputedIV(long ssc) {
+
+		try {
+			if (ivBatch == null || ssc < ivBatchStart || ssc >= ivBatchStart + ivPrecomputeCount) {
+				if (nextIVBatch != null && ssc >= nextIVBatchStart
+						&& ssc < nextIVBatchStart + ivPrecomputeCount) {
+					ivBatch = nextIVBatch;
+					ivBatchStart = nextIVBatchStart;
+				} else {
+					cancelIVBatches();
+					ivBatch = submitIVBatch(ssc);
+					ivBatchStart = ssc;
+				}
+				nextIVBatchStart = ivBatchStart + ivPrecomputeCount;
+				nextIVBatch = submitIVBatch(nextIVBatchStart);
+			}
+			return ivBatch.get()[(int) (ssc - ivBatchStart)];
+		} catch (RejectedExecutionException e) {
+			// Executor beendet oder ausgelastet
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// Fallback auf direkte Berechnung
+		}
+		cancelIVBatches();
+		byte[] iv = new byte[blockSize];
+		sessionIVCipher.processBlock(encodeSSC(ssc), 0, iv, 0);
+		return iv;
+	}
+
+	private Future<byte[][]> submitIVBatch(final long start) {
+		final KeyParameter encKey = sessionEncKey;
+		final int count = ivPrecomputeCount;
+		return ivExecutor.submit(new Callable<byte[][]>() {
+			@Override
+			public byte[][] call() {
+				// eigene Engine, da die Berechnung in einem anderen Thread läuft
+				BlockCipher cipher = createEngine();
+				cipher.init(true, encKey);
+				byte[][] ivs = new byte[count][blockSize];
+				for (int i = 0; i < count; i++) {
+					cipher.processBlock(encodeSSC(start + i), 0, ivs[i], 0);
+				}
+				return ivs;
+			}
+		});
+	}
+
+	private void cancelIVBatches() {
+		if (ivBatch != null) ivBatch.cancel(false);
+		if (nextIVBatch != null) nextIVBatch.cancel(false);
+		ivBatch = null;
+		nextIVBatch = null;
+	}
 
-		byte[] iv = encryptBlock(keyBytes, sscBytes);
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.tsenger.animamea.crypto.AmCryptoProvider#setSessionKeys(byte[], byte[])
+	 */
+	@Override
+	public void setSessionKeys(byte[] kenc, byte[] kmac) {
 
-		initCiphers(keyBytes, iv);
+		cancelIVBatches();
+		sessionKenc = kenc.clone();
+		sessionKmac = kmac.clone();
+
+		sessionEncKey = new KeyParameter(sessionKenc);
+		ParametersWithIV parameterIV = new ParametersWithIV(sessionEncKey, new byte[blockSize]);
+
+		sessionIVCipher = createEngine();
+		sessionIVCipher.init(true, sessionEncKey);
+
+		sessionEncryptCipher = createCBCCipher();
+		sessionDecryptCipher = createCBCCipher();
+		sessionEncryptCipher.init(true, parameterIV);
+		sessionDecryptCipher.init(false, parameterIV);
+		sessionIVParameter = new ParametersWithIV(null, new byte[blockSize]);
+
+		// CMac.init() berechnet die Unterschlüssel K1/K2, reset() behält sie
+		sessionMac = new CMac(createEngine(), 64);
+		sessionMac.init(new KeyParameter(sessionKmac));
 	}
 
 	/*
@@ -93,21 +269,74 @@ public class AmAESCrypto extends AmCryptoProvider {
 	@Override
 	public byte[] getMAC(byte[] data) {
 
-		byte[] n = new byte[sscBytes.length + data.length];
-		System.arraycopy(sscBytes, 0, n, 0, sscBytes.length);
-		System.arraycopy(data, 0, n, sscBytes.length, data.length);
-		n = addPadding(n);
+		mac = null;
+		macUpdate(data, 0, data.length);
+		byte[] out = new byte[8];
+		macFinal(out, 0);
 
-		BlockCipher cipher = new AESFastEngine();
-		Mac mac = new CMac(cipher, 64);
+		return out;
+	}
 
-		mac.init(keyP);
-		mac.update(n, 0, n.length);
-		byte[] out = new byte[mac.getMacSize()];
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.tsenger.animamea.crypto.AmCryptoProvider#macUpdate(byte[], int, int)
+	 */
+	@Override
+	public void macUpdate(byte[] in, int inOff, int len) {
 
-		mac.doFinal(out, 0);
+		if (mac == null) startMAC();
 
-		return out;
+		mac.update(in, inOff, len);
+		macDataLength += len;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.tsenger.animamea.crypto.AmCryptoProvider#macFinal(byte[], int)
+	 */
+	@Override
+	public int macFinal(byte[] out, int outOff) {
+
+		if (mac == null) startMAC();
+
+		// ISO7816d4-Padding über SSC||Daten
+		mac.update((byte) 0x80);
+		macDataLength++;
+		while (macDataLength % blockSize != 0) {
+			mac.update((byte) 0x00);
+			macDataLength++;
+		}
+
+		int len = mac.doFinal(out, outOff);
+		mac = null;
+
+		return len;
+	}
+
+	/**
+	 * Startet eine neue MAC-Berechnung über SSC||Daten
+	 */
+	private void startMAC() {
+		mac = getMacContext();
+		mac.update(sscBytes, 0, sscBytes.length);
+		macDataLength = sscBytes.length;
+	}
+
+	/**
+	 * Liefert einen initialisierten CMAC-Kontext für den bei init()
+	 * angegebenen Schlüssel. Für K_mac der Session wird der vorberechnete
+	 * Kontext wiederverwendet.
+	 */
+	private Mac getMacContext() {
+		if (useSessionMac) {
+			sessionMac.reset();
+			return sessionMac;
+		}
+		Mac cmac = new CMac(createEngine(), 64);
+		cmac.init(keyP);
+		return cmac;
 	}
 
 	/*
@@ -117,7 +346,7 @@ public class AmAESCrypto extends AmCryptoProvider {
 	 */
 	@Override
 	public byte[] getMAC(byte[] key, byte[] data) {
-		BlockCipher cipher = new AESFastEngine();
+		BlockCipher cipher = createEngine();
 		Mac mac = new CMac(cipher, 64); // TODO Padding der Daten
 
 		KeyParameter keyP = new KeyParameter(key);
@@ -145,7 +374,7 @@ public class AmAESCrypto extends AmCryptoProvider {
 	public byte[] decryptBlock(byte[] key, byte[] z) {
 		byte[] s = new byte[blockSize];
 		KeyParameter encKey = new KeyParameter(key);
-		BlockCipher cipher = new AESFastEngine();
+		BlockCipher cipher = createEngine();
 		cipher.init(false, encKey);
 		cipher.processBlock(z, 0, s, 0);
 		return s;
@@ -164,12 +393,40 @@ public class AmAESCrypto extends AmCryptoProvider {
 	public byte[] encryptBlock(byte[] key, byte[] z) {
 		byte[] s = new byte[blockSize];
 		KeyParameter encKey = new KeyParameter(key);
-		BlockCipher cipher = new AESFastEngine();
+		BlockCipher cipher = createEngine();
 		cipher.init(true, encKey);
 		cipher.processBlock(z, 0, s, 0);
 		return s;
 	}
 
+	/**
+	 * Erzeugt eine AES-Engine für einzelne Blöcke (ECB)
+	 * 
+	 * @return AES-Engine
+	 */
+	protected BlockCipher createEngine() {
+		return new AESFastEngine();
+	}
+
+	/**
+	 * Erzeugt eine AES-Engine im CBC-Modus mit ISO7816d4-Padding
+	 * 
+	 * @return AES-CBC-Engine
+	 */
+	protected PaddedBufferedBlockCipher createCBCCipher() {
+		return new PaddedBufferedBlockCipher(new CBCBlockCipher(createEngine()), new ISO7816d4Padding());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.tsenger.animamea.crypto.AmCryptoProvider#getAlgorithm()
+	 */
+	@Override
+	public AmCryptoAlgorithm getAlgorithm() {
+		return AmCryptoAlgorithm.AES_BC;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
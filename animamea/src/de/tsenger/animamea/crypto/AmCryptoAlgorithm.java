@@ -0,0 +1,107 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.crypto;
+
+/**
+ * Unveränderliche Beschreibung eines Verschlüsselungsverfahrens und seiner
+ * Implementierung. Ein AmCryptoAlgorithm ist thread-safe und kann von
+ * beliebig vielen Sessions gemeinsam verwendet werden. Der veränderliche
+ * Zustand (Schlüssel, SSC, Cipher- und MAC-Kontexte, Puffer) liegt in den mit
+ * {@link #createContext()} erzeugten AmCryptoProvider-Instanzen, die jeweils
+ * nur von einem Thread zur Zeit verwendet werden dürfen.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public abstract class AmCryptoAlgorithm {
+
+	/** AES mit BouncyCastle */
+	public static final AmCryptoAlgorithm AES_BC = new AmCryptoAlgorithm("AES", "BC", 16) {
+		@Override
+		public AmCryptoProvider createContext() {
+			return new AmAESCrypto();
+		}
+	};
+
+	/** AES mit javax.crypto (JCA) */
+	public static final AmCryptoAlgorithm AES_JCA = new AmCryptoAlgorithm("AES", "JCA", 16) {
+		@Override
+		public AmCryptoProvider createContext() {
+			return new AmAESJCACrypto();
+		}
+	};
+
+	/** 3DES mit BouncyCastle */
+	public static final AmCryptoAlgorithm DES_BC = new AmCryptoAlgorithm("3DES", "BC", 8) {
+		@Override
+		public AmCryptoProvider createContext() {
+			return new AmDESCrypto();
+		}
+	};
+
+	/** 3DES mit javax.crypto (JCA), Retail-MAC mit BouncyCastle */
+	public static final AmCryptoAlgorithm DES_JCA = new AmCryptoAlgorithm("3DES", "JCA", 8) {
+		@Override
+		public AmCryptoProvider createContext() {
+			return new AmDESJCACrypto();
+		}
+	};
+
+	private final String name;
+	private final String implementation;
+	private final int blockSize;
+
+	private AmCryptoAlgorithm(String name, String implementation, int blockSize) {
+		this.name = name;
+		this.implementation = implementation;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Erzeugt einen neuen Kontext für dieses Verfahren. Der Kontext ist nicht
+	 * thread-safe und sollte pro Session (bzw. pro Thread) neu erzeugt werden.
+	 * 
+	 * @return neue AmCryptoProvider-Instanz
+	 */
+	public abstract AmCryptoProvider createContext();
+
+	/**
+	 * @return "AES" oder "3DES"
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return "BC" oder "JCA"
+	 */
+	public String getImplementation() {
+		return implementation;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + implementation + ")";
+	}
+}
@@ -19,34 +19,53 @@
 
 package de.tsenger.animamea.crypto;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.Security;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
 
 import org.bouncycastle.crypto.DataLengthException;
 import org.bouncycastle.crypto.InvalidCipherTextException;
-import org.bouncycastle.crypto.paddings.ISO7816d4Padding;
 import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 /**
+ * Kontext für ein Verschlüsselungsverfahren: enthält Schlüssel, SSC, Cipher-
+ * und MAC-Zustand sowie Puffer. Eine Instanz ist nicht thread-safe und darf
+ * nur von einem Thread zur Zeit verwendet werden. Für mehrere Sessions wird
+ * das unveränderliche {@link AmCryptoAlgorithm} (@see #getAlgorithm())
+ * gemeinsam verwendet und je Session ein eigener Kontext erzeugt.
+ * 
  * @author Tobias Senger (tobias@t-senger.de)
  * 
  */
 public abstract class AmCryptoProvider {
 
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
 	protected PaddedBufferedBlockCipher encryptCipher = null;
 	protected PaddedBufferedBlockCipher decryptCipher = null;
 
 	// Buffer are used to transport the bytes from one stream to another
-	byte[] buf = new byte[16]; // input buffer
-	byte[] obuf = new byte[512]; // output buffer
+	byte[] buf = new byte[496]; // input buffer
+	byte[] obuf = new byte[512]; // output buffer, Platz für buf plus einen Block
+	private ByteBuffer obufBuffer = null; // obuf als ByteBuffer für Channels
+	private byte[] sscBuffer = null; // kodierter SSC für init(byte[], long)
 
 	public AmCryptoProvider() {
-		Security.addProvider(new BouncyCastleProvider());
 	}
 
+	/**
+	 * @return das unveränderliche Verfahren zu diesem Kontext, aus dem weitere
+	 *         Kontexte für andere Sessions erzeugt werden können
+	 */
+	public abstract AmCryptoAlgorithm getAlgorithm();
+
 	/**
 	 * Initialisiert die Crypto-Engine mit dem angegebenen Schlüssel und dem
 	 * Send Sequence Counter (SSC)
@@ -58,6 +77,52 @@ public abstract class AmCryptoProvider {
 	 */
 	public abstract void init(byte[] key, byte[] sendSequenceCounter);
 
+	/**
+	 * Initialisiert die Crypto-Engine mit dem angegebenen Schlüssel und dem
+	 * als Zahl übergebenen Send Sequence Counter (SSC). Der SSC wird
+	 * rechtsbündig auf die Blocklänge kodiert.
+	 * 
+	 * @param key
+	 *            Schlüssel
+	 * @param sendSequenceCounter
+	 *            Send Sequence Counter
+	 */
+	public void init(byte[] key, long sendSequenceCounter) {
+		if (sscBuffer == null) sscBuffer = new byte[getBlockSize()];
+		encodeSSC(sendSequenceCounter, sscBuffer, 0);
+		init(key, sscBuffer);
+	}
+
+	/**
+	 * Aktiviert die Vorausberechnung der vom SSC abhängigen IVs für die
+	 * nächsten <code>count</code> Werte des SSC im Hintergrund. Für Verfahren
+	 * mit konstantem IV (3DES) hat der Aufruf keine Wirkung.
+	 * 
+	 * @param executor
+	 *            Executor in dem die IVs berechnet werden. Mit
+	 *            <code>null</code> wird die Vorausberechnung abgeschaltet.
+	 * @param count
+	 *            Anzahl der IVs die im Voraus berechnet werden
+	 */
+	public void setIVPrecomputation(ExecutorService executor, int count) {
+		// konstanter IV, nichts vorauszuberechnen
+	}
+
+	/**
+	 * Legt die Session Keys einer Secure-Messaging-Session fest. Die
+	 * Schlüsselexpansion für K_enc und die Vorberechnung des MAC-Kontexts
+	 * (bei CMAC die Unterschlüssel K1/K2) erfolgen hier einmalig. Spätere
+	 * Aufrufe von @see #init(byte[], byte[]) mit einem dieser Schlüssel
+	 * verwenden die vorberechneten Kontexte wieder. Nach init() mit K_mac
+	 * stehen nur die MAC-Funktionen zur Verfügung.
+	 * 
+	 * @param kenc
+	 *            Session Key für Verschlüsselung (K_enc)
+	 * @param kmac
+	 *            Session Key für Prüfsummenberechnung (K_mac)
+	 */
+	public abstract void setSessionKeys(byte[] kenc, byte[] kmac);
+
 	public abstract int getBlockSize();
 
 	public abstract byte[] decryptBlock(byte[] key, byte[] z);
@@ -86,56 +151,115 @@ public abstract class AmCryptoProvider {
 	public abstract byte[] getMAC(byte[] data);
 
 	/**
-	 * Verschlüsselt das übergebene ByteArray mit den Parametern die beim @see
-	 * #init(byte[], long) eingestellt wurden.
+	 * Führt die angegebenen Bytes einer MAC-Berechnung zu. Die Berechnung
+	 * beginnt mit dem beim @see #init(byte[], byte[]) eingestellten SSC und
+	 * wird mit @see #macFinal(byte[], int) abgeschlossen.
 	 * 
 	 * @param in
-	 *            ByteArray mit den zu verschlüsselnden Daten
-	 * @return ByteArray mit den entschlüsselten Daten.
-	 * @throws AmCryptoException 
+	 *            Array mit den Daten über die der MAC gebildet werden soll
+	 * @param inOff
+	 *            Offset der Daten in <code>in</code>
+	 * @param len
+	 *            Anzahl der Bytes
 	 */
-	public byte[] encrypt(byte[] in) throws AmCryptoException {
+	public abstract void macUpdate(byte[] in, int inOff, int len);
 
-		ByteArrayInputStream bin = new ByteArrayInputStream(in);
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-
-		int noBytesRead = 0; // number of bytes read from input
-		int noBytesProcessed = 0; // number of bytes processed
+	/**
+	 * Schließt die mit @see #macUpdate(byte[], int, int) begonnene
+	 * MAC-Berechnung ab (inkl. ISO7816d4-Padding) und schreibt den MAC in das
+	 * übergebene Array.
+	 * 
+	 * @param out
+	 *            Array in das der MAC geschrieben wird
+	 * @param outOff
+	 *            Offset ab dem der MAC geschrieben wird
+	 * @return Länge des MAC in Bytes
+	 */
+	public abstract int macFinal(byte[] out, int outOff);
 
-		try {
-			while ((noBytesRead = bin.read(buf)) >= 0) {
-				noBytesProcessed = encryptCipher.processBytes(buf, 0, noBytesRead,
-						obuf, 0);
-				bout.write(obuf, 0, noBytesProcessed);
-			}
-		} catch (DataLengthException e) {
-			throw new AmCryptoException(e);
-		} catch (IllegalStateException e) {
-			throw new AmCryptoException(e);
-		} catch (IOException e) {
-			throw new AmCryptoException(e);
+	/**
+	 * Führt die verbleibenden Bytes des übergebenen Puffers einer MAC-Berechnung
+	 * zu. Die Berechnung beginnt mit dem beim @see #init(byte[], byte[])
+	 * eingestellten SSC und wird mit @see #macFinal(ByteBuffer) abgeschlossen.
+	 * Die Position des Puffers steht danach auf seinem Limit.
+	 * 
+	 * @param in
+	 *            Puffer mit den Daten über die der MAC gebildet werden soll
+	 */
+	public void macUpdate(ByteBuffer in) {
+		if (in.hasArray()) {
+			macUpdate(in.array(), in.arrayOffset() + in.position(), in.remaining());
+			in.position(in.limit());
+			return;
 		}
+		while (in.hasRemaining()) {
+			int len = Math.min(buf.length, in.remaining());
+			in.get(buf, 0, len);
+			macUpdate(buf, 0, len);
+		}
+	}
 
-		try {
-			noBytesProcessed = encryptCipher.doFinal(obuf, 0);
-			bout.write(obuf, 0, noBytesProcessed);
-			
-			bout.flush();
-
-			bin.close();
-			bout.close();
-			return bout.toByteArray();
-		} catch (DataLengthException e) {
-			throw new AmCryptoException(e);
-		} catch (IllegalStateException e) {
-			throw new AmCryptoException(e);
-		} catch (InvalidCipherTextException e) {
-			throw new AmCryptoException(e);
-		} catch (IOException e) {
-			throw new AmCryptoException(e);
+	/**
+	 * Schließt die mit @see #macUpdate(ByteBuffer) begonnene MAC-Berechnung ab
+	 * und schreibt den MAC an die aktuelle Position des Ausgabepuffers.
+	 * 
+	 * @param out
+	 *            Puffer in den der MAC geschrieben wird
+	 * @return Länge des MAC in Bytes
+	 */
+	public int macFinal(ByteBuffer out) {
+		int len = macFinal(obuf, 0);
+		out.put(obuf, 0, len);
+		return len;
+	}
+
+	/**
+	 * Kodiert den SSC rechtsbündig (big endian) in einem Array der Blocklänge
+	 * 
+	 * @param ssc
+	 *            Send Sequence Counter
+	 * @return SSC als Byte-Array der Blocklänge
+	 */
+	protected byte[] encodeSSC(long ssc) {
+		byte[] sscBytes = new byte[getBlockSize()];
+		encodeSSC(ssc, sscBytes, 0);
+		return sscBytes;
+	}
+
+	/**
+	 * Kodiert den SSC rechtsbündig (big endian) auf Blocklänge in das
+	 * übergebene Array
+	 * 
+	 * @param ssc
+	 *            Send Sequence Counter
+	 * @param out
+	 *            Ziel-Array
+	 * @param outOff
+	 *            Offset ab dem ein Block geschrieben wird
+	 */
+	protected void encodeSSC(long ssc, byte[] out, int outOff) {
+		int end = outOff + getBlockSize();
+		for (int i = outOff; i < end - 8; i++) {
+			out[i] = 0;
 		}
+		for (int i = 0; i < 8; i++) {
+			out[end - 1 - i] = (byte) (ssc >>> (8 * i));
+		}
+	}
 
-		
+	/**
+	 * Verschlüsselt das übergebene ByteArray mit den Parametern die beim @see
+	 * #init(byte[], long) eingestellt wurden.
+	 * 
+	 * @param in
+	 *            ByteArray mit den zu verschlüsselnden Daten
+	 * @return ByteArray mit den entschlüsselten Daten.
+	 * @throws AmCryptoException 
+	 */
+	public byte[] encrypt(byte[] in) throws AmCryptoException {
+		byte[] out = new byte[((in.length / getBlockSize()) + 1) * getBlockSize()];
+		encrypt(in, 0, in.length, out, 0);
+		return out;
 	}
 
 	/**
@@ -148,47 +272,211 @@ public abstract class AmCryptoProvider {
 	 * @throws AmCryptoException 
 	 */
 	public byte[] decrypt(byte[] in) throws AmCryptoException {
+		byte[] out = new byte[in.length];
+		int len = decrypt(in, 0, in.length, out, 0);
+		return (len == out.length) ? out : Arrays.copyOf(out, len);
+	}
+
+	/**
+	 * Verschlüsselt <code>len</code> Bytes ab <code>inOff</code> mit den
+	 * Parametern die beim @see #init(byte[], byte[]) eingestellt wurden und
+	 * schreibt das Kryptogramm (inkl. Padding) ab <code>outOff</code> in
+	 * <code>out</code>. Es werden keine Zwischen-Arrays angelegt.
+	 * 
+	 * @param in
+	 *            Array mit den zu verschlüsselnden Daten
+	 * @param inOff
+	 *            Offset der Daten in <code>in</code>
+	 * @param len
+	 *            Länge der Daten
+	 * @param out
+	 *            Array für das Kryptogramm. Es müssen ab <code>outOff</code>
+	 *            mindestens ((len / Blocklänge) + 1) * Blocklänge Bytes frei
+	 *            sein.
+	 * @param outOff
+	 *            Offset ab dem das Kryptogramm geschrieben wird
+	 * @return Länge des Kryptogramms
+	 * @throws AmCryptoException
+	 */
+	public int encrypt(byte[] in, int inOff, int len, byte[] out, int outOff) throws AmCryptoException {
+		return processBytes(encryptCipher, in, inOff, len, out, outOff);
+	}
+
+	/**
+	 * Entschlüsselt <code>len</code> Bytes ab <code>inOff</code> mit den
+	 * Parametern die beim @see #init(byte[], byte[]) eingestellt wurden und
+	 * schreibt die Klartextdaten (ohne Padding) ab <code>outOff</code> in
+	 * <code>out</code>.
+	 * 
+	 * @param in
+	 *            Array mit den verschlüsselten Daten
+	 * @param inOff
+	 *            Offset der Daten in <code>in</code>
+	 * @param len
+	 *            Länge der Daten
+	 * @param out
+	 *            Array für die Klartextdaten. Es müssen ab <code>outOff</code>
+	 *            mindestens <code>len</code> Bytes frei sein.
+	 * @param outOff
+	 *            Offset ab dem die Klartextdaten geschrieben werden
+	 * @return Länge der Klartextdaten
+	 * @throws AmCryptoException
+	 */
+	public int decrypt(byte[] in, int inOff, int len, byte[] out, int outOff) throws AmCryptoException {
+		return processBytes(decryptCipher, in, inOff, len, out, outOff);
+	}
+
+	/**
+	 * Verschlüsselt die verbleibenden Bytes des Eingabepuffers mit den
+	 * Parametern die beim @see #init(byte[], byte[]) eingestellt wurden und
+	 * schreibt das Kryptogramm (inkl. Padding) direkt in den Ausgabepuffer.
+	 * Es werden keine Zwischen-Arrays angelegt.
+	 * 
+	 * @param in
+	 *            Puffer mit den zu verschlüsselnden Daten
+	 * @param out
+	 *            Puffer in den die verschlüsselten Daten geschrieben werden
+	 * @return Anzahl der geschriebenen Bytes
+	 * @throws AmCryptoException
+	 */
+	public int encrypt(ByteBuffer in, ByteBuffer out) throws AmCryptoException {
+		return processBytes(encryptCipher, in, out);
+	}
 
-		ByteArrayInputStream bin = new ByteArrayInputStream(in);
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+	/**
+	 * Entschlüsselt die verbleibenden Bytes des Eingabepuffers mit den
+	 * Parametern die beim @see #init(byte[], byte[]) eingestellt wurden und
+	 * schreibt die Klartextdaten (ohne Padding) direkt in den Ausgabepuffer.
+	 * 
+	 * @param in
+	 *            Puffer mit den verschlüsselten Daten
+	 * @param out
+	 *            Puffer in den die entschlüsselten Daten geschrieben werden
+	 * @return Anzahl der geschriebenen Bytes
+	 * @throws AmCryptoException
+	 */
+	public int decrypt(ByteBuffer in, ByteBuffer out) throws AmCryptoException {
+		return processBytes(decryptCipher, in, out);
+	}
 
-		int noBytesRead = 0; // number of bytes read from input
-		int noBytesProcessed = 0; // number of bytes processed
+	/**
+	 * Entschlüsselt die verbleibenden Bytes des Eingabepuffers blockweise in
+	 * den übergebenen OutputStream. Es wird nur der interne Puffer verwendet,
+	 * der Speicherbedarf ist daher unabhängig von der Datenlänge.
+	 * 
+	 * @param in
+	 *            Puffer mit den verschlüsselten Daten
+	 * @param out
+	 *            Stream in den die entschlüsselten Daten (ohne Padding)
+	 *            geschrieben werden
+	 * @return Anzahl der geschriebenen Bytes
+	 * @throws AmCryptoException
+	 * @throws IOException
+	 */
+	public int decrypt(ByteBuffer in, OutputStream out) throws AmCryptoException, IOException {
+		return decryptTo(in, out, null);
+	}
+
+	/**
+	 * Entschlüsselt die verbleibenden Bytes des Eingabepuffers blockweise in
+	 * den übergebenen Channel. Es wird nur der interne Puffer verwendet, der
+	 * Speicherbedarf ist daher unabhängig von der Datenlänge.
+	 * 
+	 * @param in
+	 *            Puffer mit den verschlüsselten Daten
+	 * @param out
+	 *            Channel in den die entschlüsselten Daten (ohne Padding)
+	 *            geschrieben werden
+	 * @return Anzahl der geschriebenen Bytes
+	 * @throws AmCryptoException
+	 * @throws IOException
+	 */
+	public int decrypt(ByteBuffer in, WritableByteChannel out) throws AmCryptoException, IOException {
+		return decryptTo(in, null, out);
+	}
+
+	private int decryptTo(ByteBuffer in, OutputStream os, WritableByteChannel channel) throws AmCryptoException, IOException {
+
+		int written = 0;
 
 		try {
-			while ((noBytesRead = bin.read(buf)) >= 0) {
-				noBytesProcessed = decryptCipher.processBytes(buf, 0, noBytesRead,
-						obuf, 0);
-				bout.write(obuf, 0, noBytesProcessed);
+			while (in.hasRemaining()) {
+				int noBytesRead = Math.min(buf.length, in.remaining());
+				in.get(buf, 0, noBytesRead);
+				int noBytesProcessed = decryptCipher.processBytes(buf, 0, noBytesRead, obuf, 0);
+				written += writeOut(noBytesProcessed, os, channel);
 			}
+			int noBytesProcessed = decryptCipher.doFinal(obuf, 0);
+			written += writeOut(noBytesProcessed, os, channel);
 		} catch (DataLengthException e) {
 			throw new AmCryptoException(e);
 		} catch (IllegalStateException e) {
 			throw new AmCryptoException(e);
-		} catch (IOException e) {
+		} catch (InvalidCipherTextException e) {
 			throw new AmCryptoException(e);
 		}
-		
-		try {
-			noBytesProcessed = decryptCipher.doFinal(obuf, 0);
 
-			bout.write(obuf, 0, noBytesProcessed);
+		return written;
+	}
 
-			bout.flush();
+	private int writeOut(int length, OutputStream os, WritableByteChannel channel) throws IOException {
+		if (length == 0) return 0;
+		if (os != null) {
+			os.write(obuf, 0, length);
+		} else {
+			if (obufBuffer == null) obufBuffer = ByteBuffer.wrap(obuf);
+			obufBuffer.limit(length);
+			obufBuffer.position(0);
+			while (obufBuffer.hasRemaining()) {
+				channel.write(obufBuffer);
+			}
+		}
+		return length;
+	}
 
-			bin.close();
-			bout.close();
-			return bout.toByteArray();
+	private int processBytes(PaddedBufferedBlockCipher cipher, byte[] in, int inOff, int len, byte[] out, int outOff) throws AmCryptoException {
+		try {
+			int noBytesProcessed = cipher.processBytes(in, inOff, len, out, outOff);
+			return noBytesProcessed + cipher.doFinal(out, outOff + noBytesProcessed);
 		} catch (DataLengthException e) {
 			throw new AmCryptoException(e);
 		} catch (IllegalStateException e) {
 			throw new AmCryptoException(e);
 		} catch (InvalidCipherTextException e) {
 			throw new AmCryptoException(e);
-		} catch (IOException e) {
+		}
+	}
+
+	private int processBytes(PaddedBufferedBlockCipher cipher, ByteBuffer in, ByteBuffer out) throws AmCryptoException {
+
+		if (in.hasArray() && out.hasArray() && in.array() != out.array()) {
+			int len = processBytes(cipher, in.array(), in.arrayOffset() + in.position(), in.remaining(), out.array(),
+					out.arrayOffset() + out.position());
+			in.position(in.limit());
+			out.position(out.position() + len);
+			return len;
+		}
+
+		int start = out.position();
+
+		try {
+			while (in.hasRemaining()) {
+				int noBytesRead = Math.min(buf.length, in.remaining());
+				in.get(buf, 0, noBytesRead);
+				int noBytesProcessed = cipher.processBytes(buf, 0, noBytesRead, obuf, 0);
+				out.put(obuf, 0, noBytesProcessed);
+			}
+			int noBytesProcessed = cipher.doFinal(obuf, 0);
+			out.put(obuf, 0, noBytesProcessed);
+		} catch (DataLengthException e) {
+			throw new AmCryptoException(e);
+		} catch (IllegalStateException e) {
+			throw new AmCryptoException(e);
+		} catch (InvalidCipherTextException e) {
 			throw new AmCryptoException(e);
 		}
 
+		return out.position() - start;
 	}
 
 	/**
@@ -201,15 +489,34 @@ public abstract class AmCryptoProvider {
 	 * @return Das gefüllte Byte-Array.
 	 */
 	public byte[] addPadding(byte[] data) {
-
-		int len = data.length;
-		int nLen = ((len / getBlockSize()) + 1) * getBlockSize();
-		byte[] n = new byte[nLen];
+		byte[] n = new byte[((data.length / getBlockSize()) + 1) * getBlockSize()];
 		System.arraycopy(data, 0, n, 0, data.length);
-		new ISO7816d4Padding().addPadding(n, len);
+		addPadding(n, 0, data.length);
 		return n;
 	}
 
+	/**
+	 * Fügt das ISO7816d4-Padding direkt hinter den Daten in das übergebene
+	 * Array ein.
+	 * 
+	 * @param data
+	 *            Array mit den Daten. Hinter den Daten muss Platz für bis zu
+	 *            einen Block sein.
+	 * @param off
+	 *            Offset der Daten
+	 * @param len
+	 *            Länge der Daten
+	 * @return Länge der Daten inkl. Padding
+	 */
+	public int addPadding(byte[] data, int off, int len) {
+		int paddedLength = ((len / getBlockSize()) + 1) * getBlockSize();
+		data[off + len] = (byte) 0x80;
+		for (int i = off + len + 1; i < off + paddedLength; i++) {
+			data[i] = 0;
+		}
+		return paddedLength;
+	}
+
 	/**
 	 * Entfernt aus dem übergebenen Byte-Array das Padding nach ISO9797-1
 	 * Padding-Methode 2 bzw. ISO7816d4-Padding.
@@ -219,17 +526,29 @@ public abstract class AmCryptoProvider {
 	 * @return Padding-bereinigtes Byte-Array
 	 */
 	public byte[] removePadding(byte[] b) {
-		byte[] rd = null;
-		int i = b.length - 1;
-		do {
-			i--;
-		} while (b[i] == (byte) 0x00);
+		int len = removePadding(b, 0, b.length);
+		return (len == b.length) ? b : Arrays.copyOf(b, len);
+	}
 
-		if (b[i] == (byte) 0x80) {
-			rd = new byte[i];
-			System.arraycopy(b, 0, rd, 0, rd.length);
-			return rd;
+	/**
+	 * Ermittelt die Länge der Daten ohne ISO7816d4-Padding. Das Array wird
+	 * nicht verändert.
+	 * 
+	 * @param data
+	 *            Array mit gepaddeten Daten
+	 * @param off
+	 *            Offset der Daten
+	 * @param len
+	 *            Länge der Daten inkl. Padding
+	 * @return Länge ohne Padding, bzw. <code>len</code> falls kein gültiges
+	 *         Padding gefunden wurde
+	 */
+	public int removePadding(byte[] data, int off, int len) {
+		int i = off + len - 1;
+		while (i >= off && data[i] == (byte) 0x00) {
+			i--;
 		}
-		return b;
+		if (i >= off && data[i] == (byte) 0x80) return i - off;
+		return len;
 	}
 }
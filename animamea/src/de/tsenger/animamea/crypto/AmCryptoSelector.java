@@ -0,0 +1,221 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Wählt für AES und 3DES die schnellste verfügbare Implementierung des
+ * AmCryptoProvider (BouncyCastle oder JCA). Beim ersten Aufruf wird dazu je
+ * Algorithmus ein kurzer Micro-Benchmark über typische SM-Operationen
+ * (Verschlüsselung und MAC einer APDU) ausgeführt. Über die System Properties
+ * {@value #PROPERTY_AES} und {@value #PROPERTY_DES} kann die Auswahl mit den
+ * Werten "bc", "jca" oder "auto" (Voreinstellung) festgelegt werden. Die
+ * JCA-Implementierung wird automatisch nur gewählt, wenn sie für alle bei SM
+ * vorkommenden Schlüssellängen dieselben Ergebnisse wie BouncyCastle liefert.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public final class AmCryptoSelector {
+
+	public static final String PROPERTY_AES = "animamea.crypto.aes";
+	public static final String PROPERTY_DES = "animamea.crypto.des";
+
+	private static final int WARMUP_ROUNDS = 300;
+	private static final int BENCHMARK_ROUNDS = 300;
+	private static final int DATA_LENGTH = 256;
+
+	static Logger logger = Logger.getLogger(AmCryptoSelector.class);
+
+	private static Boolean jcaForAES = null;
+	private static Boolean jcaForDES = null;
+
+	private AmCryptoSelector() {
+	}
+
+	/**
+	 * @return die für AES gewählte Implementierung. Das Ergebnis ist
+	 *         thread-safe und kann von allen Sessions gemeinsam verwendet
+	 *         werden.
+	 */
+	public static AmCryptoAlgorithm getAES() {
+		return useJCAForAES() ? AmCryptoAlgorithm.AES_JCA : AmCryptoAlgorithm.AES_BC;
+	}
+
+	/**
+	 * @return die für 3DES gewählte Implementierung. Das Ergebnis ist
+	 *         thread-safe und kann von allen Sessions gemeinsam verwendet
+	 *         werden.
+	 */
+	public static AmCryptoAlgorithm getDES() {
+		return useJCAForDES() ? AmCryptoAlgorithm.DES_JCA : AmCryptoAlgorithm.DES_BC;
+	}
+
+	/**
+	 * @return neuer Kontext der für AES gewählten Implementierung
+	 */
+	public static AmCryptoProvider createAES() {
+		return getAES().createContext();
+	}
+
+	/**
+	 * @return neuer Kontext der für 3DES gewählten Implementierung
+	 */
+	public static AmCryptoProvider createDES() {
+		return getDES().createContext();
+	}
+
+	private static synchronized boolean useJCAForAES() {
+		if (jcaForAES == null) {
+			// 256 Bit, damit eine eingeschränkte JCE Policy erkannt wird
+			jcaForAES = Boolean.valueOf(select(PROPERTY_AES, AmCryptoAlgorithm.AES_BC.createContext(), AmCryptoAlgorithm.AES_JCA.createContext(), new int[] { 32, 24, 16 }));
+		}
+		return jcaForAES.booleanValue();
+	}
+
+	private static synchronized boolean useJCAForDES() {
+		if (jcaForDES == null) {
+			// 3-Key und 2-Key 3DES
+			jcaForDES = Boolean.valueOf(select(PROPERTY_DES, AmCryptoAlgorithm.DES_BC.createContext(), AmCryptoAlgorithm.DES_JCA.createContext(), new int[] { 24, 16 }));
+		}
+		return jcaForDES.booleanValue();
+	}
+
+	/**
+	 * @param keyLengths
+	 *            Schlüssellängen für den Vergleich, mit der ersten wird der
+	 *            Benchmark ausgeführt
+	 */
+	private static boolean select(String property, AmCryptoProvider bc, AmCryptoProvider jca, int[] keyLengths) {
+
+		String setting = System.getProperty(property, "auto").trim().toLowerCase();
+		if (setting.equals("bc")) return false;
+		if (setting.equals("jca")) return true;
+
+		long bcTime, jcaTime;
+		try {
+			bcTime = benchmark(bc, keyLengths[0]);
+		} catch (Exception e) {
+			logger.warn("BouncyCastle implementation failed in benchmark, using JCA", e);
+			return true;
+		}
+		try {
+			for (int keyLength : keyLengths) {
+				if (!Arrays.equals(checkResult(bc, keyLength), checkResult(jca, keyLength))) {
+					logger.warn(property + ": JCA results differ from BouncyCastle for " + keyLength + " byte keys, using BouncyCastle");
+					return false;
+				}
+			}
+			jcaTime = benchmark(jca, keyLengths[0]);
+		} catch (Exception e) {
+			logger.info("JCA implementation not usable, using BouncyCastle: " + e);
+			return false;
+		}
+
+		logger.info(property + ": BC " + bcTime / 1000 + " µs, JCA " + jcaTime / 1000 + " µs -> " + (jcaTime < bcTime ? "JCA" : "BC"));
+		return jcaTime < bcTime;
+	}
+
+	/**
+	 * Verschlüsselt und entschlüsselt Testdaten und berechnet einen MAC
+	 * 
+	 * @return Chiffrat, entschlüsselte Daten und MAC
+	 */
+	private static byte[] checkResult(AmCryptoProvider crypto, int keyLength) throws AmCryptoException {
+
+		byte[] kenc = new byte[keyLength];
+		byte[] kmac = new byte[keyLength];
+		for (int i = 0; i < keyLength; i++) {
+			kenc[i] = (byte) (0x5A ^ i);
+			kmac[i] = (byte) (0xA5 + 3 * i);
+		}
+		crypto.setSessionKeys(kenc, kmac);
+
+		ByteBuffer plain = ByteBuffer.allocate(DATA_LENGTH - 3);
+		for (int i = 0; i < plain.capacity(); i++) {
+			plain.put(i, (byte) i);
+		}
+		ByteBuffer out = ByteBuffer.allocate(3 * DATA_LENGTH);
+
+		crypto.init(kenc, 1);
+		crypto.encrypt(plain, out);
+
+		ByteBuffer cipher = out.duplicate();
+		cipher.flip();
+		crypto.init(kenc, 1);
+		crypto.decrypt(cipher, out);
+
+		cipher.rewind();
+		crypto.init(kmac, 2);
+		crypto.macUpdate(cipher);
+		crypto.macFinal(out);
+
+		out.flip();
+		byte[] result = new byte[out.remaining()];
+		out.get(result);
+		return result;
+	}
+
+	/**
+	 * Misst die Zeit für Verschlüsseln, Entschlüsseln und MAC einer APDU
+	 * 
+	 * @return Dauer der Messrunden in Nanosekunden
+	 */
+	private static long benchmark(AmCryptoProvider crypto, int keyLength) throws AmCryptoException {
+
+		byte[] kenc = new byte[keyLength];
+		byte[] kmac = new byte[keyLength];
+		for (int i = 0; i < keyLength; i++) {
+			kenc[i] = (byte) i;
+			kmac[i] = (byte) (0xFF - i);
+		}
+		crypto.setSessionKeys(kenc, kmac);
+
+		ByteBuffer plain = ByteBuffer.allocate(DATA_LENGTH);
+		ByteBuffer cipher = ByteBuffer.allocate(DATA_LENGTH + crypto.getBlockSize());
+		ByteBuffer mac = ByteBuffer.allocate(crypto.getBlockSize());
+
+		long start = 0;
+		for (int i = 0; i < WARMUP_ROUNDS + BENCHMARK_ROUNDS; i++) {
+			if (i == WARMUP_ROUNDS) start = System.nanoTime();
+
+			plain.clear();
+			cipher.clear();
+			crypto.init(kenc, i);
+			crypto.encrypt(plain, cipher);
+
+			cipher.flip();
+			plain.clear();
+			crypto.init(kenc, i);
+			crypto.decrypt(cipher, plain);
+
+			cipher.rewind();
+			mac.clear();
+			crypto.init(kmac, i);
+			crypto.macUpdate(cipher);
+			crypto.macFinal(mac);
+		}
+		return System.nanoTime() - start;
+	}
+}
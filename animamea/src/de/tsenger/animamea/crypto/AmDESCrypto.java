@@ -19,11 +19,9 @@
 
 package de.tsenger.animamea.crypto;
 
+import java.util.Arrays;
+
 import org.bouncycastle.crypto.BlockCipher;
-import org.bouncycastle.crypto.Mac;
-import org.bouncycastle.crypto.engines.DESEngine;
-import org.bouncycastle.crypto.engines.DESedeEngine;
-import org.bouncycastle.crypto.macs.ISO9797Alg3Mac;
 import org.bouncycastle.crypto.modes.CBCBlockCipher;
 import org.bouncycastle.crypto.paddings.ISO7816d4Padding;
 import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
@@ -36,11 +34,22 @@ import org.bouncycastle.crypto.params.ParametersWithIV;
  */
 public class AmDESCrypto extends AmCryptoProvider {
 
-	public static int blockSize = 8;
+	public static final int blockSize = 8;
 	private byte[] keyBytes;
 	private KeyParameter keyP = null;
 	private byte[] IV = null;
 	private byte[] sscBytes = null;
+	private RetailMac mac = null;
+	private RetailMac keyMac = null;
+
+	// Für die Dauer einer SM-Session vorberechnete Kontexte
+	private byte[] sessionKenc = null;
+	private byte[] sessionKmac = null;
+	private KeyParameter sessionEncKey = null;
+	private PaddedBufferedBlockCipher sessionEncryptCipher = null;
+	private PaddedBufferedBlockCipher sessionDecryptCipher = null;
+	private RetailMac sessionMac = null;
+	private boolean useSessionMac = false;
 
 	private void initCiphers(byte[] key, byte[] iv) {
 		// get the keyBytes
@@ -52,11 +61,10 @@ public class AmDESCrypto extends AmCryptoProvider {
 		System.arraycopy(iv, 0, IV, 0, iv.length);
 
 		keyP = new KeyParameter(keyBytes);
+		keyMac = null;
 
-		encryptCipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(
-				new DESedeEngine()), new ISO7816d4Padding());
-		decryptCipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(
-				new DESedeEngine()), new ISO7816d4Padding());
+		encryptCipher = createCBCCipher();
+		decryptCipher = createCBCCipher();
 
 		// create the IV parameter
 		ParametersWithIV parameterIV = new ParametersWithIV(keyP, IV);
@@ -72,8 +80,47 @@ public class AmDESCrypto extends AmCryptoProvider {
 	 */
 	@Override
 	public void init(byte[] keyBytes, byte[] ssc) {
-		sscBytes = ssc.clone();
-		initCiphers(keyBytes, new byte[blockSize]);
+		if (sscBytes == null || sscBytes.length != ssc.length) sscBytes = new byte[ssc.length];
+		System.arraycopy(ssc, 0, sscBytes, 0, ssc.length);
+		mac = null;
+		useSessionMac = false;
+
+		if (sessionKenc != null && Arrays.equals(keyBytes, sessionKenc)) {
+			// IV ist bei 3DES immer 0, reset() stellt diesen wieder her
+			keyP = sessionEncKey;
+			encryptCipher = sessionEncryptCipher;
+			decryptCipher = sessionDecryptCipher;
+			encryptCipher.reset();
+			decryptCipher.reset();
+		} else if (sessionKmac != null && Arrays.equals(keyBytes, sessionKmac)) {
+			useSessionMac = true;
+			encryptCipher = null;
+			decryptCipher = null;
+		} else {
+			initCiphers(keyBytes, new byte[blockSize]);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.tsenger.animamea.crypto.AmCryptoProvider#setSessionKeys(byte[], byte[])
+	 */
+	@Override
+	public void setSessionKeys(byte[] kenc, byte[] kmac) {
+
+		sessionKenc = kenc.clone();
+		sessionKmac = kmac.clone();
+
+		sessionEncKey = new KeyParameter(sessionKenc);
+		ParametersWithIV parameterIV = new ParametersWithIV(sessionEncKey, new byte[blockSize]);
+
+		sessionEncryptCipher = createCBCCipher();
+		sessionDecryptCipher = createCBCCipher();
+		sessionEncryptCipher.init(true, parameterIV);
+		sessionDecryptCipher.init(false, parameterIV);
+
+		sessionMac = new RetailMac(sessionKmac);
 	}
 
 	/*
@@ -84,23 +131,70 @@ public class AmDESCrypto extends AmCryptoProvider {
 	@Override
 	public byte[] getMAC(byte[] data) {
 
-		byte[] n = new byte[8 + data.length];
-		System.arraycopy(sscBytes, 0, n, 0, 8);
-		System.arraycopy(data, 0, n, 8, data.length);
+		mac = null;
+		macUpdate(data, 0, data.length);
+		byte[] out = new byte[8];
+		macFinal(out, 0);
 
-		BlockCipher cipher = new DESEngine();
-		Mac mac = new ISO9797Alg3Mac(cipher, 64, new ISO7816d4Padding());
+		return out;
+	}
 
-		ParametersWithIV parameterIV = new ParametersWithIV(keyP, IV);
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.tsenger.animamea.crypto.AmCryptoProvider#macUpdate(byte[], int, int)
+	 */
+	@Override
+	public void macUpdate(byte[] in, int inOff, int len) {
 
-		mac.init(parameterIV);
-		mac.update(n, 0, n.length);
+		if (mac == null) startMAC();
 
-		byte[] out = new byte[8];
+		mac.update(in, inOff, len);
+	}
 
-		mac.doFinal(out, 0);
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.tsenger.animamea.crypto.AmCryptoProvider#macFinal(byte[], int)
+	 */
+	@Override
+	public int macFinal(byte[] out, int outOff) {
 
-		return out;
+		if (mac == null) startMAC();
+
+		// Das Padding übernimmt RetailMac
+		int len = mac.doFinal(out, outOff);
+		mac = null;
+
+		return len;
+	}
+
+	/**
+	 * Startet eine neue MAC-Berechnung über SSC||Daten
+	 */
+	private void startMAC() {
+		mac = getMacContext();
+		mac.update(sscBytes, 0, sscBytes.length);
+	}
+
+	/**
+	 * Liefert einen initialisierten Retail-MAC-Kontext für den bei init()
+	 * angegebenen Schlüssel. Für K_mac der Session wird der vorberechnete
+	 * Kontext wiederverwendet, für andere Schlüssel wird er beim ersten Aufruf
+	 * erzeugt und bis zum nächsten Schlüsselwechsel behalten.
+	 */
+	private RetailMac getMacContext() {
+		if (useSessionMac) {
+			sessionMac.reset();
+			return sessionMac;
+		}
+		if (keyMac == null) {
+			keyMac = new RetailMac();
+			keyMac.init(new ParametersWithIV(keyP, IV));
+		} else {
+			keyMac.reset();
+		}
+		return keyMac;
 	}
 
 	/**
@@ -114,9 +208,9 @@ public class AmDESCrypto extends AmCryptoProvider {
 	 */
 	@Override
 	public byte[] decryptBlock(byte[] key, byte[] z) {
-		byte[] s = new byte[16];
+		byte[] s = new byte[blockSize];
 		KeyParameter encKey = new KeyParameter(key);
-		BlockCipher cipher = new DESedeEngine();
+		BlockCipher cipher = createEngine();
 		cipher.init(false, encKey);
 		cipher.processBlock(z, 0, s, 0);
 		return s;
@@ -129,11 +223,7 @@ public class AmDESCrypto extends AmCryptoProvider {
 	 */
 	@Override
 	public byte[] getMAC(byte[] key, byte[] data) {
-		BlockCipher cipher = new DESEngine();
-		Mac mac = new ISO9797Alg3Mac(cipher, 64, new ISO7816d4Padding());
-
-		KeyParameter keyP = new KeyParameter(key);
-		mac.init(keyP);
+		RetailMac mac = new RetailMac(key);
 		mac.update(data, 0, data.length);
 
 		byte[] out = new byte[8];
@@ -143,6 +233,34 @@ public class AmDESCrypto extends AmCryptoProvider {
 		return out;
 	}
 
+	/**
+	 * Erzeugt eine 3DES-Engine für einzelne Blöcke (ECB)
+	 * 
+	 * @return 3DES-Engine
+	 */
+	protected BlockCipher createEngine() {
+		return new TripleDESEngine();
+	}
+
+	/**
+	 * Erzeugt eine 3DES-Engine im CBC-Modus mit ISO7816d4-Padding
+	 * 
+	 * @return 3DES-CBC-Engine
+	 */
+	protected PaddedBufferedBlockCipher createCBCCipher() {
+		return new PaddedBufferedBlockCipher(new CBCBlockCipher(createEngine()), new ISO7816d4Padding());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.tsenger.animamea.crypto.AmCryptoProvider#getAlgorithm()
+	 */
+	@Override
+	public AmCryptoAlgorithm getAlgorithm() {
+		return AmCryptoAlgorithm.DES_BC;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -0,0 +1,55 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.crypto;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+
+/**
+ * 3DES-Implementierung des AmCryptoProvider auf Basis von
+ * javax.crypto.Cipher (DESede/CBC/NoPadding). Der Retail-MAC wird weiterhin
+ * mit {@link RetailMac} berechnet.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public class AmDESJCACrypto extends AmDESCrypto {
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.tsenger.animamea.crypto.AmCryptoProvider#getAlgorithm()
+	 */
+	@Override
+	public AmCryptoAlgorithm getAlgorithm() {
+		return AmCryptoAlgorithm.DES_JCA;
+	}
+
+	@Override
+	protected BlockCipher createEngine() {
+		return new JCABlockCipher("DESede");
+	}
+
+	@Override
+	protected PaddedBufferedBlockCipher createCBCCipher() {
+		return new JCAPaddedBlockCipher("DESede");
+	}
+
+}
@@ -0,0 +1,129 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.crypto;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+import org.bouncycastle.crypto.params.DHParameters;
+
+/**
+ * Diffie-Hellman-Berechnungen über einer Gruppe (p, g, q). Private Schlüssel
+ * werden im Intervall [1, q-1] gewählt, d.h. mit der Bitlänge der
+ * Untergruppenordnung (160, 224 bzw. 256 Bit bei den standardisierten
+ * Gruppen) statt der Länge von p. Das verkürzt jede Exponentiation etwa um
+ * den Faktor p/q. Ist q unbekannt, wird ein Exponent mit der Bitlänge von p
+ * verwendet.
+ * 
+ * Die Exponentiation nutzt BigInteger.modPow, das für ungerade Moduli in
+ * Montgomery-Darstellung rechnet. Instanzen sind unveränderlich und
+ * thread-safe.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public class DHEngine {
+
+	private static final BigInteger TWO = BigInteger.valueOf(2);
+
+	private final BigInteger p;
+	private final BigInteger g;
+	private final BigInteger q;
+	private final BigInteger pMinusOne;
+
+	/**
+	 * Konstruktor
+	 * 
+	 * @param dhParameters
+	 *            Domain Parameter der Gruppe
+	 */
+	public DHEngine(DHParameters dhParameters) {
+		p = dhParameters.getP();
+		g = dhParameters.getG();
+		q = dhParameters.getQ();
+		pMinusOne = p.subtract(BigInteger.ONE);
+	}
+
+	/**
+	 * Wählt einen zufälligen privaten Schlüssel
+	 * 
+	 * @param random
+	 *            Zufallszahlengenerator
+	 * @return x aus [1, q-1] bzw. [1, p-2] falls q unbekannt ist
+	 */
+	public BigInteger generatePrivateKey(SecureRandom random) {
+		BigInteger limit = (q != null) ? q : pMinusOne;
+		BigInteger x;
+		do {
+			x = new BigInteger(limit.bitLength(), random);
+		} while (x.signum() == 0 || x.compareTo(limit) >= 0);
+		return x;
+	}
+
+	/**
+	 * Berechnet den öffentlichen Schlüssel g^x mod p
+	 * 
+	 * @param x
+	 *            privater Schlüssel
+	 * @return öffentlicher Schlüssel
+	 */
+	public BigInteger getPublicKey(BigInteger x) {
+		return g.modPow(x, p);
+	}
+
+	/**
+	 * Berechnet base^x mod p für einen von der Gegenseite erhaltenen Wert
+	 * 
+	 * @param base
+	 *            öffentlicher Wert der Gegenseite
+	 * @param x
+	 *            Exponent
+	 * @return base^x mod p
+	 * @throws IllegalArgumentException
+	 *             falls base nicht in [2, p-2] liegt
+	 */
+	public BigInteger modPow(BigInteger base, BigInteger x) {
+		if (base.compareTo(TWO) < 0 || base.compareTo(pMinusOne) >= 0)
+			throw new IllegalArgumentException("DH public value out of range");
+		return base.modPow(x, p);
+	}
+
+	/**
+	 * Berechnet (a * b) mod p
+	 */
+	public BigInteger multiply(BigInteger a, BigInteger b) {
+		return a.multiply(b).mod(p);
+	}
+
+	public BigInteger getP() {
+		return p;
+	}
+
+	public BigInteger getG() {
+		return g;
+	}
+
+	/**
+	 * @return Ordnung der Untergruppe oder <code>null</code> falls unbekannt
+	 */
+	public BigInteger getQ() {
+		return q;
+	}
+}
@@ -0,0 +1,215 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.crypto;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bouncycastle.jce.spec.ECParameterSpec;
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+
+/**
+ * Skalarmultiplikation k*G mit festem Basispunkt G nach dem Comb-Verfahren
+ * (Lim/Lee). Für jeden Basispunkt wird einmalig eine Tabelle mit 2^w - 1
+ * affinen Punkten berechnet; eine Multiplikation benötigt danach nur noch
+ * ceil(bits/w) Verdopplungen und höchstens ebenso viele Additionen. Das ist
+ * gegenüber der generischen Multiplikation von BouncyCastle etwa um den Faktor
+ * 3 schneller.
+ * 
+ * Die Tabellen werden bei der ersten Verwendung der Domain Parameter erzeugt
+ * und danach von allen Sessions gemeinsam (nur lesend) benutzt. Die Klasse ist
+ * thread-safe.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public final class FixedBaseMultiplier {
+
+	/** Maximale Anzahl gespeicherter Tabellen (eine pro Kurve) */
+	private static final int MAX_TABLES = 32;
+
+	/** Fensterbreite der w-NAF-Darstellung für variable Punkte */
+	private static final int WNAF_WIDTH = 5;
+
+	private static final LinkedHashMap<ECParameterSpec, FixedBaseMultiplier> tables = new LinkedHashMap<ECParameterSpec, FixedBaseMultiplier>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ECParameterSpec, FixedBaseMultiplier> eldest) {
+			return size() > MAX_TABLES;
+		}
+	};
+
+	private final ECCurve curve;
+	private final BigInteger order;
+	private final int width;
+	private final int spacing;
+	private final ECPoint[] comb;
+
+	/**
+	 * Liefert den Multiplizierer für den Basispunkt der angegebenen Domain
+	 * Parameter. Die Tabelle wird beim ersten Aufruf berechnet.
+	 * 
+	 * @param ecParameterSpec
+	 *            EC-Domain-Parameter mit Basispunkt G und Ordnung n
+	 * @return Multiplizierer für G
+	 */
+	public static FixedBaseMultiplier getInstance(ECParameterSpec ecParameterSpec) {
+		synchronized (tables) {
+			FixedBaseMultiplier fbm = tables.get(ecParameterSpec);
+			if (fbm == null) {
+				fbm = new FixedBaseMultiplier(ecParameterSpec.getG(), ecParameterSpec.getN());
+				tables.put(ecParameterSpec, fbm);
+			}
+			return fbm;
+		}
+	}
+
+	private FixedBaseMultiplier(ECPoint g, BigInteger n) {
+		curve = g.getCurve();
+		order = n;
+		width = (n.bitLength() > 256) ? 7 : 6;
+		spacing = (n.bitLength() + width - 1) / width;
+
+		// basis[j] = 2^(j*spacing) * G
+		ECPoint[] basis = new ECPoint[width];
+		basis[0] = g.normalize();
+		for (int j = 1; j < width; j++) {
+			ECPoint p = basis[j - 1];
+			for (int i = 0; i < spacing; i++) {
+				p = p.twice();
+			}
+			basis[j] = p.normalize();
+		}
+
+		// comb[i] = Summe der basis[j] für alle in i gesetzten Bits j
+		comb = new ECPoint[1 << width];
+		comb[0] = curve.getInfinity();
+		for (int j = 0; j < width; j++) {
+			int bit = 1 << j;
+			for (int i = 0; i < bit; i++) {
+				comb[bit + i] = comb[i].add(basis[j]);
+			}
+		}
+		// affine Punkte, damit in multiply() gemischt addiert wird
+		curve.normalizeAll(comb);
+	}
+
+	/**
+	 * Berechnet k*G
+	 * 
+	 * @param k
+	 *            Skalar (wird modulo n reduziert)
+	 * @return k*G, nicht normalisiert
+	 */
+	public ECPoint multiply(BigInteger k) {
+		k = reduce(k);
+
+		ECPoint r = curve.getInfinity();
+		for (int col = spacing - 1; col >= 0; col--) {
+			r = r.twice();
+			int index = combIndex(k, col);
+			if (index != 0) r = r.add(comb[index]);
+		}
+		return r;
+	}
+
+	/**
+	 * Berechnet k*G + l*Q mit einer gemeinsamen Folge von Verdopplungen
+	 * (Straus/Shamir). Für G wird die Comb-Tabelle verwendet, für Q eine
+	 * w-NAF-Darstellung von l mit vorberechneten ungeraden Vielfachen von Q.
+	 * 
+	 * @param k
+	 *            Skalar für G (wird modulo n reduziert)
+	 * @param q
+	 *            beliebiger Punkt auf der Kurve
+	 * @param l
+	 *            Skalar für Q (wird modulo n reduziert)
+	 * @return k*G + l*Q, nicht normalisiert
+	 */
+	public ECPoint sumOfMultiplies(BigInteger k, ECPoint q, BigInteger l) {
+		k = reduce(k);
+		l = reduce(l);
+
+		int[] naf = windowNaf(l, WNAF_WIDTH);
+
+		// Q, 3Q, 5Q, ... affin, damit gemischt addiert wird
+		ECPoint[] odd = new ECPoint[1 << (WNAF_WIDTH - 2)];
+		ECPoint twiceQ = q.twice();
+		odd[0] = q;
+		for (int i = 1; i < odd.length; i++) {
+			odd[i] = odd[i - 1].add(twiceQ);
+		}
+		curve.normalizeAll(odd);
+
+		ECPoint r = curve.getInfinity();
+		for (int i = Math.max(naf.length, spacing) - 1; i >= 0; i--) {
+			r = r.twice();
+			if (i < spacing) {
+				int index = combIndex(k, i);
+				if (index != 0) r = r.add(comb[index]);
+			}
+			if (i < naf.length && naf[i] != 0) {
+				int digit = naf[i];
+				ECPoint p = odd[Math.abs(digit) >> 1];
+				r = r.add((digit > 0) ? p : p.negate());
+			}
+		}
+		return r;
+	}
+
+	private BigInteger reduce(BigInteger k) {
+		if (k.signum() < 0 || k.bitLength() > order.bitLength()) k = k.mod(order);
+		return k;
+	}
+
+	private int combIndex(BigInteger k, int col) {
+		int index = 0;
+		for (int j = width - 1; j >= 0; j--) {
+			index <<= 1;
+			if (k.testBit(j * spacing + col)) index |= 1;
+		}
+		return index;
+	}
+
+	/**
+	 * Berechnet die w-NAF-Darstellung von k (niederwertigste Stelle zuerst).
+	 * Alle Stellen sind 0 oder ungerade mit |d| < 2^(w-1).
+	 */
+	private static int[] windowNaf(BigInteger k, int w) {
+		int[] naf = new int[k.bitLength() + 1];
+		int mask = (1 << w) - 1;
+		int length = 0;
+		for (int i = 0; k.signum() > 0; i++) {
+			if (k.testBit(0)) {
+				int digit = k.intValue() & mask;
+				if (digit >= (1 << (w - 1))) digit -= (1 << w);
+				naf[i] = digit;
+				k = k.subtract(BigInteger.valueOf(digit));
+			}
+			k = k.shiftRight(1);
+			length = i + 1;
+		}
+		return (length == naf.length) ? naf : Arrays.copyOf(naf, length);
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * Stellt eine javax.crypto.Cipher-Instanz im ECB-Modus als
+ * BouncyCastle-BlockCipher bereit, z.B. als Engine für CMac. Damit werden die
+ * JCA-Implementierungen der JVM genutzt, die z.B. AES-NI verwenden.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public class JCABlockCipher implements BlockCipher {
+
+	private final Cipher cipher;
+	private final String algorithm;
+
+	private SecretKeySpec key = null;
+
+	/**
+	 * @param algorithm
+	 *            JCA-Algorithmus, z.B. "AES" oder "DESede"
+	 */
+	public JCABlockCipher(String algorithm) {
+		this.algorithm = algorithm;
+		try {
+			cipher = Cipher.getInstance(algorithm + "/ECB/NoPadding");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+		if (!(params instanceof KeyParameter))
+			throw new IllegalArgumentException("invalid parameter passed to " + algorithm + " init - " + params.getClass().getName());
+
+		key = createKey(((KeyParameter) params).getKey(), algorithm);
+		try {
+			cipher.init(forEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key);
+		} catch (GeneralSecurityException e) {
+			// z.B. AES-256 ohne Unlimited Strength Policy
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Erzeugt die JCA-Schlüsselspezifikation. Anders als BouncyCastle nimmt
+	 * der JCA-Provider für DESede nur 24 Byte lange Schlüssel an, ein
+	 * 2-Key-3DES-Schlüssel K1||K2 wird daher zu K1||K2||K1 erweitert.
+	 */
+	static SecretKeySpec createKey(byte[] key, String algorithm) {
+		if (algorithm.equals("DESede") && key.length == 16) {
+			byte[] key3 = new byte[24];
+			System.arraycopy(key, 0, key3, 0, 16);
+			System.arraycopy(key, 0, key3, 16, 8);
+			SecretKeySpec spec = new SecretKeySpec(key3, algorithm);
+			Arrays.fill(key3, (byte) 0);
+			return spec;
+		}
+		return new SecretKeySpec(key, algorithm);
+	}
+
+	@Override
+	public String getAlgorithmName() {
+		return algorithm;
+	}
+
+	@Override
+	public int getBlockSize() {
+		return cipher.getBlockSize();
+	}
+
+	@Override
+	public int processBlock(byte[] in, int inOff, byte[] out, int outOff) throws DataLengthException, IllegalStateException {
+		int blockSize = getBlockSize();
+		if (key == null) throw new IllegalStateException(algorithm + " not initialised");
+		if (inOff + blockSize > in.length) throw new DataLengthException("input buffer too short");
+		if (outOff + blockSize > out.length) throw new DataLengthException("output buffer too short");
+		try {
+			return cipher.update(in, inOff, blockSize, out, outOff);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void reset() {
+		// ECB hat keinen Zustand zwischen den Blöcken
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.paddings.ISO7816d4Padding;
+import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/**
+ * CBC-Verschlüsselung mit ISO7816d4-Padding auf Basis von
+ * javax.crypto.Cipher (CBC/NoPadding). Im Gegensatz zu einem
+ * PaddedBufferedBlockCipher über einer BlockCipher-Engine werden die Daten
+ * nicht blockweise, sondern in einem Aufruf an die JCA übergeben, so dass
+ * deren Intrinsics (z.B. AES-NI) wirksam werden. Beim Entschlüsseln wird der
+ * jeweils letzte Block bis doFinal() zurückgehalten, um das Padding zu
+ * entfernen.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public class JCAPaddedBlockCipher extends PaddedBufferedBlockCipher {
+
+	private final Cipher jcaCipher;
+	private final String algorithm;
+	private final int blockSize;
+
+	private SecretKeySpec key = null;
+	private byte[] iv = null;
+	private boolean encrypting;
+
+	private long inputLength = 0; // für das Padding beim Verschlüsseln
+	private final byte[] lastBlock; // zurückgehaltener Klartextblock beim Entschlüsseln
+	private boolean hasLastBlock = false;
+
+	/**
+	 * @param algorithm
+	 *            JCA-Algorithmus, z.B. "AES" oder "DESede"
+	 */
+	public JCAPaddedBlockCipher(String algorithm) {
+		super(new JCABlockCipher(algorithm), new ISO7816d4Padding());
+		this.algorithm = algorithm;
+		try {
+			jcaCipher = Cipher.getInstance(algorithm + "/CBC/NoPadding");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		blockSize = jcaCipher.getBlockSize();
+		lastBlock = new byte[blockSize];
+	}
+
+	/**
+	 * Initialisiert die Verschlüsselung. Bei ParametersWithIV ohne Schlüssel
+	 * wird nur der IV gewechselt.
+	 */
+	@Override
+	public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+		encrypting = forEncryption;
+		if (params instanceof ParametersWithIV) {
+			ParametersWithIV ivParam = (ParametersWithIV) params;
+			iv = ivParam.getIV();
+			params = ivParam.getParameters();
+		} else {
+			iv = new byte[blockSize];
+		}
+		if (params instanceof KeyParameter) {
+			key = JCABlockCipher.createKey(((KeyParameter) params).getKey(), algorithm);
+		} else if (params != null) {
+			throw new IllegalArgumentException("invalid parameter passed to " + algorithm + " init - " + params.getClass().getName());
+		}
+		if (key == null) throw new IllegalArgumentException("no key set for " + algorithm);
+		reset();
+	}
+
+	@Override
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	@Override
+	public int getUpdateOutputSize(int len) {
+		return len + blockSize;
+	}
+
+	@Override
+	public int getOutputSize(int len) {
+		return len + 2 * blockSize;
+	}
+
+	@Override
+	public int processByte(byte in, byte[] out, int outOff) throws DataLengthException, IllegalStateException {
+		return processBytes(new byte[] { in }, 0, 1, out, outOff);
+	}
+
+	@Override
+	public int processBytes(byte[] in, int inOff, int len, byte[] out, int outOff) throws DataLengthException, IllegalStateException {
+		if (len < 0) throw new IllegalArgumentException("Can't have a negative input length!");
+		try {
+			if (encrypting) {
+				inputLength += len;
+				return jcaCipher.update(in, inOff, len, out, outOff);
+			}
+
+			// Entschlüsseln: zurückgehaltenen Block ausgeben, neuen letzten Block zurückhalten
+			int written = 0;
+			if (hasLastBlock) {
+				if (outOff + blockSize > out.length) throw new DataLengthException("output buffer too short");
+				System.arraycopy(lastBlock, 0, out, outOff, blockSize);
+				written = blockSize;
+			}
+			int n = jcaCipher.update(in, inOff, len, out, outOff + written);
+			if (n > 0) {
+				System.arraycopy(out, outOff + written + n - blockSize, lastBlock, 0, blockSize);
+				hasLastBlock = true;
+				return written + n - blockSize;
+			}
+			// noch kein vollständiger neuer Block, bisherigen Block weiter zurückhalten
+			return 0;
+		} catch (GeneralSecurityException e) {
+			throw new DataLengthException(e.getMessage());
+		}
+	}
+
+	@Override
+	public int doFinal(byte[] out, int outOff) throws DataLengthException, IllegalStateException, InvalidCipherTextException {
+		try {
+			if (encrypting) {
+				int padLength = blockSize - (int) (inputLength % blockSize);
+				byte[] pad = new byte[padLength];
+				pad[0] = (byte) 0x80;
+				return jcaCipher.doFinal(pad, 0, padLength, out, outOff);
+			}
+
+			if (jcaCipher.getOutputSize(0) != 0 || !hasLastBlock)
+				throw new DataLengthException("last block incomplete in decryption");
+
+			int i = blockSize - 1;
+			while (i >= 0 && lastBlock[i] == 0) i--;
+			if (i < 0 || lastBlock[i] != (byte) 0x80)
+				throw new InvalidCipherTextException("pad block corrupted");
+
+			System.arraycopy(lastBlock, 0, out, outOff, i);
+			return i;
+		} catch (GeneralSecurityException e) {
+			throw new DataLengthException(e.getMessage());
+		} finally {
+			reset();
+		}
+	}
+
+	/**
+	 * Setzt den IV auf den Wert aus init() zurück
+	 */
+	@Override
+	public void reset() {
+		inputLength = 0;
+		hasLastBlock = false;
+		if (key == null) return;
+		try {
+			jcaCipher.init(encrypting ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+		} catch (GeneralSecurityException e) {
+			// z.B. AES-256 ohne Unlimited Strength Policy
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
@@ -19,7 +19,10 @@
 
 package de.tsenger.animamea.crypto;
 
+import java.util.Arrays;
+
 import org.apache.log4j.Logger;
+import org.bouncycastle.crypto.Digest;
 import org.bouncycastle.crypto.digests.SHA1Digest;
 import org.bouncycastle.crypto.digests.SHA256Digest;
 
@@ -31,7 +34,14 @@ public class KeyDerivationFunction {
 
 	static Logger logger = Logger.getLogger(KeyDerivationFunction.class);
 	
-	private byte[] mergedData = null;
+	private final byte[] K;
+	private final byte[] r;
+	private int c = 0;
+
+	// Zustand des Digest nach K||r, wird für jeden Zähler c kopiert
+	private SHA1Digest sha1Prefix = null;
+	private SHA256Digest sha256Prefix = null;
+	private final byte[] checksum = new byte[32];
 
 	/**
 	 * Constants that help in determining whether or not a byte array is parity
@@ -93,17 +103,7 @@ public class KeyDerivationFunction {
 	 *             c must be 1, 2 or 3
 	 */
 	public KeyDerivationFunction(byte[] K, int c)  {
-
-		if (c <= 0 || c > 3)
-			throw new IllegalArgumentException("c must be 1, 2 or 3!");
-
-		byte[] cBytes = intToByteArray(c);
-		//logger.info("K: " + HexString.bufferToHex(K));
-
-		mergedData = new byte[K.length + cBytes.length];
-		System.arraycopy(K, 0, mergedData, 0, K.length);
-		System.arraycopy(cBytes, 0, mergedData, K.length, cBytes.length);
-		//logger.info("MERGE DATA: " + HexString.bufferToHex(mergedData));
+		this(K, null, c);
 	}
 
 	/**
@@ -124,47 +124,129 @@ public class KeyDerivationFunction {
 	 */
 	public KeyDerivationFunction(byte[] K, byte[] r, int c) throws IllegalArgumentException {
 
-		if (c <= 0 || c > 3)
-			throw new IllegalArgumentException("c must be 1, 2 or 3!");
-
-		byte[] cBytes = intToByteArray(c);
-
-		mergedData = new byte[K.length + +r.length + cBytes.length];
-		System.arraycopy(K, 0, mergedData, 0, K.length);
-		System.arraycopy(r, 0, mergedData, K.length, r.length);
-		System.arraycopy(cBytes, 0, mergedData, K.length + r.length, cBytes.length);
+		this(K, r);
+		checkCounter(c);
+		this.c = c;
 	}
 
 	/**
-	 * Erzeugt 3DES Schlüssel
+	 * Constructor für die Ableitung mehrerer Schlüssel aus demselben K (siehe
+	 * {@link #deriveKey(int, int, byte[], int)} und
+	 * {@link #deriveSessionKeys(int, byte[], byte[])}).
 	 * 
-	 * @return 112bit-3DES-Schlüssel in 24 Bytes mit korrekten Parity-Bits
+	 * @param K
+	 *            The shared secret Value (z.B. PIN, CAN, PUK oder abgeleitete
+	 *            MRZ siehe BSI TR-03110 Tabelle A.4)
 	 */
-	public byte[] getDESedeKey() {
-
-		byte[] checksum = new byte[20];
-
-		SHA1Digest sha1 = new SHA1Digest();
-		sha1.update(mergedData, 0, mergedData.length);
-		sha1.doFinal(checksum, 0);
+	public KeyDerivationFunction(byte[] K) {
+		this(K, (byte[]) null);
+	}
 
-		byte[] ka = new byte[8];
-		byte[] kb = new byte[8];
+	/**
+	 * Constructor für die Ableitung mehrerer Schlüssel aus demselben K||r.
+	 * K||r wird je Hashfunktion nur einmal verarbeitet, für jeden Zähler c wird
+	 * anschließend nur der Zustand des Digest kopiert. K und r dürfen
+	 * während der Verwendung nicht verändert werden.
+	 * 
+	 * @param K
+	 *            The shared secret Value
+	 * @param r
+	 *            a nonce r oder <code>null</code>
+	 */
+	public KeyDerivationFunction(byte[] K, byte[] r) {
+		this.K = K;
+		this.r = r;
+	}
 
-		System.arraycopy(checksum, 0, ka, 0, ka.length);
-		System.arraycopy(checksum, 8, kb, 0, kb.length);
+	/**
+	 * Liefert die Länge des Schlüssels in Bytes
+	 * 
+	 * @param keyLength
+	 *            Schlüssellänge in Bit (112, 128, 192 oder 256)
+	 * @return Länge des Schlüssels in Bytes (24 für 3DES)
+	 */
+	public static int getKeySize(int keyLength) {
+		switch (keyLength) {
+		case 112:
+			return 24;
+		case 128:
+			return 16;
+		case 192:
+			return 24;
+		case 256:
+			return 32;
+		default:
+			throw new IllegalArgumentException("Unsupported key length: " + keyLength);
+		}
+	}
 
-		// Adjust Parity-Bits
-		adjustParity(ka, 0);
-		adjustParity(kb, 0);
+	/**
+	 * Leitet K_enc (c=1) und K_mac (c=2) in einem Durchgang aus dem
+	 * gemeinsamen Präfix K||r ab.
+	 * 
+	 * @param keyLength
+	 *            Schlüssellänge in Bit (112, 128, 192 oder 256)
+	 * @param kenc
+	 *            Array für K_enc mit mindestens {@link #getKeySize(int)} Bytes
+	 * @param kmac
+	 *            Array für K_mac mit mindestens {@link #getKeySize(int)} Bytes
+	 */
+	public void deriveSessionKeys(int keyLength, byte[] kenc, byte[] kmac) {
+		deriveKey(1, keyLength, kenc, 0);
+		deriveKey(2, keyLength, kmac, 0);
+	}
 
-		byte[] key = new byte[24];
-		System.arraycopy(ka, 0, key, 0, 8);
-		System.arraycopy(kb, 0, key, 8, 8);
-		System.arraycopy(ka, 0, key, 16, 8);
+	/**
+	 * Leitet einen Schlüssel = H(K||r||c) ab und schreibt ihn in das
+	 * übergebene Array. 3DES-Schlüssel werden mit korrekten Parity-Bits als
+	 * Ka||Kb||Ka geschrieben.
+	 * 
+	 * @param c
+	 *            1 for en-/decoding, 2 for MAC, 3 for deriving encryption keys
+	 *            from a password
+	 * @param keyLength
+	 *            Schlüssellänge in Bit (112, 128, 192 oder 256)
+	 * @param out
+	 *            Array für den Schlüssel
+	 * @param outOff
+	 *            Offset ab dem der Schlüssel geschrieben wird
+	 * @return Länge des Schlüssels in Bytes
+	 */
+	public int deriveKey(int c, int keyLength, byte[] out, int outOff) {
+
+		checkCounter(c);
+		int keySize = getKeySize(keyLength);
+
+		// SHA-1 für 3DES und AES-128, SHA-256 für AES-192 und AES-256
+		Digest digest = (keyLength <= 128) ? new SHA1Digest(getSHA1Prefix()) : new SHA256Digest(getSHA256Prefix());
+		digest.update((byte) (c >>> 24));
+		digest.update((byte) (c >>> 16));
+		digest.update((byte) (c >>> 8));
+		digest.update((byte) c);
+		digest.doFinal(checksum, 0);
+
+		if (keyLength == 112) {
+			// Ka||Kb||Ka
+			System.arraycopy(checksum, 0, out, outOff, 16);
+			adjustParity(out, outOff);
+			adjustParity(out, outOff + 8);
+			System.arraycopy(out, outOff, out, outOff + 16, 8);
+		} else {
+			// AES-192 verwendet die ersten 24 Byte von SHA-256
+			System.arraycopy(checksum, 0, out, outOff, keySize);
+		}
+		Arrays.fill(checksum, (byte) 0);
 
-		return key;
+		return keySize;
+	}
 
+	/**
+	 * Erzeugt 3DES Schlüssel
+	 * 
+	 * @return 112bit-3DES-Schlüssel in 24 Bytes mit korrekten Parity-Bits
+	 */
+	public byte[] getDESedeKey() {
+		return getKey(112);
 	}
 
 	/**
@@ -173,18 +255,7 @@ public class KeyDerivationFunction {
 	 * @return Schlüssel als Byte-Array
 	 */
 	public byte[] getAES128Key() {
-
-		byte[] checksum = new byte[20];
-
-		SHA1Digest sha1 = new SHA1Digest();
-		sha1.update(mergedData, 0, mergedData.length);
-		sha1.doFinal(checksum, 0);
-
-		// keydata = H(K||r||c)
-		// keydata sind die ersten 16 Byte der Hashfunktion über "mergedData"
-		byte[] keydata = new byte[16];
-		System.arraycopy(checksum, 0, keydata, 0, 16);
-		return keydata;
+		return getKey(128);
 	}
 
 	/**
@@ -193,11 +264,7 @@ public class KeyDerivationFunction {
 	 * @return Schlüssel als Byte-Array
 	 */
 	public byte[] getAES192Key() {
-
-		byte[] checksum = getAES256Key();
-		byte[] keydata = new byte[24];
-		System.arraycopy(checksum, 0, keydata, 0, 24);
-		return keydata;
+		return getKey(192);
 	}
 
 	/**
@@ -206,14 +273,40 @@ public class KeyDerivationFunction {
 	 * @return Schlüssel als Byte-Array
 	 */
 	public byte[] getAES256Key() {
+		return getKey(256);
+	}
 
-		byte[] checksum = new byte[32];
+	private byte[] getKey(int keyLength) {
+		if (c == 0) throw new IllegalStateException("No counter c given in constructor");
+		byte[] key = new byte[getKeySize(keyLength)];
+		deriveKey(c, keyLength, key, 0);
+		return key;
+	}
+
+	private SHA1Digest getSHA1Prefix() {
+		if (sha1Prefix == null) {
+			sha1Prefix = new SHA1Digest();
+			absorbPrefix(sha1Prefix);
+		}
+		return sha1Prefix;
+	}
+
+	private SHA256Digest getSHA256Prefix() {
+		if (sha256Prefix == null) {
+			sha256Prefix = new SHA256Digest();
+			absorbPrefix(sha256Prefix);
+		}
+		return sha256Prefix;
+	}
 
-		SHA256Digest sha256 = new SHA256Digest();
-		sha256.update(mergedData, 0, mergedData.length);
-		sha256.doFinal(checksum, 0);
+	private void absorbPrefix(Digest digest) {
+		digest.update(K, 0, K.length);
+		if (r != null) digest.update(r, 0, r.length);
+	}
 
-		return checksum;
+	private static void checkCounter(int c) {
+		if (c <= 0 || c > 3)
+			throw new IllegalArgumentException("c must be 1, 2 or 3!");
 	}
 
 	/**
@@ -227,23 +320,9 @@ public class KeyDerivationFunction {
 	 *            The starting index into the key bytes.
 	 */
 	private void adjustParity(byte[] key, int offset) {
-		for (int i = offset; i < 8; i++) {
+		for (int i = offset; i < offset + 8; i++) {
 			key[i] ^= (PARITY[key[i] & 0xff] == 8) ? 1 : 0;
 		}
 	}
 
-	/**
-	 * @param c
-	 * @return
-	 */
-	private byte[] intToByteArray(int c) {
-		// int -> byte[]
-		byte[] intBytes = new byte[4];
-		for (int i = 0; i < 4; ++i) {
-			int shift = i << 3; // i * 8
-			intBytes[3 - i] = (byte) ((c & (0xff << shift)) >>> shift);
-		}
-		return intBytes;
-	}
-
 }
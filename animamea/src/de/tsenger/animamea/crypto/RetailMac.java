@@ -0,0 +1,208 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.crypto;
+
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.engines.DESEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/**
+ * Retail-MAC nach ISO 9797-1 MAC-Algorithmus 3 mit DES und Padding-Methode 2
+ * (ISO 7816-4). Im Gegensatz zu ISO9797Alg3Mac von BouncyCastle werden die
+ * Key-Schedules der drei DES-Schlüssel einmal bei init() berechnet und in
+ * doFinal() keine Objekte erzeugt. Nach doFinal() bzw. reset() kann mit
+ * demselben Schlüssel sofort der nächste MAC berechnet werden.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public class RetailMac implements Mac {
+
+	private static final int BLOCK_SIZE = 8;
+
+	private final DESEngine k1 = new DESEngine();
+	private final DESEngine k2 = new DESEngine();
+	private final DESEngine k3 = new DESEngine();
+
+	private final byte[] iv = new byte[BLOCK_SIZE];
+	private final byte[] chain = new byte[BLOCK_SIZE];
+	private final byte[] buf = new byte[BLOCK_SIZE];
+	private int bufOff = 0;
+	private boolean initialised = false;
+
+	/**
+	 * Erzeugt einen nicht initialisierten Retail-MAC
+	 */
+	public RetailMac() {
+	}
+
+	/**
+	 * Erzeugt einen Retail-MAC für den angegebenen Schlüssel
+	 * 
+	 * @param key
+	 *            2-Key-3DES (16 Byte) oder 3-Key-3DES (24 Byte) Schlüssel
+	 */
+	public RetailMac(byte[] key) {
+		init(new KeyParameter(key));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.bouncycastle.crypto.Mac#init(org.bouncycastle.crypto.CipherParameters)
+	 */
+	@Override
+	public void init(CipherParameters params) throws IllegalArgumentException {
+		KeyParameter kp;
+		if (params instanceof ParametersWithIV) {
+			byte[] newIV = ((ParametersWithIV) params).getIV();
+			if (newIV.length != BLOCK_SIZE) throw new IllegalArgumentException("IV must be 8 bytes long");
+			System.arraycopy(newIV, 0, iv, 0, BLOCK_SIZE);
+			kp = (KeyParameter) ((ParametersWithIV) params).getParameters();
+		} else if (params instanceof KeyParameter) {
+			Arrays.fill(iv, (byte) 0);
+			kp = (KeyParameter) params;
+		} else {
+			throw new IllegalArgumentException("params must be an instance of KeyParameter or ParametersWithIV");
+		}
+
+		byte[] key = kp.getKey();
+		if (key.length != 16 && key.length != 24) throw new IllegalArgumentException("Key must be either 112 or 168 bit long");
+
+		byte[] part = new byte[BLOCK_SIZE];
+		System.arraycopy(key, 0, part, 0, BLOCK_SIZE);
+		k1.init(true, new KeyParameter(part));
+		System.arraycopy(key, BLOCK_SIZE, part, 0, BLOCK_SIZE);
+		k2.init(false, new KeyParameter(part));
+		System.arraycopy(key, (key.length == 24) ? 2 * BLOCK_SIZE : 0, part, 0, BLOCK_SIZE);
+		k3.init(true, new KeyParameter(part));
+		Arrays.fill(part, (byte) 0);
+
+		initialised = true;
+		reset();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.bouncycastle.crypto.Mac#getAlgorithmName()
+	 */
+	@Override
+	public String getAlgorithmName() {
+		return "ISO9797Alg3";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.bouncycastle.crypto.Mac#getMacSize()
+	 */
+	@Override
+	public int getMacSize() {
+		return BLOCK_SIZE;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.bouncycastle.crypto.Mac#update(byte)
+	 */
+	@Override
+	public void update(byte in) throws IllegalStateException {
+		if (bufOff == BLOCK_SIZE) processBuffer();
+		buf[bufOff++] = in;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.bouncycastle.crypto.Mac#update(byte[], int, int)
+	 */
+	@Override
+	public void update(byte[] in, int inOff, int len) throws DataLengthException, IllegalStateException {
+		if (len < 0) throw new IllegalArgumentException("Can't have a negative input length!");
+		if (!initialised) throw new IllegalStateException("RetailMac not initialised");
+
+		// Volle Blöcke werden erst verarbeitet wenn weitere Daten folgen, da
+		// der letzte Block in doFinal() gepaddet wird.
+		while (len > 0) {
+			if (bufOff == BLOCK_SIZE) processBuffer();
+			int n = Math.min(len, BLOCK_SIZE - bufOff);
+			System.arraycopy(in, inOff, buf, bufOff, n);
+			bufOff += n;
+			inOff += n;
+			len -= n;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.bouncycastle.crypto.Mac#doFinal(byte[], int)
+	 */
+	@Override
+	public int doFinal(byte[] out, int outOff) throws DataLengthException, IllegalStateException {
+		if (!initialised) throw new IllegalStateException("RetailMac not initialised");
+		if (out.length - outOff < BLOCK_SIZE) throw new DataLengthException("output buffer too short");
+
+		// ISO 7816-4 Padding: 0x80 gefolgt von Nullen, ggf. in einem neuen Block
+		if (bufOff == BLOCK_SIZE) processBuffer();
+		buf[bufOff++] = (byte) 0x80;
+		while (bufOff < BLOCK_SIZE) {
+			buf[bufOff++] = 0;
+		}
+		processBuffer();
+
+		// Ausgabetransformation: DES^-1 mit K2, DES mit K3
+		k2.processBlock(chain, 0, chain, 0);
+		k3.processBlock(chain, 0, out, outOff);
+
+		reset();
+		return BLOCK_SIZE;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.bouncycastle.crypto.Mac#reset()
+	 */
+	@Override
+	public void reset() {
+		System.arraycopy(iv, 0, chain, 0, BLOCK_SIZE);
+		Arrays.fill(buf, (byte) 0);
+		bufOff = 0;
+	}
+
+	/**
+	 * CBC-Schritt mit K1 über den gefüllten Puffer
+	 */
+	private void processBuffer() {
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			chain[i] ^= buf[i];
+		}
+		k1.processBlock(chain, 0, chain, 0);
+		bufOff = 0;
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.crypto;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.engines.DESEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * 3DES (EDE) aus drei DES-Engines mit bei init() berechneten Key-Schedules.
+ * Die Blöcke werden im Ausgabepuffer verarbeitet, so dass processBlock() im
+ * Gegensatz zu DESedeEngine keinen Zwischenpuffer anlegt.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public class TripleDESEngine implements BlockCipher {
+
+	private static final int BLOCK_SIZE = 8;
+
+	private final DESEngine first = new DESEngine();
+	private final DESEngine second = new DESEngine();
+	private final DESEngine third = new DESEngine();
+	private boolean initialised = false;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.bouncycastle.crypto.BlockCipher#init(boolean, org.bouncycastle.crypto.CipherParameters)
+	 */
+	@Override
+	public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+		if (!(params instanceof KeyParameter))
+			throw new IllegalArgumentException("invalid parameter passed to DESede init - " + params.getClass().getName());
+
+		byte[] key = ((KeyParameter) params).getKey();
+		if (key.length != 16 && key.length != 24) throw new IllegalArgumentException("key size must be 16 or 24 bytes.");
+
+		byte[] k1 = new byte[BLOCK_SIZE];
+		byte[] k2 = new byte[BLOCK_SIZE];
+		byte[] k3 = new byte[BLOCK_SIZE];
+		System.arraycopy(key, 0, k1, 0, BLOCK_SIZE);
+		System.arraycopy(key, BLOCK_SIZE, k2, 0, BLOCK_SIZE);
+		System.arraycopy(key, (key.length == 24) ? 2 * BLOCK_SIZE : 0, k3, 0, BLOCK_SIZE);
+
+		// Verschlüsseln: E(K1), D(K2), E(K3); Entschlüsseln: D(K3), E(K2), D(K1)
+		first.init(forEncryption, new KeyParameter(forEncryption ? k1 : k3));
+		second.init(!forEncryption, new KeyParameter(k2));
+		third.init(forEncryption, new KeyParameter(forEncryption ? k3 : k1));
+		initialised = true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.bouncycastle.crypto.BlockCipher#getAlgorithmName()
+	 */
+	@Override
+	public String getAlgorithmName() {
+		return "DESede";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.bouncycastle.crypto.BlockCipher#getBlockSize()
+	 */
+	@Override
+	public int getBlockSize() {
+		return BLOCK_SIZE;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.bouncycastle.crypto.BlockCipher#processBlock(byte[], int, byte[], int)
+	 */
+	@Override
+	public int processBlock(byte[] in, int inOff, byte[] out, int outOff) throws DataLengthException, IllegalStateException {
+		if (!initialised) throw new IllegalStateException("DESede engine not initialised");
+		if ((inOff + BLOCK_SIZE) > in.length) throw new DataLengthException("input buffer too short");
+		if ((outOff + BLOCK_SIZE) > out.length) throw new DataLengthException("output buffer too short");
+
+		// DESEngine liest den Block vollständig bevor es schreibt, daher kann
+		// im Ausgabepuffer weitergerechnet werden
+		first.processBlock(in, inOff, out, outOff);
+		second.processBlock(out, outOff, out, outOff);
+		third.processBlock(out, outOff, out, outOff);
+		return BLOCK_SIZE;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.bouncycastle.crypto.BlockCipher#reset()
+	 */
+	@Override
+	public void reset() {
+	}
+}
@@ -50,6 +50,22 @@ public class CardCommands {
 		return new CommandAPDU(command);
 	}
 
+	/**
+	 * READ BINARY mit 15 Bit Offset. Für ne > 256 wird die APDU mit Extended
+	 * Length kodiert.
+	 * 
+	 * @param offset
+	 *            Offset in der selektierten Datei (0 bis 0x7FFF)
+	 * @param ne
+	 *            Anzahl der zu lesenden Bytes (1 bis 65536)
+	 * @return READ BINARY Command-APDU
+	 */
+	public static CommandAPDU readBinary(int offset, int ne) {
+		if (offset < 0 || offset > 0x7FFF)
+			throw new IllegalArgumentException("Offset out of range: " + offset);
+		return new CommandAPDU(0x00, 0xB0, offset >> 8, offset & 0xFF, ne);
+	}
+
 	public static CommandAPDU selectEF(byte[] fid) {
 		byte[] selectCmd = new byte[] { (byte) 0x00, (byte) 0xA4, (byte) 0x02,
 				(byte) 0x0C };
@@ -24,7 +24,9 @@ import static de.tsenger.animamea.iso7816.CardCommands.selectEF;
 
 import java.io.ByteArrayInputStream;
 import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import javax.smartcardio.CardException;
 import javax.smartcardio.ResponseAPDU;
@@ -80,8 +82,9 @@ public class FileAccess {
 
 	/**
 	 * Reads the content of an elementary transparent file (EF). If the file is
-	 * bigger then 255 byte this function uses multiply READ BINARY command to
-	 * get the whole file.
+	 * bigger then the maximum READ BINARY length (223 byte, or more if the card
+	 * supports extended length) this function uses multiply READ BINARY
+	 * command to get the whole file.
 	 * 
 	 * @param fid
 	 *            A 2 byte array which contains the FID of the EF to read.
@@ -118,6 +121,87 @@ public class FileAccess {
 		return getFile(fid,true);
 	}
 	
+	/**
+	 * Reads the content of an elementary transparent file (EF) and writes it
+	 * chunk by chunk to the given stream. In contrast to
+	 * {@link #getFile(byte[])} the file content is never held in memory as a
+	 * whole, with Secure Messaging every chunk is decrypted directly into the
+	 * stream.
+	 * 
+	 * @param fid
+	 *            A 2 byte array which contains the FID of the EF to read.
+	 * @param out
+	 *            stream which receives the file content
+	 * @return number of bytes written to the stream
+	 * @throws SecureMessagingException
+	 * @throws CardException
+	 * @throws IOException
+	 */
+	public int getFile(byte[] fid, OutputStream out) throws SecureMessagingException, CardException, IOException {
+
+		if (fid.length != 2)
+			throw new IllegalArgumentException("Length of FID must be 2.");
+		ResponseAPDU resp = ch.transceive(selectEF(fid));
+		if (resp.getSW1() != 0x90) throw new CardException("Couldn't select EF with FID "+HexString.bufferToHex(fid)+", RAPDU was "+HexString.bufferToHex(resp.getBytes()));
+
+		resp = ch.transceive(readBinary((byte) 0, (byte) 0, (byte) 0x8));
+		if (resp.getSW1() != 0x90) throw new CardException("Couldn't read EF with FID "+HexString.bufferToHex(fid)+", RAPDU was "+HexString.bufferToHex(resp.getBytes()));
+
+		return readFile(getLength(resp.getData()), out);
+	}
+
+	/**
+	 * Reads whole data from EF which has been selected before and writes it to
+	 * the given stream.
+	 * 
+	 * @param length
+	 *            numbers of bytes to read of the selected file
+	 * @param out
+	 *            stream which receives the file content
+	 * @return number of bytes written to the stream
+	 */
+	private int readFile(int length, OutputStream out) throws SecureMessagingException, CardException, IOException {
+
+		int maxSingleReadLength = ch.getMaxReadLength();
+		CountingOutputStream cout = new CountingOutputStream(out);
+
+		while (cout.count < length) {
+			int offset = cout.count;
+			int chunk = Math.min(length - offset, maxSingleReadLength);
+			int before = cout.count;
+
+			int sw = ch.transceive(readBinary(offset, chunk), cout);
+			if ((sw >> 8) != 0x90 && sw != 0x6282)
+				throw new CardException("READ BINARY failed at offset " + offset + ", SW: " + Integer.toHexString(sw));
+			if (cout.count == before || sw == 0x6282) break; // end of file reached
+		}
+		return cout.count;
+	}
+
+	/**
+	 * Counts the written bytes to determine the offset of the next READ BINARY
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		int count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
 	/**
 	 * Reads whole data from EF which has been selected before. 
 	 * 
@@ -133,23 +217,20 @@ public class FileAccess {
 		ResponseAPDU resp;
 		byte[] dataBuffer = new byte[maxLength];
 
-		int maxSingleReadLength = 0xDF; //limit of 223 Byte per READ BINARY command for some cards
+		int maxSingleReadLength = ch.getMaxReadLength(); //223 Byte per READ BINARY without extended length
 		int i = 0;
 
 		do {
 			int offset = i * maxSingleReadLength;
-			byte off1 = (byte) ((offset & 0x0000FF00) >> 8);
-			byte off2 = (byte) (offset & 0x000000FF);
 
 			if (remainingBytes <= maxSingleReadLength) {
-				resp = ch.transceive(readBinary(off1, off2,	(byte) remainingBytes));
+				resp = ch.transceive(readBinary(offset, remainingBytes));
 				remainingBytes = 0;
-				readDataLength += resp.getData().length;
 			} else {
-				resp = ch.transceive(readBinary(off1, off2,	(byte) maxSingleReadLength));
+				resp = ch.transceive(readBinary(offset, maxSingleReadLength));
 				remainingBytes -= maxSingleReadLength;
-				readDataLength += resp.getData().length;
 			}
+			readDataLength += resp.getData().length;
 			System.arraycopy(resp.getData(), 0, dataBuffer, i * maxSingleReadLength,
 					resp.getData().length);
 			i++;
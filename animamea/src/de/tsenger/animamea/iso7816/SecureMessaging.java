@@ -19,14 +19,19 @@
 
 package de.tsenger.animamea.iso7816;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
-import org.bouncycastle.asn1.ASN1InputStream;
-
+import de.tsenger.animamea.crypto.AmCryptoAlgorithm;
 import de.tsenger.animamea.crypto.AmCryptoException;
 import de.tsenger.animamea.crypto.AmCryptoProvider;
 import de.tsenger.animamea.tools.HexString;
@@ -34,6 +39,12 @@ import de.tsenger.animamea.tools.HexString;
 /**
  * Verpackt ungeschützte CAPDU in SecureMessaging und entpackt SM-geschützte RAPDU.
  * 
+ * Eine Instanz entspricht einer Session mit eigenem SSC und eigenem
+ * Crypto-Kontext und darf nur von einem Thread zur Zeit verwendet werden.
+ * Verschiedene Sessions können dagegen parallel laufen und dasselbe
+ * {@link AmCryptoAlgorithm} bzw. denselben AmCryptoProvider verwenden, da
+ * jede Session ihren Kontext selbst erzeugt.
+ * 
  * @author Tobias Senger (tobias@t-senger.de)
  *
  */
@@ -41,11 +52,28 @@ public class SecureMessaging {
 
 	private byte[] ks_enc = null;
 	private byte[] ks_mac = null;
-	private byte[] ssc = null;
+	private long ssc = 0;
+	private boolean extendedLength = true;
+	private int maxCommandLength = Integer.MAX_VALUE;
+
+	// SSC vor dem letzten wrapBatch und Anzahl der noch offenen Antworten
+	private long batchSSC = 0;
+	private int pendingResponses = 0;
 	private AmCryptoProvider crypto = null;
 
+	// Wiederverwendete Puffer für Header und MAC
+	private byte[] paddedHeader = null;
+	private ByteBuffer headerBuffer = null;
+	private ByteBuffer macBuffer = null;
+
+	// Lage der Datenobjekte in der zuletzt entpackten Response-APDU
+	private int do87Offset, do87ValueOffset, do87End;
+	private int do99Offset, do99ValueOffset, do99End;
+	private int do8EValueOffset, do8ELength;
+
 	/**
-	 * Konstruktor
+	 * Konstruktor. Der übergebene AmCryptoProvider legt nur das Verfahren fest
+	 * und wird nicht verändert, die Session erzeugt einen eigenen Kontext.
 	 * 
 	 * @param acp
 	 *            AmDESCrypto- oder AmAESCrypto-Instanz
@@ -58,13 +86,47 @@ public class SecureMessaging {
 	 */
 	public SecureMessaging(AmCryptoProvider acp, byte[] ksenc, byte[] ksmac,
 			byte[] initialSSC) {
+		this(acp.getAlgorithm(), ksenc, ksmac, initialSSC);
+	}
+
+	/**
+	 * Konstruktor
+	 * 
+	 * @param algorithm
+	 *            Verfahren, z.B. {@link AmCryptoAlgorithm#AES_BC}. Kann von
+	 *            beliebig vielen Sessions gemeinsam verwendet werden.
+	 * @param ksenc
+	 *            Session Key für Verschlüsselung (K_enc)
+	 * @param ksmac
+	 *            Session Key für Prüfsummenberechnung (K_mac)
+	 * @param initssc
+	 *            Initialer Wert des Send Sequence Counters
+	 */
+	public SecureMessaging(AmCryptoAlgorithm algorithm, byte[] ksenc, byte[] ksmac,
+			byte[] initialSSC) {
 
-		crypto = acp;
+		crypto = algorithm.createContext();
 
 		ks_enc = ksenc.clone();
 		ks_mac = ksmac.clone();
 
-		ssc = initialSSC.clone();
+		// Der SSC wird als Zähler geführt, höherwertige Bytes jenseits von 64 Bit
+		// müssen daher 0 sein (bei PACE und CA ist der initiale SSC immer 0)
+		for (int i = 0; i < initialSSC.length - 8; i++) {
+			if (initialSSC[i] != 0)
+				throw new IllegalArgumentException("initial SSC exceeds 64 bit");
+		}
+		for (int i = Math.max(0, initialSSC.length - 8); i < initialSSC.length; i++) {
+			ssc = (ssc << 8) | (initialSSC[i] & 0xFF);
+		}
+
+		// Schlüsselexpansion und MAC-Vorberechnung nur einmal pro Session
+		crypto.setSessionKeys(ks_enc, ks_mac);
+
+		paddedHeader = new byte[crypto.getBlockSize()];
+		paddedHeader[4] = (byte) 0x80;
+		headerBuffer = ByteBuffer.wrap(paddedHeader);
+		macBuffer = ByteBuffer.allocate(crypto.getBlockSize());
 
 	}
 
@@ -78,71 +140,346 @@ public class SecureMessaging {
 	 */
 	public CommandAPDU wrap(CommandAPDU capdu) throws SecureMessagingException {
 
-		byte[] header = null;
-		DO97 do97 = null;
-		DO87 do87 = null;
-		DO8E do8E = null;
-
-		incrementAtIndex(ssc, ssc.length - 1);
-
-		// Mask class byte and pad command header
-		header = new byte[4];
-		
-		// Die ersten 4 Bytes der CAPDU sind der Header
-		System.arraycopy(capdu.getBytes(), 0, header, 0, 4);
-		
-		// Markiert das Secure Messaging im CLA-Byte
-		header[0] = (byte) (header[0] | (byte) 0x0C); 
-
-		// build DO87
-		if (getAPDUStructure(capdu) == 3 || getAPDUStructure(capdu) == 4 || getAPDUStructure(capdu) == 6) {
-			do87 = buildDO87(capdu.getData().clone());
+		byte[] plain = capdu.getBytes();
+		ByteBuffer out = ByteBuffer.allocate(getMaxProtectedLength(plain.length));
+
+		int len = wrap(ByteBuffer.wrap(plain), out);
+
+		return new CommandAPDU(out.array(), 0, len);
+	}
+
+	/**
+	 * Schützt eine Folge von Command-APDUs in einem Aufruf, z.B. ein SELECT
+	 * gefolgt von mehreren READ BINARY. Für jede Antwort der Karte wird dabei
+	 * ein SSC-Wert freigehalten: Die i-te APDU (ab 0) wird mit SSC+1+2i
+	 * geschützt. Die zurückgegebenen APDUs können direkt nacheinander gesendet
+	 * werden, die Antworten müssen anschließend mit
+	 * {@link #unwrapBatch(List)} entpackt werden. Bis dahin lehnen wrap und
+	 * unwrap weitere APDUs mit einer SecureMessagingException ab.
+	 * 
+	 * @param capdus
+	 *            plain Command-APDUs
+	 * @return Command-APDUs mit SM in gleicher Reihenfolge
+	 * @throws SecureMessagingException
+	 */
+	public List<CommandAPDU> wrapBatch(List<CommandAPDU> capdus) throws SecureMessagingException {
+
+		checkNoPendingBatch();
+
+		List<CommandAPDU> protectedCapdus = new ArrayList<CommandAPDU>(capdus.size());
+		long startSSC = ssc;
+		ByteBuffer out = null;
+
+		try {
+			for (int i = 0; i < capdus.size(); i++) {
+				byte[] plain = capdus.get(i).getBytes();
+				int maxLength = getMaxProtectedLength(plain.length);
+				if (out == null || out.capacity() < maxLength) out = ByteBuffer.allocate(maxLength);
+				out.clear();
+
+				ssc = startSSC + 2 * i;
+				int len = wrapCommand(ByteBuffer.wrap(plain), out);
+				protectedCapdus.add(new CommandAPDU(out.array(), 0, len));
+			}
+		} finally {
+			ssc = startSSC;
 		}
 
-		// build DO97
-		if (getAPDUStructure(capdu) == 2 || getAPDUStructure(capdu) == 4 || getAPDUStructure(capdu) == 7) {
-			do97 = buildDO97(capdu.getNe());
+		batchSSC = startSSC;
+		pendingResponses = protectedCapdus.size();
+
+		return protectedCapdus;
+	}
+
+	/**
+	 * Entpackt die Antworten auf die mit {@link #wrapBatch(List)} geschützten
+	 * Command-APDUs. Die i-te Antwort wird mit SSC+2+2i geprüft. Wurden nicht
+	 * alle APDUs des Batches gesendet, dürfen auch weniger Antworten übergeben
+	 * werden; der SSC steht danach auf dem Wert nach der letzten Antwort.
+	 * 
+	 * @param rapdus
+	 *            SM-geschützte Response-APDUs in Sendereihenfolge
+	 * @return plain Response-APDUs
+	 * @throws SecureMessagingException
+	 */
+	public List<ResponseAPDU> unwrapBatch(List<ResponseAPDU> rapdus) throws SecureMessagingException {
+
+		if (rapdus.size() > pendingResponses)
+			throw new SecureMessagingException("More responses than wrapped commands: " + rapdus.size());
+
+		List<ResponseAPDU> plainRapdus = new ArrayList<ResponseAPDU>(rapdus.size());
+
+		// Der restliche Batch ist nach dem ersten Fehler nicht mehr verwendbar
+		pendingResponses = 0;
+
+		for (int i = 0; i < rapdus.size(); i++) {
+			ssc = batchSSC + 2 * i + 1;
+			plainRapdus.add(unwrap(rapdus.get(i)));
 		}
 
-		// build DO8E
-		do8E = buildDO8E(header, do87, do97);
+		return plainRapdus;
+	}
 
-		// construct and return protected APDU
-		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-		try {
+	/**
+	 * Erzeugt aus einer Plain-Command-APDU ohne Secure Messaging eine
+	 * Command-APDU mit Secure Messaging. Die ungeschützte APDU wird von der
+	 * aktuellen Position bis zum Limit aus <code>capdu</code> gelesen, die
+	 * geschützte APDU wird in einem Durchgang ab der aktuellen Position in
+	 * <code>protectedCapdu</code> geschrieben. Es können Heap- oder Direct-Buffer
+	 * verwendet werden, Zwischen-Arrays werden nicht angelegt.
+	 * 
+	 * @param capdu
+	 *            Puffer mit der plain Command-APDU. Die Position steht danach
+	 *            auf dem Limit.
+	 * @param protectedCapdu
+	 *            Puffer in den die Command-APDU mit SM geschrieben wird. Es
+	 *            müssen mindestens {@link #getMaxProtectedLength(int)} Bytes frei
+	 *            sein.
+	 * @return Länge der geschützten Command-APDU
+	 * @throws SecureMessagingException
+	 */
+	public int wrap(ByteBuffer capdu, ByteBuffer protectedCapdu) throws SecureMessagingException {
+		checkNoPendingBatch();
+		return wrapCommand(capdu, protectedCapdu);
+	}
 
-			if (do87 != null) { 
-				//System.out.println("writing do87");
-				bOut.write(do87.getEncoded());
-			}
-			
-			if (do97 != null) {
-				//System.out.println("writing do97");
-				bOut.write(do97.getEncoded());
+	/**
+	 * Solange Antworten eines Batches ausstehen, sind deren SSC-Werte
+	 * vergeben. Ein weiteres Wrap oder Unwrap würde IV und MAC-Zähler einer
+	 * Batch-APDU unter denselben Schlüsseln wiederverwenden.
+	 */
+	private void checkNoPendingBatch() throws SecureMessagingException {
+		if (pendingResponses > 0)
+			throw new SecureMessagingException("Responses of previous batch not yet unwrapped");
+	}
+
+	private int wrapCommand(ByteBuffer capdu, ByteBuffer protectedCapdu) throws SecureMessagingException {
+
+		int start = capdu.position();
+		int length = capdu.remaining();
+
+		if (length < 4) throw new SecureMessagingException("Command APDU too short: " + length + " bytes");
+		if (protectedCapdu.remaining() < getMaxProtectedLength(length))
+			throw new SecureMessagingException("Buffer too small for protected command APDU");
+
+		// Bestimme Lc/Le nach ISO/IEC 7816-3 Kapitel 12.1
+		int dataOffset = 0;
+		int nc = 0;
+		int leOffset = 0;
+		int leLength = 0;
+
+		int b4 = (length > 4) ? capdu.get(start + 4) & 0xFF : 0;
+
+		if (length == 5) { // Case 2S
+			leOffset = 4;
+			leLength = 1;
+		} else if (length > 5 && b4 != 0) { // Case 3S, 4S
+			dataOffset = 5;
+			nc = b4;
+			if (length == 6 + nc) {
+				leOffset = 5 + nc;
+				leLength = 1;
+			} else if (length != 5 + nc)
+				throw new SecureMessagingException("Invalid command APDU structure");
+		} else if (length == 7) { // Case 2E
+			leOffset = 5;
+			leLength = 2;
+		} else if (length > 7) { // Case 3E, 4E
+			dataOffset = 7;
+			nc = ((capdu.get(start + 5) & 0xFF) << 8) | (capdu.get(start + 6) & 0xFF);
+			if (nc == 0) throw new SecureMessagingException("Invalid command APDU structure");
+			if (length == 9 + nc) {
+				leOffset = 7 + nc;
+				leLength = 2;
+			} else if (length != 7 + nc)
+				throw new SecureMessagingException("Invalid command APDU structure");
+		} else if (length != 4)
+			throw new SecureMessagingException("Invalid command APDU structure");
+
+		// Längen der Datenobjekte vorab bestimmen damit Lc direkt geschrieben werden kann
+		int do87ValueLength = (nc > 0) ? 1 + ((nc / crypto.getBlockSize()) + 1) * crypto.getBlockSize() : 0;
+		int do87Length = (nc > 0) ? 1 + getLengthFieldSize(do87ValueLength) + do87ValueLength : 0;
+		int do97Length = (leLength > 0) ? 2 + leLength : 0;
+		int lc = do87Length + do97Length + 10;
+
+		// Extended Length nur falls Lc oder die erwartete geschützte Antwort
+		// nicht in die kurze Kodierung passen und die Karte es unterstützt
+		boolean extended = (lc > 0xFF) || (leLength == 2) || (getProtectedResponseLength(capdu, start + leOffset, leLength) > 0x100);
+		if (extended && !extendedLength) {
+			if (lc > 0xFF)
+				throw new SecureMessagingException("Protected command data (" + lc + " bytes) exceeds short length and card doesn't support extended length");
+			extended = false;
+		}
+
+		int protectedLength = extended ? 4 + 3 + lc + 2 : 4 + 1 + lc + 1;
+		if (protectedLength > maxCommandLength)
+			throw new SecureMessagingException("Protected command APDU (" + protectedLength + " bytes) exceeds maximum command length of the card (" + maxCommandLength + " bytes)");
+
+		ssc++;
+
+		// Header mit markiertem Secure Messaging im CLA-Byte
+		for (int i = 0; i < 4; i++) {
+			paddedHeader[i] = capdu.get(start + i);
+		}
+		paddedHeader[0] = (byte) (paddedHeader[0] | (byte) 0x0C);
+		protectedCapdu.put(paddedHeader, 0, 4);
+
+		// Lc
+		if (extended) {
+			protectedCapdu.put((byte) 0x00);
+			protectedCapdu.put((byte) (lc >> 8));
+		}
+		protectedCapdu.put((byte) lc);
+
+		int doStart = protectedCapdu.position();
+		int limit = capdu.limit();
+
+		try {
+			// build DO87
+			if (nc > 0) {
+				protectedCapdu.put((byte) 0x87);
+				putLength(protectedCapdu, do87ValueLength);
+				protectedCapdu.put((byte) 0x01); // Padding-Indikator
+
+				crypto.init(ks_enc, ssc);
+				capdu.limit(start + dataOffset + nc);
+				capdu.position(start + dataOffset);
+				crypto.encrypt(capdu, protectedCapdu);
+				capdu.limit(limit);
 			}
-			
-			//System.out.println("writing do8e");
-			bOut.write(do8E.getEncoded());
 
-		} catch (IOException e) {
+			// build DO97
+			if (leLength > 0) {
+				protectedCapdu.put((byte) 0x97);
+				protectedCapdu.put((byte) leLength);
+				for (int i = 0; i < leLength; i++) {
+					protectedCapdu.put(capdu.get(start + leOffset + i));
+				}
+			}
+		} catch (AmCryptoException e) {
 			throw new SecureMessagingException(e);
+		} finally {
+			capdu.limit(limit);
+			capdu.position(limit);
+		}
+
+		// build DO8E
+		int doEnd = protectedCapdu.position();
+		int outLimit = protectedCapdu.limit();
+
+		crypto.init(ks_mac, ssc);
+
+		/**
+		 * Verhindert doppeltes Padden des Headers: Nur wenn do87 oder do97
+		 * vorhanden sind, wird der Header gepaddet. Ansonsten wird erst beim
+		 * Berechnen des MAC gepaddet.
+		 */
+		headerBuffer.limit((doEnd > doStart) ? paddedHeader.length : 4);
+		headerBuffer.position(0);
+		crypto.macUpdate(headerBuffer);
+
+		protectedCapdu.limit(doEnd);
+		protectedCapdu.position(doStart);
+		crypto.macUpdate(protectedCapdu);
+		protectedCapdu.limit(outLimit);
+
+		protectedCapdu.put((byte) 0x8E);
+		protectedCapdu.put((byte) 0x08);
+		crypto.macFinal(protectedCapdu);
+
+		// Le
+		protectedCapdu.put((byte) 0x00);
+		if (extended) protectedCapdu.put((byte) 0x00);
+
+		return protectedLength;
+	}
+
+	/**
+	 * Legt fest ob die Karte Extended Length APDUs unterstützt. Ist dies der
+	 * Fall (Voreinstellung), werden geschützte APDUs nur dann mit Extended
+	 * Length kodiert, wenn Lc oder die erwartete Antwort nicht in die kurze
+	 * Kodierung passen. Andernfalls werden immer kurze APDUs erzeugt.
+	 * 
+	 * @param extendedLength
+	 *            <code>true</code> falls die Karte Extended Length unterstützt
+	 */
+	public void setExtendedLength(boolean extendedLength) {
+		this.extendedLength = extendedLength;
+	}
+
+	/**
+	 * Legt die maximale Länge einer Command-APDU fest, die die Karte annimmt
+	 * (z.B. aus der ExtendedLengthInfo in EF.ATR/INFO). Längere geschützte
+	 * APDUs werden mit einer SecureMessagingException abgelehnt.
+	 * 
+	 * @param maxCommandLength
+	 *            maximale Länge der Command-APDU in Byte
+	 */
+	public void setMaxCommandLength(int maxCommandLength) {
+		this.maxCommandLength = maxCommandLength;
+	}
+
+	/**
+	 * Maximale Länge der geschützten Antwort (DO87, DO99, DO8E und SW) für das
+	 * Le der plain Command-APDU
+	 */
+	private int getProtectedResponseLength(ByteBuffer capdu, int leOffset, int leLength) {
+		if (leLength == 0) return 4 + 10 + 2;
+		int ne = 0;
+		for (int i = 0; i < leLength; i++) {
+			ne = (ne << 8) | (capdu.get(leOffset + i) & 0xFF);
 		}
-		/*
-		System.out.println("new command: ");
-		System.out.println(header[0]);
-		System.out.println(header[1]);
-		System.out.println(header[2]);
-		System.out.println(Hex.toHexString((header)));
-		System.out.println(Hex.toHexString(bOut.toByteArray()));
-		System.out.println("length: ");
-		System.out.println(bOut.toByteArray().length);
-		int l = bOut.toByteArray().length;
-		//return new CommandAPDU(header[0], header[1], header[2], header[3], bOut.toByteArray(), 65536);
-		CommandAPDU foo = new CommandAPDU(header[0], header[1], header[2], header[3], bOut.toByteArray(), 0, l, 65536);
-		System.out.println("nc bytes:");
-		System.out.println(Hex.toHexString(foo.getBytes()));*/
-		//return new CommandAPDU(header[0], header[1], header[2], header[3], bOut.toByteArray(), 0, l, 65536);
-		return new CommandAPDU(header[0], header[1], header[2], header[3], bOut.toByteArray(), 65536);
+		if (ne == 0) ne = (leLength == 1) ? 0x100 : 0x10000;
+		int do87ValueLength = 1 + ((ne / crypto.getBlockSize()) + 1) * crypto.getBlockSize();
+		return 1 + getLengthFieldSize(do87ValueLength) + do87ValueLength + 4 + 10 + 2;
+	}
+
+	/**
+	 * Erzeugt einen Snapshot der Session (Verfahren, Session Keys, SSC und
+	 * ausgewählte Applikation), mit dem die Session in einem anderen Thread
+	 * oder Prozess ohne neues PACE/TA/CA fortgesetzt werden kann. Dieses
+	 * Objekt darf danach nicht mehr verwendet werden.
+	 * 
+	 * @param selectedAID
+	 *            AID der ausgewählten Applikation oder <code>null</code>
+	 * @return Snapshot der Session
+	 * @throws SecureMessagingException
+	 *             falls noch Antworten eines Batches ausstehen
+	 */
+	public SecureMessagingSnapshot getSnapshot(byte[] selectedAID) throws SecureMessagingException {
+		checkNoPendingBatch();
+		byte cryptoType = crypto.getAlgorithm().getName().equals("AES") ? SecureMessagingSnapshot.CRYPTO_AES
+				: SecureMessagingSnapshot.CRYPTO_DES;
+		return new SecureMessagingSnapshot(cryptoType, ks_enc, ks_mac, ssc, selectedAID);
+	}
+
+	/**
+	 * Lässt die vom SSC abhängigen IVs (AES) für die nächsten
+	 * <code>count</code> APDUs im Hintergrund berechnen, während die Karte das
+	 * Kommando bearbeitet. Wrap und Unwrap müssen dann nicht mehr auf die
+	 * IV-Berechnung warten.
+	 * 
+	 * @param executor
+	 *            Executor für die Hintergrundberechnung, <code>null</code>
+	 *            schaltet die Vorausberechnung ab
+	 * @param count
+	 *            Anzahl der im Voraus berechneten IVs
+	 */
+	public void setIVPrecomputation(ExecutorService executor, int count) {
+		crypto.setIVPrecomputation(executor, count);
+	}
+
+	/**
+	 * Liefert die maximale Länge einer SM-geschützten Command-APDU zu einer
+	 * plain Command-APDU der angegebenen Länge.
+	 * 
+	 * @param plainLength
+	 *            Länge der plain Command-APDU
+	 * @return maximale Länge der Command-APDU mit SM
+	 */
+	public int getMaxProtectedLength(int plainLength) {
+		// Header, Lc, DO87 (Tag, Länge, Padding-Indikator, Padding), DO97, DO8E, Le
+		return 4 + 3 + (4 + plainLength + crypto.getBlockSize()) + 4 + 10 + 2;
 	}
 
 	/**
@@ -154,189 +491,272 @@ public class SecureMessaging {
 	 */
 	public ResponseAPDU unwrap(ResponseAPDU rapdu) throws SecureMessagingException{
 
-		DO87 do87 = null;
-		DO99 do99 = null;
-		DO8E do8E = null;
-
-		incrementAtIndex(ssc, ssc.length - 1);
+		byte[] rapduBytes = rapdu.getBytes();
+		byte[] plain = new byte[rapduBytes.length];
 
-		int pointer = 0;
-		byte[] rapduBytes = rapdu.getData();
-		byte[] subArray = new byte[rapduBytes.length];
+		int len = unwrap(ByteBuffer.wrap(rapduBytes), ByteBuffer.wrap(plain));
 
-		while (pointer < rapduBytes.length) {
-			System.arraycopy(rapduBytes, pointer, subArray, 0,
-					rapduBytes.length - pointer);
-			ASN1InputStream asn1sp = new ASN1InputStream(subArray);
-			byte[] encodedBytes = null;
-			try {
-				encodedBytes = asn1sp.readObject().getEncoded();
-				asn1sp.close();
-			} catch (IOException e) {
-				throw new SecureMessagingException(e);
-			}
+		return new ResponseAPDU(Arrays.copyOf(plain, len));
+	}
 
-			ASN1InputStream asn1in = new ASN1InputStream(encodedBytes);
-			try {
-				switch (encodedBytes[0]) {
-				case (byte) 0x87:
-					do87 = new DO87();
-					do87.fromByteArray(asn1in.readObject().getEncoded());
-					break;
-				case (byte) 0x99:
-					do99 = new DO99();
-					do99.fromByteArray(asn1in.readObject().getEncoded());
-					break;
-				case (byte) 0x8E:
-					do8E = new DO8E();
-					do8E.fromByteArray(asn1in.readObject().getEncoded());
-				}
-				asn1in.close();
-			} catch (IOException e) {
-				throw new SecureMessagingException(e);
-			}
 
-			pointer += encodedBytes.length;
-		}
+	/**
+	 * Erzeugt aus einer SM geschützten Response-APDU eine plain Response-APDU
+	 * ohne Secure Messaging. Die geschützte APDU (inkl. Statuswort) wird von der
+	 * aktuellen Position bis zum Limit aus <code>rapdu</code> gelesen. MAC-Prüfung
+	 * und Entschlüsselung arbeiten direkt auf dem Eingabepuffer, die Klartextdaten
+	 * und das Statuswort aus DO99 werden ab der aktuellen Position in
+	 * <code>plainRapdu</code> geschrieben.
+	 * 
+	 * @param rapdu
+	 *            Puffer mit der SM-geschützten Response-APDU. Die Position steht
+	 *            danach auf dem Limit.
+	 * @param plainRapdu
+	 *            Puffer in den die plain Response-APDU geschrieben wird. Es
+	 *            müssen mindestens so viele Bytes frei sein wie die geschützte
+	 *            Response-APDU lang ist.
+	 * @return Länge der plain Response-APDU
+	 * @throws SecureMessagingException
+	 */
+	public int unwrap(ByteBuffer rapdu, ByteBuffer plainRapdu) throws SecureMessagingException {
 
-		if (do99 == null)
-			throw new SecureMessagingException("Secure Messaging error: mandatory DO99 not found"); // DO99 is mandatory
-															// and only absent
-															// if SM error
-															// occurs
+		checkNoPendingBatch();
 
-		// Construct K (SSC||DO87||DO99)
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		try {
-			if (do87 != null) bout.write(do87.getEncoded());
-			bout.write(do99.getEncoded());
-		} catch (IOException e) {
-			throw new SecureMessagingException(e);
-		}
+		int start = rapdu.position();
+		int limit = rapdu.limit();
 
-		crypto.init(ks_mac, ssc);
-		byte[] cc = crypto.getMAC(bout.toByteArray());
+		if (rapdu.remaining() < 2) throw new SecureMessagingException("Response APDU too short");
+		if (plainRapdu.remaining() < rapdu.remaining())
+			throw new SecureMessagingException("Buffer too small for plain response APDU");
 
-		byte[] do8eData = do8E.getData();
+		verifyResponse(rapdu, start, limit);
 
-		if (!java.util.Arrays.equals(cc, do8eData))
-			throw new SecureMessagingException("Checksum is incorrect!\n Calculated CC: "
-					+ HexString.bufferToHex(cc) + "\nCC in DO8E: "
-					+ HexString.bufferToHex(do8eData));
-
-		// Decrypt DO87
-		byte[] data = null;
-		byte[] unwrappedAPDUBytes = null;
+		int outStart = plainRapdu.position();
 
-		if (do87 != null) {
+		// Decrypt DO87 (erstes Byte ist der Padding-Indikator)
+		if (do87Offset >= 0) {
 			crypto.init(ks_enc, ssc);
-			byte[] do87Data = do87.getData();
 			try {
-				data = crypto.decrypt(do87Data);
+				rapdu.limit(do87End);
+				rapdu.position(do87ValueOffset + 1);
+				crypto.decrypt(rapdu, plainRapdu);
 			} catch (AmCryptoException e) {
 				throw new SecureMessagingException(e);
+			} finally {
+				rapdu.limit(limit);
 			}
-			// Build unwrapped RAPDU
-			unwrappedAPDUBytes = new byte[data.length + 2];
-			System.arraycopy(data, 0, unwrappedAPDUBytes, 0, data.length);
-			byte[] do99Data = do99.getData();
-			System.arraycopy(do99Data, 0, unwrappedAPDUBytes, data.length,
-					do99Data.length);
-		} else
-			unwrappedAPDUBytes = do99.getData().clone();
-
-		return new ResponseAPDU(unwrappedAPDUBytes);
+		}
+
+		// Statuswort aus DO99
+		for (int i = do99ValueOffset; i < do99End; i++) {
+			plainRapdu.put(rapdu.get(i));
+		}
+		rapdu.position(limit);
+
+		return plainRapdu.position() - outStart;
 	}
 
-	
 	/**
-	 * encrypt data with KS.ENC and build DO87
+	 * Entpackt eine SM-geschützte Response-APDU und schreibt die
+	 * entschlüsselten Daten aus DO87 blockweise in den übergebenen
+	 * OutputStream. Der MAC wird vor dem Entschlüsseln geprüft, es werden also
+	 * nur authentische Daten geschrieben. Die Klartextdaten werden nie als
+	 * Ganzes im Speicher gehalten.
+	 * 
+	 * @param rapdu
+	 *            Puffer mit der SM-geschützten Response-APDU. Die Position steht
+	 *            danach auf dem Limit.
 	 * @param data
-	 * @return
+	 *            Stream für die Klartextdaten
+	 * @return Statuswort aus DO99
 	 * @throws SecureMessagingException
+	 * @throws IOException
 	 */
-	private DO87 buildDO87(byte[] data) throws SecureMessagingException  {
+	public int unwrap(ByteBuffer rapdu, OutputStream data) throws SecureMessagingException, IOException {
+		return unwrapTo(rapdu, data, null);
+	}
 
-		crypto.init(ks_enc, ssc);
-		byte[] enc_data;
-		try {
-			enc_data = crypto.encrypt(data);
-		} catch (AmCryptoException e) {
-			throw new SecureMessagingException(e);
+	/**
+	 * Entpackt eine SM-geschützte Response-APDU und schreibt die
+	 * entschlüsselten Daten aus DO87 blockweise in den übergebenen Channel.
+	 * Der MAC wird vor dem Entschlüsseln geprüft.
+	 * 
+	 * @param rapdu
+	 *            Puffer mit der SM-geschützten Response-APDU. Die Position steht
+	 *            danach auf dem Limit.
+	 * @param data
+	 *            Channel für die Klartextdaten
+	 * @return Statuswort aus DO99
+	 * @throws SecureMessagingException
+	 * @throws IOException
+	 */
+	public int unwrap(ByteBuffer rapdu, WritableByteChannel data) throws SecureMessagingException, IOException {
+		return unwrapTo(rapdu, null, data);
+	}
+
+	private int unwrapTo(ByteBuffer rapdu, OutputStream os, WritableByteChannel channel) throws SecureMessagingException, IOException {
+
+		checkNoPendingBatch();
+
+		int start = rapdu.position();
+		int limit = rapdu.limit();
+
+		if (rapdu.remaining() < 2) throw new SecureMessagingException("Response APDU too short");
+
+		verifyResponse(rapdu, start, limit);
+
+		if (do87Offset >= 0) {
+			crypto.init(ks_enc, ssc);
+			try {
+				rapdu.limit(do87End);
+				rapdu.position(do87ValueOffset + 1);
+				if (os != null) crypto.decrypt(rapdu, os);
+				else crypto.decrypt(rapdu, channel);
+			} catch (AmCryptoException e) {
+				throw new SecureMessagingException(e);
+			} finally {
+				rapdu.limit(limit);
+			}
 		}
 
-		return new DO87(enc_data);
+		int sw = 0;
+		for (int i = do99ValueOffset; i < do99End; i++) {
+			sw = (sw << 8) | (rapdu.get(i) & 0xFF);
+		}
+		rapdu.position(limit);
 
+		return sw;
 	}
 
-	private DO8E buildDO8E(byte[] header, DO87 do87, DO97 do97) throws SecureMessagingException {
+	/**
+	 * Erhöht den SSC, bestimmt die Datenobjekte der Response-APDU und prüft
+	 * den MAC in DO8E über SSC||DO87||DO99.
+	 */
+	private void verifyResponse(ByteBuffer rapdu, int start, int limit) throws SecureMessagingException {
 
-		ByteArrayOutputStream m = new ByteArrayOutputStream();
+		ssc++;
 
-		/**
-		 * Verhindert doppeltes Padden des Headers: Nur wenn do87 oder do97
-		 * vorhanden sind, wird der Header gepaddet. Ansonsten wird erst beim
-		 * Berechnen des MAC gepaddet.
-		 */
-		try {
-			if (do87 != null || do97 != null)
-				m.write(crypto.addPadding(header));
-			
-			else
-				m.write(header);
-
-			if (do87 != null)
-				m.write(do87.getEncoded());
-			if (do97 != null)
-				m.write(do97.getEncoded());
-		} catch (IOException e) {
-			throw new SecureMessagingException(e);
-		}
+		// Datenobjekte über ihre Offsets im Puffer bestimmen (ohne SW1/SW2)
+		scanDataObjects(rapdu, start, limit - 2);
 
+		if (do99Offset < 0)
+			throw new SecureMessagingException("Secure Messaging error: mandatory DO99 not found"); // DO99 is mandatory
+															// and only absent
+															// if SM error
+															// occurs
+		if (do8EValueOffset < 0)
+			throw new SecureMessagingException("Secure Messaging error: mandatory DO8E not found");
+
+		// MAC über SSC||DO87||DO99
 		crypto.init(ks_mac, ssc);
+		try {
+			if (do87Offset >= 0) {
+				rapdu.limit(do87End);
+				rapdu.position(do87Offset);
+				crypto.macUpdate(rapdu);
+			}
+			rapdu.limit(do99End);
+			rapdu.position(do99Offset);
+			crypto.macUpdate(rapdu);
+		} finally {
+			rapdu.limit(limit);
+		}
 
-		return new DO8E(crypto.getMAC(m.toByteArray()));
-	}
+		macBuffer.clear();
+		int macLength = crypto.macFinal(macBuffer);
 
-	private DO97 buildDO97(int le) {
-		return new DO97(le);
+		boolean macValid = (macLength == do8ELength);
+		for (int i = 0; macValid && i < macLength; i++) {
+			macValid = (macBuffer.get(i) == rapdu.get(do8EValueOffset + i));
+		}
+		if (!macValid) {
+			byte[] cc = new byte[macLength];
+			byte[] do8eData = new byte[do8ELength];
+			macBuffer.position(0);
+			macBuffer.get(cc);
+			rapdu.position(do8EValueOffset);
+			rapdu.get(do8eData);
+			rapdu.position(limit);
+			throw new SecureMessagingException("Checksum is incorrect!\n Calculated CC: "
+					+ HexString.bufferToHex(cc) + "\nCC in DO8E: "
+					+ HexString.bufferToHex(do8eData));
+		}
 	}
 
 	/**
-	 * Bestimmt welchem Case die CAPDU enstpricht. (Siehe ISO/IEC 7816-3 Kapitel
-	 * 12.1)
+	 * Durchläuft die SM-Datenobjekte im angegebenen Bereich einmalig und merkt
+	 * sich Anfang, Wertanfang und Ende von DO87, DO99 und DO8E als Offsets im
+	 * Puffer. Es werden weder Daten kopiert noch ASN.1-Objekte erzeugt.
+	 * Fehlende Datenobjekte haben den Offset -1.
 	 * 
-	 * @return Strukurtype (1 = CASE1, ...)
+	 * @param buf Puffer mit der Response-APDU
+	 * @param start Offset des ersten Datenobjekts
+	 * @param end Offset hinter dem letzten Datenobjekt
+	 * @throws SecureMessagingException bei ungültiger TLV-Struktur
+	 */
+	private void scanDataObjects(ByteBuffer buf, int start, int end) throws SecureMessagingException {
+
+		do87Offset = -1;
+		do99Offset = -1;
+		do8EValueOffset = -1;
+
+		int pointer = start;
+		while (pointer < end) {
+			if (pointer + 2 > end) throw new SecureMessagingException("Truncated SM data object");
+			int tag = buf.get(pointer) & 0xFF;
+			int valueOffset = pointer + 2;
+			int valueLength = buf.get(pointer + 1) & 0xFF;
+			if (valueLength >= 0x80) {
+				int size = valueLength & 0x7F;
+				if (size == 0 || size > 3 || valueOffset + size > end)
+					throw new SecureMessagingException("Invalid length in SM data object");
+				valueLength = 0;
+				for (int i = 0; i < size; i++) {
+					valueLength = (valueLength << 8) | (buf.get(valueOffset++) & 0xFF);
+				}
+			}
+			int next = valueOffset + valueLength;
+			if (next > end) throw new SecureMessagingException("Truncated SM data object");
+
+			switch (tag) {
+			case 0x87:
+				// mindestens das Padding-Indicator-Byte
+				if (valueLength < 1) throw new SecureMessagingException("Empty DO87 in SM response");
+				do87Offset = pointer;
+				do87ValueOffset = valueOffset;
+				do87End = next;
+				break;
+			case 0x99:
+				do99Offset = pointer;
+				do99ValueOffset = valueOffset;
+				do99End = next;
+				break;
+			case 0x8E:
+				do8EValueOffset = valueOffset;
+				do8ELength = valueLength;
+				break;
+			}
+			pointer = next;
+		}
+	}
+	
+	/**
+	 * Anzahl der Bytes die das Längenfeld eines TLV-Objekts mit der angegebenen
+	 * Länge benötigt
 	 */
-	private byte getAPDUStructure(CommandAPDU capdu) {
-		byte[] cardcmd = capdu.getBytes();
-
-		if (cardcmd.length == 4)
-			return 1;
-		if (cardcmd.length == 5)
-			return 2;
-		if (cardcmd.length == (5 + (cardcmd[4]&0xff)) && cardcmd[4] != 0)
-			return 3;
-		if (cardcmd.length == (6 + (cardcmd[4]&0xff)) && cardcmd[4] != 0)
-			return 4;
-		if (cardcmd.length == 7 && cardcmd[4] == 0)
-			return 5;
-		if (cardcmd.length == (7 + (cardcmd[5]&0xff) * 256 + (cardcmd[6]&0xff))
-				&& cardcmd[4] == 0 && (cardcmd[5] != 0 || cardcmd[6] != 0))
-			return 6;
-		if (cardcmd.length == (9 + (cardcmd[5]&0xff) * 256 + (cardcmd[6]&0xff))
-				&& cardcmd[4] == 0 && (cardcmd[5] != 0 || cardcmd[6] != 0))
-			return 7;
-		return 0;
+	private static int getLengthFieldSize(int length) {
+		if (length < 0x80) return 1;
+		if (length < 0x100) return 2;
+		return 3;
 	}
 
-	private void incrementAtIndex(byte[] array, int index) {
-		if (array[index] == Byte.MAX_VALUE) {
-			array[index] = 0;
-			if (index > 0)
-				incrementAtIndex(array, index - 1);
-		} else {
-			array[index]++;
+	private static void putLength(ByteBuffer out, int length) {
+		if (length >= 0x100) {
+			out.put((byte) 0x82);
+			out.put((byte) (length >> 8));
+		} else if (length >= 0x80) {
+			out.put((byte) 0x81);
 		}
+		out.put((byte) length);
 	}
 }
@@ -0,0 +1,262 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.iso7816;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import de.tsenger.animamea.crypto.AmCryptoAlgorithm;
+import de.tsenger.animamea.crypto.AmCryptoSelector;
+
+/**
+ * Zustand einer etablierten Secure-Messaging-Session (Verfahren, K_enc, K_mac,
+ * SSC und ausgewählte Applikation). Der Zustand kann kompakt binär kodiert und
+ * optional mit einem lokalen AES-Schlüssel (GCM) verschlüsselt werden, um eine
+ * Session ohne erneutes PACE/TA/CA in einem anderen Thread oder Prozess
+ * fortzusetzen.
+ *
+ * Kodierung (unverschlüsselt):
+ *
+ * <pre>
+ * 01 | Verfahren (1) | SSC (8) | len | K_enc | len | K_mac | len | AID
+ * </pre>
+ *
+ * Kodierung (verschlüsselt):
+ *
+ * <pre>
+ * 02 | Nonce (12) | AES-GCM(unverschlüsselte Kodierung) inkl. Tag (16)
+ * </pre>
+ *
+ * Die Session darf nach dem Export nur noch an einer Stelle weiterverwendet
+ * werden, da Karte und Terminal sonst unterschiedliche SSC-Werte haben.
+ *
+ * @author Tobias Senger (tobias@t-senger.de)
+ *
+ */
+public class SecureMessagingSnapshot {
+
+	public static final byte CRYPTO_DES = 1;
+	public static final byte CRYPTO_AES = 2;
+
+	private static final byte VERSION_PLAIN = 1;
+	private static final byte VERSION_ENCRYPTED = 2;
+	private static final int NONCE_LENGTH = 12;
+	private static final int TAG_LENGTH = 16;
+
+	private static SecureRandom random = null;
+
+	private final byte cryptoType;
+	private final byte[] kenc;
+	private final byte[] kmac;
+	private final long ssc;
+	private final byte[] selectedAID;
+
+	/**
+	 * Konstruktor
+	 *
+	 * @param cryptoType
+	 *            {@link #CRYPTO_DES} oder {@link #CRYPTO_AES}
+	 * @param kenc
+	 *            Session Key für Verschlüsselung (K_enc)
+	 * @param kmac
+	 *            Session Key für Prüfsummenberechnung (K_mac)
+	 * @param ssc
+	 *            aktueller Wert des Send Sequence Counters
+	 * @param selectedAID
+	 *            AID der ausgewählten Applikation oder <code>null</code>
+	 */
+	public SecureMessagingSnapshot(byte cryptoType, byte[] kenc, byte[] kmac, long ssc, byte[] selectedAID) {
+		if (cryptoType != CRYPTO_DES && cryptoType != CRYPTO_AES)
+			throw new IllegalArgumentException("Unknown crypto type: " + cryptoType);
+		this.cryptoType = cryptoType;
+		this.kenc = kenc.clone();
+		this.kmac = kmac.clone();
+		this.ssc = ssc;
+		this.selectedAID = (selectedAID != null) ? selectedAID.clone() : new byte[0];
+	}
+
+	/**
+	 * Kodiert den Zustand unverschlüsselt. Das Ergebnis enthält die Session
+	 * Keys im Klartext!
+	 *
+	 * @return kodierter Zustand
+	 */
+	public byte[] getEncoded() {
+		ByteBuffer bb = ByteBuffer.allocate(2 + 8 + 3 + kenc.length + kmac.length + selectedAID.length);
+		bb.put(VERSION_PLAIN);
+		bb.put(cryptoType);
+		bb.putLong(ssc);
+		bb.put((byte) kenc.length).put(kenc);
+		bb.put((byte) kmac.length).put(kmac);
+		bb.put((byte) selectedAID.length).put(selectedAID);
+		return bb.array();
+	}
+
+	/**
+	 * Kodiert den Zustand und verschlüsselt ihn mit AES-GCM unter dem
+	 * angegebenen lokalen Schlüssel.
+	 *
+	 * @param wrappingKey
+	 *            AES-Schlüssel (16, 24 oder 32 Byte)
+	 * @return verschlüsselter Zustand
+	 * @throws SecureMessagingException
+	 */
+	public byte[] getEncoded(byte[] wrappingKey) throws SecureMessagingException {
+
+		byte[] plain = getEncoded();
+		byte[] nonce = new byte[NONCE_LENGTH];
+		getRandom().nextBytes(nonce);
+
+		GCMBlockCipher gcm = new GCMBlockCipher(new AESFastEngine());
+		gcm.init(true, new AEADParameters(new KeyParameter(wrappingKey), TAG_LENGTH * 8, nonce, new byte[] { VERSION_ENCRYPTED }));
+
+		byte[] out = new byte[1 + NONCE_LENGTH + gcm.getOutputSize(plain.length)];
+		out[0] = VERSION_ENCRYPTED;
+		System.arraycopy(nonce, 0, out, 1, NONCE_LENGTH);
+		try {
+			int len = gcm.processBytes(plain, 0, plain.length, out, 1 + NONCE_LENGTH);
+			gcm.doFinal(out, 1 + NONCE_LENGTH + len);
+		} catch (InvalidCipherTextException e) {
+			throw new SecureMessagingException(e);
+		} finally {
+			Arrays.fill(plain, (byte) 0);
+		}
+		return out;
+	}
+
+	/**
+	 * Dekodiert einen unverschlüsselten Zustand
+	 *
+	 * @param encoded
+	 *            mit {@link #getEncoded()} erzeugter Zustand
+	 * @return Snapshot
+	 * @throws SecureMessagingException
+	 *             falls die Kodierung ungültig ist
+	 */
+	public static SecureMessagingSnapshot decode(byte[] encoded) throws SecureMessagingException {
+		try {
+			ByteBuffer bb = ByteBuffer.wrap(encoded);
+			if (bb.get() != VERSION_PLAIN)
+				throw new SecureMessagingException("Unsupported SM snapshot format");
+			byte cryptoType = bb.get();
+			long ssc = bb.getLong();
+			byte[] kenc = new byte[bb.get() & 0xFF];
+			bb.get(kenc);
+			byte[] kmac = new byte[bb.get() & 0xFF];
+			bb.get(kmac);
+			byte[] aid = new byte[bb.get() & 0xFF];
+			bb.get(aid);
+			if (bb.hasRemaining())
+				throw new SecureMessagingException("Invalid SM snapshot length");
+			return new SecureMessagingSnapshot(cryptoType, kenc, kmac, ssc, aid);
+		} catch (BufferUnderflowException e) {
+			throw new SecureMessagingException("Truncated SM snapshot", e);
+		} catch (IllegalArgumentException e) {
+			throw new SecureMessagingException(e);
+		}
+	}
+
+	/**
+	 * Entschlüsselt und dekodiert einen mit {@link #getEncoded(byte[])}
+	 * erzeugten Zustand.
+	 *
+	 * @param encoded
+	 *            verschlüsselter Zustand
+	 * @param wrappingKey
+	 *            AES-Schlüssel mit dem der Zustand verschlüsselt wurde
+	 * @return Snapshot
+	 * @throws SecureMessagingException
+	 *             falls die Kodierung ungültig ist oder die Authentisierung
+	 *             fehlschlägt
+	 */
+	public static SecureMessagingSnapshot decode(byte[] encoded, byte[] wrappingKey) throws SecureMessagingException {
+
+		if (encoded.length < 1 + NONCE_LENGTH + TAG_LENGTH || encoded[0] != VERSION_ENCRYPTED)
+			throw new SecureMessagingException("Unsupported SM snapshot format");
+
+		byte[] nonce = Arrays.copyOfRange(encoded, 1, 1 + NONCE_LENGTH);
+		GCMBlockCipher gcm = new GCMBlockCipher(new AESFastEngine());
+		gcm.init(false, new AEADParameters(new KeyParameter(wrappingKey), TAG_LENGTH * 8, nonce, new byte[] { VERSION_ENCRYPTED }));
+
+		int inLength = encoded.length - 1 - NONCE_LENGTH;
+		byte[] plain = new byte[gcm.getOutputSize(inLength)];
+		try {
+			int len = gcm.processBytes(encoded, 1 + NONCE_LENGTH, inLength, plain, 0);
+			gcm.doFinal(plain, len);
+			return decode(plain);
+		} catch (InvalidCipherTextException e) {
+			throw new SecureMessagingException("SM snapshot authentication failed", e);
+		} finally {
+			Arrays.fill(plain, (byte) 0);
+		}
+	}
+
+	/**
+	 * Erzeugt ein SecureMessaging-Objekt, das die Session mit dem
+	 * gespeicherten SSC fortsetzt.
+	 *
+	 * @return SecureMessaging-Objekt
+	 */
+	public SecureMessaging getSecureMessaging() {
+		AmCryptoAlgorithm algorithm = (cryptoType == CRYPTO_AES) ? AmCryptoSelector.getAES() : AmCryptoSelector.getDES();
+		byte[] initialSSC = new byte[algorithm.getBlockSize()];
+		for (int i = 0; i < 8; i++) {
+			initialSSC[initialSSC.length - 1 - i] = (byte) (ssc >>> (8 * i));
+		}
+		return new SecureMessaging(algorithm, kenc, kmac, initialSSC);
+	}
+
+	/**
+	 * Überschreibt die Session Keys in diesem Snapshot mit Nullen
+	 */
+	public void clear() {
+		Arrays.fill(kenc, (byte) 0);
+		Arrays.fill(kmac, (byte) 0);
+	}
+
+	public byte getCryptoType() {
+		return cryptoType;
+	}
+
+	public long getSSC() {
+		return ssc;
+	}
+
+	/**
+	 * @return AID der ausgewählten Applikation, leer falls keine angegeben
+	 *         wurde
+	 */
+	public byte[] getSelectedAID() {
+		return selectedAID.clone();
+	}
+
+	private static synchronized SecureRandom getRandom() {
+		if (random == null) random = new SecureRandom();
+		return random;
+	}
+}
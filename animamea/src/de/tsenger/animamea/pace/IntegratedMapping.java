@@ -0,0 +1,166 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.pace;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.util.encoders.Hex;
+
+import de.tsenger.animamea.asn1.ProtocolDescriptor;
+import de.tsenger.animamea.crypto.TripleDESEngine;
+
+/**
+ * Hilfsfunktionen für PACE mit Integrated Mapping (ICAO Doc 9303 Part 11,
+ * 4.4.3.3.2 bzw. BSI TR-03110): die Pseudozufallsfunktion R_p(s,t) und die
+ * Abbildung einer Zahl auf einen Punkt der Kurve.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+final class IntegratedMapping {
+
+	private static final BigInteger THREE = BigInteger.valueOf(3);
+	private static final BigInteger FOUR = BigInteger.valueOf(4);
+
+	private static final byte[] C0_128 = Hex.decode("a668892a7c41e3ca739f40b057d85904");
+	private static final byte[] C1_128 = Hex.decode("a4e136ac725f738b01c1f60217c188ad");
+	private static final byte[] C0_256 = Hex.decode("d463d65234124ef7897054986dca0a174e28df758cbaa03f240616414d5a1676");
+	private static final byte[] C1_256 = Hex.decode("54bd7255f0aaf831bec3423fcf39d69b6cbf066677d0faae5aadd99df8e53517");
+
+	private IntegratedMapping() {
+	}
+
+	/**
+	 * Länge der Nonce t des Terminals in Byte (Schlüssellänge k der
+	 * Blockchiffre)
+	 * 
+	 * @param cipher
+	 *            ProtocolDescriptor.CIPHER_3DES_CBC_CBC oder CIPHER_AES_CBC_CMAC
+	 * @param keyLength
+	 *            Schlüssellänge in Bit
+	 */
+	static int getNonceLength(int cipher, int keyLength) {
+		if (cipher == ProtocolDescriptor.CIPHER_3DES_CBC_CBC) return 16;
+		return keyLength / 8;
+	}
+
+	/**
+	 * Pseudozufallsfunktion R_p(s,t) auf Basis der Blockchiffre E im CBC-Modus
+	 * mit IV 0:
+	 * 
+	 * <pre>
+	 * k_0 = E(t, s)
+	 * k_i = E(k_(i-1), c_0), x_i = E(k_(i-1), c_1)
+	 * R_p(s,t) = int(x_1 || ... || x_n) mod p mit n*|x_i| >= log2(p) + 64
+	 * </pre>
+	 * 
+	 * @param s
+	 *            Nonce der Karte
+	 * @param t
+	 *            Nonce des Terminals (Schlüssel der Länge k)
+	 * @param p
+	 *            Modulus
+	 * @param cipher
+	 *            ProtocolDescriptor.CIPHER_3DES_CBC_CBC oder CIPHER_AES_CBC_CMAC
+	 * @return Zahl aus [0, p-1]
+	 */
+	static BigInteger pseudoRandomNumber(byte[] s, byte[] t, BigInteger p, int cipher) {
+		int keySize = t.length;
+		byte[] c0 = (keySize > 16) ? C0_256 : C0_128;
+		byte[] c1 = (keySize > 16) ? C1_256 : C1_128;
+
+		CBCBlockCipher cbc = new CBCBlockCipher((cipher == ProtocolDescriptor.CIPHER_3DES_CBC_CBC) ? new TripleDESEngine() : new AESFastEngine());
+		byte[] iv = new byte[cbc.getBlockSize()];
+
+		// k_0 wird ggf. mit Nullen auf die Schlüssellänge aufgefüllt
+		byte[] key = Arrays.copyOf(encrypt(cbc, t, iv, s), keySize);
+
+		int n = (p.bitLength() + 64 + c1.length * 8 - 1) / (c1.length * 8);
+		byte[] x = new byte[n * c1.length];
+		for (int i = 0; i < n; i++) {
+			byte[] xi = encrypt(cbc, key, iv, c1);
+			System.arraycopy(xi, 0, x, i * c1.length, c1.length);
+			byte[] next = encrypt(cbc, key, iv, c0);
+			Arrays.fill(key, (byte) 0);
+			key = Arrays.copyOf(next, keySize);
+		}
+		Arrays.fill(key, (byte) 0);
+
+		return new BigInteger(1, x).mod(p);
+	}
+
+	private static byte[] encrypt(BlockCipher cbc, byte[] key, byte[] iv, byte[] data) {
+		cbc.init(true, new ParametersWithIV(new KeyParameter(key), iv));
+		byte[] out = new byte[data.length];
+		for (int off = 0; off < data.length; off += cbc.getBlockSize()) {
+			cbc.processBlock(data, off, out, off);
+		}
+		return out;
+	}
+
+	/**
+	 * Bildet t auf einen Punkt der Kurve y^2 = x^3 + ax + b über F_p ab
+	 * (vereinfachter SWU-Algorithmus nach Brier et al.). Erfordert p = 3 mod 4.
+	 * 
+	 * @param curve
+	 *            Kurve
+	 * @param t
+	 *            Zahl aus [1, p-1]
+	 * @return Punkt auf der Kurve
+	 */
+	static ECPoint encodePoint(ECCurve.Fp curve, BigInteger t) {
+		BigInteger p = curve.getQ();
+		if (!p.mod(FOUR).equals(THREE))
+			throw new IllegalArgumentException("Integrated Mapping requires p = 3 mod 4");
+		if (t.signum() == 0) throw new IllegalArgumentException("t must not be zero");
+
+		BigInteger a = curve.getA().toBigInteger();
+		BigInteger b = curve.getB().toBigInteger();
+
+		// 1. alpha = -t^2
+		BigInteger alpha = t.multiply(t).negate().mod(p);
+		// 2. X2 = -b * a^-1 * (1 + (alpha + alpha^2)^-1)
+		BigInteger inv = alpha.add(alpha.multiply(alpha)).mod(p).modInverse(p);
+		BigInteger x2 = b.negate().multiply(a.modInverse(p)).mod(p).multiply(BigInteger.ONE.add(inv)).mod(p);
+		// 3. X3 = alpha * X2
+		BigInteger x3 = alpha.multiply(x2).mod(p);
+		// 4./5. h2 = X2^3 + a*X2 + b, h3 = X3^3 + a*X3 + b
+		BigInteger h2 = x2.pow(3).add(a.multiply(x2)).add(b).mod(p);
+		// 6. U = t^3 * h2
+		BigInteger u = t.pow(3).multiply(h2).mod(p);
+		// 7. A = h2^(p - 1 - (p + 1) / 4)
+		BigInteger exp = p.subtract(BigInteger.ONE).subtract(p.add(BigInteger.ONE).shiftRight(2));
+		BigInteger aa = h2.modPow(exp, p);
+
+		// 8./9. h2 ist Quadrat: (X2, A*h2), sonst (X3, A*U)
+		if (aa.multiply(aa).multiply(h2).mod(p).equals(BigInteger.ONE))
+			return curve.createPoint(x2, aa.multiply(h2).mod(p));
+		else
+			return curve.createPoint(x3, aa.multiply(u).mod(p));
+	}
+}
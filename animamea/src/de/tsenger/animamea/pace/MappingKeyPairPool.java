@@ -0,0 +1,274 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.pace;
+
+import static de.tsenger.animamea.tools.Converter.bigIntToByteArray;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.crypto.params.DHParameters;
+import org.bouncycastle.jce.spec.ECParameterSpec;
+
+import de.tsenger.animamea.crypto.DHEngine;
+import de.tsenger.animamea.crypto.FixedBaseMultiplier;
+
+/**
+ * Pool vorberechneter Schlüsselpaare (x1, X1) für den ersten Schritt des
+ * PACE-Mappings. Das Schlüsselpaar hängt nicht von der Nonce der Karte ab und
+ * kann daher im Hintergrund erzeugt werden, bevor die Karte vorgelegt wird
+ * bzw. während sie ein Kommando bearbeitet.
+ * 
+ * Für jeden Satz Domain Parameter gibt es genau einen Pool
+ * ({@link #getInstance(ECParameterSpec)}, {@link #getInstance(DHParameters)}).
+ * Es werden höchstens {@value #MAX_POOLS} Pools gehalten; bei mehr Domain
+ * Parametern wird der am längsten nicht verwendete Pool verworfen und geleert.
+ * Ohne {@link #setBackgroundGeneration(ExecutorService, int)} bleibt der Pool
+ * leer und jedes Schlüsselpaar wird wie bisher direkt bei Bedarf berechnet.
+ * Jedes Schlüsselpaar wird nur einmal herausgegeben. Die Klasse ist
+ * thread-safe.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public abstract class MappingKeyPairPool {
+
+	private static final int MAX_POOLS = 32;
+
+	private static final LinkedHashMap<Object, MappingKeyPairPool> pools = new LinkedHashMap<Object, MappingKeyPairPool>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Object, MappingKeyPairPool> eldest) {
+			if (size() <= MAX_POOLS) return false;
+			eldest.getValue().evict();
+			return true;
+		}
+	};
+	private static ExecutorService executor = null;
+	private static int capacity = 0;
+
+	protected final SecureRandom randomGenerator = new SecureRandom();
+
+	private final BlockingQueue<MappingKeyPair> keyPairs = new LinkedBlockingQueue<MappingKeyPair>();
+	private final AtomicBoolean refilling = new AtomicBoolean(false);
+	private volatile boolean evicted = false;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Liefert den Pool für die angegebenen EC-Domain-Parameter
+	 * 
+	 * @param ecParameterSpec
+	 *            EC-Domain-Parameter
+	 * @return Pool
+	 */
+	public static synchronized MappingKeyPairPool getInstance(ECParameterSpec ecParameterSpec) {
+		MappingKeyPairPool pool = pools.get(ecParameterSpec);
+		if (pool == null) {
+			pool = new ECPool(ecParameterSpec);
+			pools.put(ecParameterSpec, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Liefert den Pool für die angegebenen DH-Domain-Parameter
+	 * 
+	 * @param dhParameters
+	 *            DH-Domain-Parameter
+	 * @return Pool
+	 */
+	public static synchronized MappingKeyPairPool getInstance(DHParameters dhParameters) {
+		MappingKeyPairPool pool = pools.get(dhParameters);
+		if (pool == null) {
+			pool = new DHPool(dhParameters);
+			pools.put(dhParameters, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Lässt für alle Pools bis zu <code>count</code> Schlüsselpaare im
+	 * Hintergrund berechnen. Die Pools werden sofort und nach jeder Entnahme
+	 * wieder aufgefüllt.
+	 * 
+	 * @param executor
+	 *            Executor für die Hintergrundberechnung, <code>null</code>
+	 *            schaltet die Vorausberechnung ab und leert die Pools
+	 * @param count
+	 *            maximale Anzahl vorberechneter Schlüsselpaare pro Pool
+	 */
+	public static synchronized void setBackgroundGeneration(ExecutorService executor, int count) {
+		MappingKeyPairPool.executor = (count > 0) ? executor : null;
+		MappingKeyPairPool.capacity = (MappingKeyPairPool.executor != null) ? count : 0;
+		for (MappingKeyPairPool pool : pools.values()) {
+			if (MappingKeyPairPool.executor == null) pool.keyPairs.clear();
+			else pool.refill();
+		}
+	}
+
+	/**
+	 * Entnimmt ein Schlüsselpaar. Ist der Pool leer, wird das Schlüsselpaar
+	 * direkt berechnet.
+	 * 
+	 * @return unbenutztes Schlüsselpaar
+	 */
+	MappingKeyPair take() {
+		MappingKeyPair keyPair = keyPairs.poll();
+		if (keyPair != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			keyPair = generateKeyPair();
+		}
+		refill();
+		return keyPair;
+	}
+
+	/**
+	 * Füllt den Pool im Hintergrund auf, z.B. beim Start der Anwendung. Ohne
+	 * Executor hat der Aufruf keine Wirkung.
+	 */
+	public void prefill() {
+		refill();
+	}
+
+	/**
+	 * Wird aufgerufen, wenn der Pool aus dem Cache verdrängt wurde. Der Pool
+	 * wird nicht mehr aufgefüllt, bereits ausgegebene Referenzen berechnen
+	 * die Schlüsselpaare direkt.
+	 */
+	private void evict() {
+		evicted = true;
+		keyPairs.clear();
+	}
+
+	private void refill() {
+		final ExecutorService exec;
+		final int count;
+		synchronized (MappingKeyPairPool.class) {
+			exec = executor;
+			count = capacity;
+		}
+		if (exec == null || evicted || keyPairs.size() >= count || !refilling.compareAndSet(false, true)) return;
+		try {
+			exec.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (!evicted && keyPairs.size() < count) {
+							keyPairs.offer(generateKeyPair());
+						}
+						if (evicted) keyPairs.clear();
+					} finally {
+						refilling.set(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			refilling.set(false);
+		}
+	}
+
+	/**
+	 * @return Anzahl der Entnahmen, die aus dem Pool bedient wurden
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return Anzahl der Entnahmen, für die das Schlüsselpaar direkt berechnet
+	 *         werden musste
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return Anzahl der aktuell vorberechneten Schlüsselpaare
+	 */
+	public int getSize() {
+		return keyPairs.size();
+	}
+
+	/**
+	 * Berechnet ein neues Schlüsselpaar. Wird ggf. in einem anderen Thread
+	 * ausgeführt.
+	 */
+	protected abstract MappingKeyPair generateKeyPair();
+
+	/**
+	 * Privater Schlüssel x1 und kodierter öffentlicher Schlüssel X1
+	 */
+	static final class MappingKeyPair {
+
+		final BigInteger privateKey;
+		final byte[] publicKey;
+
+		MappingKeyPair(BigInteger privateKey, byte[] publicKey) {
+			this.privateKey = privateKey;
+			this.publicKey = publicKey;
+		}
+	}
+
+	private static final class ECPool extends MappingKeyPairPool {
+
+		private final FixedBaseMultiplier multiplier;
+		private final int fieldSize;
+
+		ECPool(ECParameterSpec ecParameterSpec) {
+			multiplier = FixedBaseMultiplier.getInstance(ecParameterSpec);
+			fieldSize = ecParameterSpec.getCurve().getFieldSize();
+		}
+
+		@Override
+		protected MappingKeyPair generateKeyPair() {
+			byte[] x1 = new byte[fieldSize / 8];
+			randomGenerator.nextBytes(x1);
+			BigInteger sk = new BigInteger(1, x1);
+			return new MappingKeyPair(sk, multiplier.multiply(sk).getEncoded());
+		}
+	}
+
+	private static final class DHPool extends MappingKeyPairPool {
+
+		private final DHEngine engine;
+
+		DHPool(DHParameters dhParameters) {
+			engine = new DHEngine(dhParameters);
+		}
+
+		@Override
+		protected MappingKeyPair generateKeyPair() {
+			BigInteger sk = engine.generatePrivateKey(randomGenerator);
+			return new MappingKeyPair(sk, bigIntToByteArray(engine.getPublicKey(sk)));
+		}
+	}
+}
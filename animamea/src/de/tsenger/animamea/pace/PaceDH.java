@@ -27,6 +27,8 @@ import java.util.Random;
 
 import org.bouncycastle.crypto.params.DHParameters;
 
+import de.tsenger.animamea.crypto.DHEngine;
+
 /**
  * PACE mit Diffie Hellman
  * 
@@ -36,17 +38,19 @@ import org.bouncycastle.crypto.params.DHParameters;
 public class PaceDH extends Pace {
 
 	private final SecureRandom randomGenerator = new SecureRandom();
-	private BigInteger g = null;
+	private DHEngine engine = null;
 	private BigInteger p = null;
 
+	private MappingKeyPairPool keyPairPool = null;
 	private BigInteger PCD_SK_x1 = null;
 	private BigInteger PCD_SK_x2 = null;
 
 	private byte[] nonce_s = null;
 
 	public PaceDH(DHParameters dhParameters) {
-		g = dhParameters.getG();
+		engine = new DHEngine(dhParameters);
 		p = dhParameters.getP();
+		keyPairPool = MappingKeyPairPool.getInstance(dhParameters);
 		Random rnd = new Random();
 		randomGenerator.setSeed(rnd.nextLong());
 	}
@@ -60,13 +64,11 @@ public class PaceDH extends Pace {
 	public byte[] getX1(byte[] s) {
 		nonce_s  = s.clone();
 		
-		byte[] x1 = new byte[g.bitLength() / 8];
-		randomGenerator.nextBytes(x1);
-		PCD_SK_x1 = new BigInteger(1, x1);
-		
-		BigInteger PCD_PK_X1 = g.modPow(PCD_SK_x1, p);
+		// x1 und X1 = g^x1 mod p hängen nicht von s ab und sind ggf. vorberechnet
+		MappingKeyPairPool.MappingKeyPair keyPair = keyPairPool.take();
+		PCD_SK_x1 = keyPair.privateKey;
 		
-		return bigIntToByteArray(PCD_PK_X1);
+		return keyPair.publicKey;
 	}
 
 	/*
@@ -78,13 +80,11 @@ public class PaceDH extends Pace {
 	public byte[] getX2(byte[] Y1) {
 		BigInteger PICC_PK_Y1 = new BigInteger(1, Y1);
 		
-		BigInteger SharedSecret_P = PICC_PK_Y1.modPow(PCD_SK_x1, p);
+		BigInteger SharedSecret_P = engine.modPow(PICC_PK_Y1, PCD_SK_x1);
 		
-		BigInteger g_strich = g.modPow(new BigInteger(1, nonce_s), p).multiply(SharedSecret_P).mod(p);
+		BigInteger g_strich = engine.multiply(engine.getPublicKey(new BigInteger(1, nonce_s)), SharedSecret_P);
 		
-		byte[] x2 = new byte[g.bitLength() / 8];
-		randomGenerator.nextBytes(x2);
-		PCD_SK_x2 = new BigInteger(1, x2);
+		PCD_SK_x2 = engine.generatePrivateKey(randomGenerator);
 		
 		BigInteger PCD_PK_X2 = g_strich.modPow(PCD_SK_x2, p);
 		
@@ -99,7 +99,7 @@ public class PaceDH extends Pace {
 	@Override
 	public byte[] getSharedSecret_K(byte[] Y2) {
 		BigInteger PICC_PK_Y2 = new BigInteger(1, Y2);
-		BigInteger SharedSecret_K = PICC_PK_Y2.modPow(PCD_SK_x2, p);
+		BigInteger SharedSecret_K = engine.modPow(PICC_PK_Y2, PCD_SK_x2);
 		return bigIntToByteArray(SharedSecret_K);
 	}
 
@@ -0,0 +1,118 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.pace;
+
+import static de.tsenger.animamea.tools.Converter.bigIntToByteArray;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Random;
+
+import org.bouncycastle.crypto.params.DHParameters;
+
+import de.tsenger.animamea.crypto.DHEngine;
+
+/**
+ * PACE mit Diffie Hellman und Integrated Mapping. Der neue Generator g' wird
+ * direkt aus den Nonces s und t abgeleitet, so dass der erste
+ * Schlüsselaustausch entfällt.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public class PaceDHIM extends Pace {
+
+	private final SecureRandom randomGenerator = new SecureRandom();
+	private DHEngine engine = null;
+	private BigInteger p = null;
+	private BigInteger q = null;
+	private int cipher = 0;
+	private int nonceLength = 0;
+
+	private BigInteger g_strich = null;
+	private BigInteger PCD_SK_x2 = null;
+
+	/**
+	 * @param dhParameters
+	 *            Domain Parameter, die Ordnung q muss bekannt sein
+	 * @param cipher
+	 *            ProtocolDescriptor.CIPHER_3DES_CBC_CBC oder CIPHER_AES_CBC_CMAC
+	 * @param keyLength
+	 *            Schlüssellänge in Bit
+	 */
+	public PaceDHIM(DHParameters dhParameters, int cipher, int keyLength) {
+		engine = new DHEngine(dhParameters);
+		p = dhParameters.getP();
+		q = engine.getQ();
+		if (q == null) throw new IllegalArgumentException("Integrated Mapping requires the order q of the DH group");
+		this.cipher = cipher;
+		nonceLength = IntegratedMapping.getNonceLength(cipher, keyLength);
+		Random rnd = new Random();
+		randomGenerator.setSeed(rnd.nextLong());
+	}
+
+	/**
+	 * Wählt die Nonce t und berechnet g' = R_p(s,t)^((p-1)/q) mod p.
+	 * 
+	 * @param s
+	 *            Die enschlüsselte nonce s der Karte
+	 * @return Die Nonce t als Mapping Data
+	 */
+	@Override
+	public byte[] getX1(byte[] s) {
+		BigInteger exp = p.subtract(BigInteger.ONE).divide(q);
+		byte[] t = new byte[nonceLength];
+		do {
+			randomGenerator.nextBytes(t);
+			BigInteger r = IntegratedMapping.pseudoRandomNumber(s, t, p, cipher);
+			g_strich = r.modPow(exp, p);
+		} while (g_strich.compareTo(BigInteger.ONE) <= 0);
+
+		return t;
+	}
+
+	/**
+	 * Berechnet den öffentlichen Schlüssel des Terminals X2 = g'^x2 mod p. Beim
+	 * Integrated Mapping sendet die Karte keine Mapping Data, Y1 wird daher
+	 * nicht benötigt.
+	 * 
+	 * @param Y1
+	 *            wird ignoriert, kann <code>null</code> sein
+	 * @return öffentlicher Schlüssel X2 des Terminals.
+	 */
+	@Override
+	public byte[] getX2(byte[] Y1) {
+		PCD_SK_x2 = engine.generatePrivateKey(randomGenerator);
+		return bigIntToByteArray(g_strich.modPow(PCD_SK_x2, p));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.tsenger.animamea.pace.Pace#getSharedSecret_K(byte[])
+	 */
+	@Override
+	public byte[] getSharedSecret_K(byte[] Y2) {
+		BigInteger PICC_PK_Y2 = new BigInteger(1, Y2);
+		BigInteger SharedSecret_K = engine.modPow(PICC_PK_Y2, PCD_SK_x2);
+		return bigIntToByteArray(SharedSecret_K);
+	}
+
+}
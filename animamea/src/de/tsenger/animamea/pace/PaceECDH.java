@@ -31,7 +31,7 @@ import org.bouncycastle.math.ec.ECCurve;
 import org.bouncycastle.math.ec.ECPoint;
 import org.bouncycastle.math.ec.ECPoint.Fp;
 
-import de.tsenger.animamea.tools.HexString;
+import de.tsenger.animamea.crypto.FixedBaseMultiplier;
 
 /**
  * PACE mit Elliptic Curve Diffie Hellman
@@ -42,20 +42,22 @@ import de.tsenger.animamea.tools.HexString;
 
 public class PaceECDH extends Pace {
 
-	private ECPoint pointG = null;
+	private FixedBaseMultiplier multiplierG = null;
 	private ECCurve.Fp curve = null;
 	private BigInteger nonce_s = null;
 	
 	private final SecureRandom randomGenerator = new SecureRandom();
 
+	private MappingKeyPairPool keyPairPool = null;
 	private BigInteger PCD_SK_x1 = null;
 	private BigInteger PCD_SK_x2 = null;
 
 
 	public PaceECDH(ECParameterSpec ecParameterSpec) {
 
-		pointG = ecParameterSpec.getG();
+		multiplierG = FixedBaseMultiplier.getInstance(ecParameterSpec);
 		curve = (org.bouncycastle.math.ec.ECCurve.Fp) ecParameterSpec.getCurve();
+		keyPairPool = MappingKeyPairPool.getInstance(ecParameterSpec);
 		Random rnd = new Random();
 		randomGenerator.setSeed(rnd.nextLong());
 
@@ -70,13 +72,11 @@ public class PaceECDH extends Pace {
 	public byte[] getX1(byte[] s) {
 		nonce_s = new BigInteger(1, s);
 		
-		byte[] x1 = new byte[(curve.getFieldSize() / 8)];
-		randomGenerator.nextBytes(x1);
-		PCD_SK_x1 = new BigInteger(1, x1);
+		// x1 und X1 = x1 * G hängen nicht von s ab und sind ggf. vorberechnet
+		MappingKeyPairPool.MappingKeyPair keyPair = keyPairPool.take();
+		PCD_SK_x1 = keyPair.privateKey;
 		
-		ECPoint PCD_PK_X1 = pointG.multiply(PCD_SK_x1);
-		
-		return PCD_PK_X1.getEncoded();
+		return keyPair.publicKey;
 	}
 	
 
@@ -91,10 +91,11 @@ public class PaceECDH extends Pace {
 	 */
 	private ECPoint getX2(ECPoint.Fp Y1) {
 		
-		ECPoint.Fp SharedSecret_P = (Fp) Y1.multiply(PCD_SK_x1);
-		System.out.println("\nP: "+HexString.bufferToHex(SharedSecret_P.getEncoded()));
-		ECPoint pointG_strich = pointG.multiply(nonce_s).add(SharedSecret_P);
-		System.out.println("\nG_strich: "+HexString.bufferToHex(pointG_strich.getEncoded()));
+		// G' = s*G + P mit P = x1*Y1 in einer gemeinsamen Multiplikation.
+		// G' wird einmal normalisiert, da er Basis der folgenden
+		// Multiplikation ist.
+		ECPoint pointG_strich = multiplierG.sumOfMultiplies(nonce_s, Y1, PCD_SK_x1).normalize();
+		
 		byte[] x2 = new byte[(curve.getFieldSize() / 8)];
 		randomGenerator.nextBytes(x2);
 		PCD_SK_x2 = new BigInteger(1, x2);
@@ -0,0 +1,124 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.pace;
+
+import static de.tsenger.animamea.tools.Converter.bigIntToByteArray;
+import static de.tsenger.animamea.tools.Converter.byteArrayToECPoint;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Random;
+
+import org.bouncycastle.jce.spec.ECParameterSpec;
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+
+/**
+ * PACE mit Elliptic Curve Diffie Hellman und Integrated Mapping. Der neue
+ * Generator G' wird direkt aus den Nonces s und t abgeleitet, so dass der
+ * erste Schlüsselaustausch (x1, X1 und P = x1 * Y1) entfällt.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public class PaceECDHIM extends Pace {
+
+	private ECCurve.Fp curve = null;
+	private BigInteger cofactor = null;
+	private int cipher = 0;
+	private int nonceLength = 0;
+
+	private final SecureRandom randomGenerator = new SecureRandom();
+
+	private ECPoint pointG_strich = null;
+	private BigInteger PCD_SK_x2 = null;
+
+	/**
+	 * @param ecParameterSpec
+	 *            Domain Parameter, der Modulus p muss p = 3 mod 4 erfüllen
+	 * @param cipher
+	 *            ProtocolDescriptor.CIPHER_3DES_CBC_CBC oder CIPHER_AES_CBC_CMAC
+	 * @param keyLength
+	 *            Schlüssellänge in Bit
+	 */
+	public PaceECDHIM(ECParameterSpec ecParameterSpec, int cipher, int keyLength) {
+		curve = (ECCurve.Fp) ecParameterSpec.getCurve();
+		cofactor = ecParameterSpec.getH();
+		this.cipher = cipher;
+		nonceLength = IntegratedMapping.getNonceLength(cipher, keyLength);
+		Random rnd = new Random();
+		randomGenerator.setSeed(rnd.nextLong());
+	}
+
+	/**
+	 * Wählt die Nonce t und berechnet G' = f_G(R_p(s,t)).
+	 * 
+	 * @param s
+	 *            Die enschlüsselte nonce s der Karte
+	 * @return Die Nonce t als Mapping Data
+	 */
+	@Override
+	public byte[] getX1(byte[] s) {
+		byte[] t = new byte[nonceLength];
+		BigInteger r;
+		do {
+			randomGenerator.nextBytes(t);
+			r = IntegratedMapping.pseudoRandomNumber(s, t, curve.getQ(), cipher);
+		} while (r.signum() == 0);
+
+		pointG_strich = IntegratedMapping.encodePoint(curve, r);
+		if (cofactor != null && !cofactor.equals(BigInteger.ONE))
+			pointG_strich = pointG_strich.multiply(cofactor);
+		pointG_strich = pointG_strich.normalize();
+
+		return t;
+	}
+
+	/**
+	 * Berechnet den öffentlichen Schlüssel des Terminals X2 = x2 * G'. Beim
+	 * Integrated Mapping sendet die Karte keine Mapping Data, Y1 wird daher
+	 * nicht benötigt.
+	 * 
+	 * @param Y1
+	 *            wird ignoriert, kann <code>null</code> sein
+	 * @return öffentlicher Schlüssel X2 des Terminals.
+	 */
+	@Override
+	public byte[] getX2(byte[] Y1) {
+		byte[] x2 = new byte[(curve.getFieldSize() / 8)];
+		randomGenerator.nextBytes(x2);
+		PCD_SK_x2 = new BigInteger(1, x2);
+
+		return pointG_strich.multiply(PCD_SK_x2).getEncoded();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see de.tsenger.animamea.pace.Pace#getSharedSecret_K(byte[])
+	 */
+	@Override
+	public byte[] getSharedSecret_K(byte[] Y2) {
+		ECPoint PICC_PK_Y2 = byteArrayToECPoint(Y2, curve);
+		ECPoint K = PICC_PK_Y2.multiply(PCD_SK_x2).normalize();
+		return bigIntToByteArray(K.getXCoord().toBigInteger());
+	}
+
+}
@@ -0,0 +1,209 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.animamea.pace;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Begrenzter, zeitlich beschränkter Cache für den aus dem Passwort
+ * abgeleiteten Schlüssel K_pi. Wird PACE mit derselben CAN bzw. MRZ mehrfach
+ * durchgeführt (erneutes Lesen, Wiederholungen, andere Terminal-Rolle),
+ * entfallen damit das Hashen der MRZ und die Schlüsselableitung.
+ * 
+ * Einträge werden nach Ablauf der Lebensdauer, bei Überschreiten der maximalen
+ * Anzahl (der am längsten nicht verwendete Eintrag) oder durch
+ * {@link #invalidate(int, String)} bzw. {@link #invalidateAll()} entfernt.
+ * Dabei werden der Schlüssel und das gespeicherte Passwort mit Nullen
+ * überschrieben. Die Klasse ist thread-safe.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public class PaceKeyCache {
+
+	private final int maxEntries;
+	private final long ttlNanos;
+
+	private final LinkedHashMap<Entry, Entry> entries;
+
+	/**
+	 * Konstruktor
+	 * 
+	 * @param maxEntries
+	 *            maximale Anzahl gespeicherter Schlüssel
+	 * @param ttlMillis
+	 *            Lebensdauer eines Eintrags in Millisekunden
+	 */
+	public PaceKeyCache(int maxEntries, long ttlMillis) {
+		if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive");
+		if (ttlMillis <= 0) throw new IllegalArgumentException("ttlMillis must be positive");
+		this.maxEntries = maxEntries;
+		this.ttlNanos = ttlMillis * 1000000L;
+		this.entries = new LinkedHashMap<Entry, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Entry, Entry> eldest) {
+				if (size() > PaceKeyCache.this.maxEntries) {
+					eldest.getValue().clear();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Liefert K_pi aus dem Cache
+	 * 
+	 * @param pwRef
+	 *            Typ des Passworts (1=MRZ, 2=CAN, 3=PIN, 4=PUK)
+	 * @param password
+	 *            Passwort wie an PaceOperator übergeben
+	 * @param keyLength
+	 *            Schlüssellänge in Bit
+	 * @return Kopie von K_pi oder <code>null</code> falls kein gültiger
+	 *         Eintrag vorhanden ist
+	 */
+	public synchronized byte[] get(int pwRef, String password, int keyLength) {
+		Entry lookup = new Entry(pwRef, password, keyLength);
+		Entry entry = entries.get(lookup);
+		lookup.clear();
+		if (entry == null) return null;
+		if (System.nanoTime() - entry.created > ttlNanos) {
+			entries.remove(entry);
+			entry.clear();
+			return null;
+		}
+		return entry.key.clone();
+	}
+
+	/**
+	 * Speichert K_pi im Cache. Ein vorhandener Eintrag wird ersetzt.
+	 * 
+	 * @param pwRef
+	 *            Typ des Passworts (1=MRZ, 2=CAN, 3=PIN, 4=PUK)
+	 * @param password
+	 *            Passwort wie an PaceOperator übergeben
+	 * @param keyLength
+	 *            Schlüssellänge in Bit
+	 * @param kpi
+	 *            abgeleiteter Schlüssel K_pi (wird kopiert)
+	 */
+	public synchronized void put(int pwRef, String password, int keyLength, byte[] kpi) {
+		Entry entry = new Entry(pwRef, password, keyLength);
+		entry.key = kpi.clone();
+		entry.created = System.nanoTime();
+		Entry old = entries.remove(entry);
+		if (old != null) old.clear();
+		entries.put(entry, entry);
+		removeExpired();
+	}
+
+	/**
+	 * Entfernt alle Einträge zu dem angegebenen Passwort (für alle
+	 * Schlüssellängen), z.B. nach einem fehlgeschlagenen PACE.
+	 * 
+	 * @param pwRef
+	 *            Typ des Passworts
+	 * @param password
+	 *            Passwort
+	 */
+	public synchronized void invalidate(int pwRef, String password) {
+		char[] pw = password.toCharArray();
+		for (Iterator<Entry> it = entries.keySet().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (entry.pwRef == pwRef && Arrays.equals(entry.password, pw)) {
+				it.remove();
+				entry.clear();
+			}
+		}
+		Arrays.fill(pw, '\0');
+	}
+
+	/**
+	 * Entfernt alle Einträge
+	 */
+	public synchronized void invalidateAll() {
+		for (Entry entry : entries.keySet()) {
+			entry.clear();
+		}
+		entries.clear();
+	}
+
+	/**
+	 * @return Anzahl der Einträge (inkl. abgelaufener, noch nicht entfernter)
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private void removeExpired() {
+		long now = System.nanoTime();
+		for (Iterator<Entry> it = entries.keySet().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (now - entry.created > ttlNanos) {
+				it.remove();
+				entry.clear();
+			}
+		}
+	}
+
+	/**
+	 * Schlüssel und Wert eines Cache-Eintrags. Das Passwort wird als char[]
+	 * gehalten, damit es beim Entfernen überschrieben werden kann.
+	 */
+	private static final class Entry {
+
+		private final int pwRef;
+		private final char[] password;
+		private final int keyLength;
+		private final int hash;
+		private byte[] key = null;
+		private long created;
+
+		Entry(int pwRef, String password, int keyLength) {
+			this.pwRef = pwRef;
+			this.password = password.toCharArray();
+			this.keyLength = keyLength;
+			this.hash = 31 * (31 * pwRef + Arrays.hashCode(this.password)) + keyLength;
+		}
+
+		void clear() {
+			Arrays.fill(password, '\0');
+			if (key != null) Arrays.fill(key, (byte) 0);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Entry)) return false;
+			Entry other = (Entry) obj;
+			return pwRef == other.pwRef && keyLength == other.keyLength && Arrays.equals(password, other.password);
+		}
+	}
+}
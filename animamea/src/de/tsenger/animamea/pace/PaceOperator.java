@@ -19,27 +19,6 @@
 
 package de.tsenger.animamea.pace;
 
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_DH_GM;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_DH_GM_3DES_CBC_CBC;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_DH_GM_AES_CBC_CMAC_128;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_DH_GM_AES_CBC_CMAC_192;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_DH_GM_AES_CBC_CMAC_256;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_DH_IM;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_DH_IM_3DES_CBC_CBC;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_DH_IM_AES_CBC_CMAC_128;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_DH_IM_AES_CBC_CMAC_192;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_DH_IM_AES_CBC_CMAC_256;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_ECDH_GM;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_ECDH_GM_3DES_CBC_CBC;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_ECDH_GM_AES_CBC_CMAC_128;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_ECDH_GM_AES_CBC_CMAC_192;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_ECDH_GM_AES_CBC_CMAC_256;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_ECDH_IM;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_ECDH_IM_3DES_CBC_CBC;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_ECDH_IM_AES_CBC_CMAC_128;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_ECDH_IM_AES_CBC_CMAC_192;
-import static de.tsenger.animamea.asn1.BSIObjectIdentifiers.id_PACE_ECDH_IM_AES_CBC_CMAC_256;
-
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.KeyFactory;
@@ -49,6 +28,12 @@ import java.security.NoSuchProviderException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.crypto.spec.DHPublicKeySpec;
 import javax.smartcardio.CardException;
@@ -63,16 +48,20 @@ import org.bouncycastle.math.ec.ECPoint;
 import org.bouncycastle.util.Arrays;
 
 import de.tsenger.animamea.AmCardHandler;
+import de.tsenger.animamea.AsyncCardHandler;
+import de.tsenger.animamea.AsyncProtocol;
 import de.tsenger.animamea.asn1.AmDHPublicKey;
 import de.tsenger.animamea.asn1.AmECPublicKey;
 import de.tsenger.animamea.asn1.BSIObjectIdentifiers;
+import de.tsenger.animamea.asn1.ChipAuthenticationPublicKeyInfo;
 import de.tsenger.animamea.asn1.DomainParameter;
 import de.tsenger.animamea.asn1.DynamicAuthenticationData;
 import de.tsenger.animamea.asn1.PaceDomainParameterInfo;
 import de.tsenger.animamea.asn1.PaceInfo;
-import de.tsenger.animamea.crypto.AmAESCrypto;
+import de.tsenger.animamea.asn1.ProtocolDescriptor;
+import de.tsenger.animamea.asn1.ProtocolRegistry;
+import de.tsenger.animamea.crypto.AmCryptoException;
 import de.tsenger.animamea.crypto.AmCryptoProvider;
-import de.tsenger.animamea.crypto.AmDESCrypto;
 import de.tsenger.animamea.crypto.KeyDerivationFunction;
 import de.tsenger.animamea.iso7816.MSESetAT;
 import de.tsenger.animamea.iso7816.SecureMessaging;
@@ -93,11 +82,17 @@ public class PaceOperator {
 	private AmCryptoProvider crypto = null;
 	private AmCardHandler cardHandler = null;
 	private int passwordRef = 0;
-	private byte[] passwordBytes = null;
+	private String password = null;
+	private PaceKeyCache keyCache = null;
+	private Executor executor = null;
 	private String protocolOIDString = null;
+	private ProtocolDescriptor protocol = null;
 	private int keyLength = 0;
 	private int terminalType = 0;
 	private byte[] pk_picc = null;
+	private PublicKey pubKeyPicc = null;
+	private byte[] pk_map_picc = null;
+	private byte[] ca_picc = null;
 	private DomainParameter dp = null;
 	
 	static Logger logger = Logger.getLogger(PaceOperator.class);
@@ -110,6 +105,29 @@ public class PaceOperator {
 		cardHandler = ch;
 	}
 
+	/**
+	 * Setzt einen Cache für den aus dem Passwort abgeleiteten Schlüssel K_pi.
+	 * Bei einem Treffer entfallen Hashen der MRZ und Schlüsselableitung. Ohne
+	 * Cache (Standard) wird K_pi bei jedem PACE neu berechnet.
+	 * 
+	 * @param cache PaceKeyCache-Instanz oder <code>null</code>
+	 */
+	public void setKeyCache(PaceKeyCache cache) {
+		keyCache = cache;
+	}
+
+	/**
+	 * Setzt den Executor, auf dem {@link #performPace()} den erwarteten
+	 * Authentication Token T_PICC' berechnet, während die Karte T_PCD prüft.
+	 * Ohne Executor (Standard) wird T_PICC' vor dem Senden von T_PCD im
+	 * aufrufenden Thread berechnet.
+	 * 
+	 * @param executor Executor-Instanz oder <code>null</code>
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
 	/**
 	 * Initialisiert PACE mit standardisierten Domain Parametern.
 	 * 
@@ -121,24 +139,17 @@ public class PaceOperator {
 	public void setAuthTemplate(PaceInfo pi, String password, int pwRef, int terminalRef) {
 
 		protocolOIDString = pi.getProtocolOID();
+		protocol = getProtocolDescriptor(pi);
 		passwordRef = pwRef;
 		terminalType = terminalRef;
 
-		if (passwordRef == 1)
-			passwordBytes = calcSHA1(password.getBytes());
-		else
-			passwordBytes = password.getBytes();
+		this.password = password;
 
-		dp = new DomainParameter(pi.getParameterId());
+		dp = DomainParameter.getInstance(pi.getParameterId());
 
-		if (protocolOIDString.startsWith(id_PACE_DH_GM.toString())
-				|| protocolOIDString.startsWith(id_PACE_DH_IM.toString()))
-			pace = new PaceDH(dp.getDHParameter());
-		else if (protocolOIDString.startsWith(id_PACE_ECDH_GM.toString())
-				|| protocolOIDString.startsWith(id_PACE_ECDH_IM.toString()))
-			pace = new PaceECDH(dp.getECParameter());
+		pace = createPace();
 
-		getCryptoInformation(pi);
+		getCryptoInformation();
 	}
 
 	/**
@@ -154,6 +165,7 @@ public class PaceOperator {
 	public void setAuthTemplate(PaceInfo pi, PaceDomainParameterInfo pdpi, String password, int pwRef, int terminalRef) throws PaceException{
 
 		protocolOIDString = pi.getProtocolOID();
+		protocol = getProtocolDescriptor(pi);
 		passwordRef = pwRef;
 		terminalType = terminalRef;
 
@@ -162,27 +174,21 @@ public class PaceOperator {
 		if (pi.getParameterId() != pdpi.getParameterId())
 			throw new IllegalArgumentException("PaceInfo doesn't match the PaceDomainParameterInfo");
 
-		if (pwRef == 1)
-			passwordBytes = calcSHA1(password.getBytes());
-		else
-			passwordBytes = password.getBytes();
+		this.password = password;
 
 		getProprietaryDomainParameters(pdpi);
 
-		if (protocolOIDString.startsWith(id_PACE_DH_GM.toString())
-				|| protocolOIDString.startsWith(id_PACE_DH_IM.toString()))
-			pace = new PaceDH(dp.getDHParameter());
-		else if (protocolOIDString.startsWith(id_PACE_ECDH_GM.toString())
-				|| protocolOIDString.startsWith(id_PACE_ECDH_IM.toString()))
-			pace = new PaceECDH(dp.getECParameter());
+		pace = createPace();
 
-		getCryptoInformation(pi);
+		getCryptoInformation();
 	}
 
 
 	/**
 	 * Führt alle Schritte des PACE-Protokolls durch und liefert bei Erfolg 
 	 * eine mit den ausgehandelten Schlüsseln intialisierte SecureMessaging-Instanz zurück.
+	 * Ist mit {@link #setExecutor(Executor)} ein Executor gesetzt, wird T_PICC'
+	 * dort berechnet, während die Karte T_PCD prüft.
 	 * 
 	 * @return Bei Erfolg von PACE wird eine mit den ausgehandelten Schlüsseln 
 	 * 			intialisierte SecureMessaging-Instanz zurückgegeben. Anderfalls <code>null</code>.
@@ -203,39 +209,30 @@ public class PaceOperator {
 		logger.debug("NONCE S PLAIN: "+HexString.bufferToHex(nonce_s));
 		byte[] X1 = pace.getX1(nonce_s);
 
-		// X1 zur Karte schicken und Y1 empfangen
+		// X1 zur Karte schicken und Y1 empfangen (Integrated Mapping: t senden, Y1 ist leer)
 		byte[] Y1 = mapNonce(X1).getDataObject(2);
+		pk_map_picc = Y1;
 
 		byte[] X2 = pace.getX2(Y1);
 		// X2 zur Karte schicken und Y2 empfangen.
 		byte[] Y2 = performKeyAgreement(X2).getDataObject(4);
 		
 		// Y2 ist PK_Picc der für die TA benötigt wird.
-		pk_picc = Y2.clone();
+		setPKpicc(Y2);
 
-		byte[] S = pace.getSharedSecret_K(Y2);
-		byte[] kenc = getKenc(S);
-		byte[] kmac = getKmac(S);
-		logger.debug("K bzw S: "+HexString.bufferToHex(S));
-		logger.debug("Kenc: "+HexString.bufferToHex(kenc));
-		logger.debug("Kmac: "+HexString.bufferToHex(kmac));
+		final byte[] kenc = new byte[KeyDerivationFunction.getKeySize(keyLength)];
+		final byte[] kmac = new byte[kenc.length];
+		deriveSessionKeys(Y2, kenc, kmac);
 		// Authentication Token T_PCD berechnen
 		byte[] tpcd = calcAuthToken(kmac, Y2);
 
+		// T_PICC', SecureMessaging und PK_PICC berechnen, während die Karte T_PCD prüft
+		CompletableFuture<ExpectedAuthentication> expected = startMutualAuthentication(X2, kenc, kmac);
+
 		// Authentication Token T_PCD zur Karte schicken und Authentication Token T_PICC empfangen
 		DynamicAuthenticationData dad = performMutualAuthentication(tpcd);
-		byte[] tpicc = dad.getDataObject(6);
-		if (dad.getDataObject(7)!= null) logger.info("CAR: "+new String(dad.getDataObject(7)));
-		if (dad.getDataObject(8)!= null) logger.info("CAR2: "+new String(dad.getDataObject(8)));
 
-		// Authentication Token T_PICC' berechnen
-		byte[] tpicc_strich = calcAuthToken(kmac, X2);
-		logger.debug("tpicc' :"+HexString.bufferToHex(tpicc_strich));
-
-		// Prüfe ob T_PICC = T_PICC'
-		if (!Arrays.areEqual(tpicc, tpicc_strich)) throw new PaceException("Authentication Tokens are different");
-		
-		return new SecureMessaging(crypto, kenc, kmac, new byte[crypto.getBlockSize()]);
+		return verifyMutualAuthentication(dad, awaitMutualAuthentication(expected), kenc);
 	}
 
 	/**
@@ -280,49 +277,109 @@ public class PaceOperator {
 		logger.debug("NONCE S PLAIN: "+HexString.bufferToHex(nonce_s));
 		byte[] X1 = pace.getX1(nonce_s);
 
-		// X1 zur Karte schicken und Y1 empfangen
+		// X1 zur Karte schicken und Y1 empfangen (Integrated Mapping: t senden, Y1 ist leer)
 		byte[] Y1 = mapNonce(X1).getDataObject(2);
+		pk_map_picc = Y1;
 
 		byte[] X2 = pace.getX2(Y1);
 		// X2 zur Karte schicken und Y2 empfangen.
 		byte[] Y2 = performKeyAgreement(X2).getDataObject(4);
 		
 		// Y2 ist PK_Picc der für die TA benötigt wird.
-		pk_picc = Y2.clone();
+		setPKpicc(Y2);
 
-		byte[] S = pace.getSharedSecret_K(Y2);
-		byte[] kenc = getKenc(S);
-		byte[] kmac = getKmac(S);
-		logger.debug("K bzw S: "+HexString.bufferToHex(S));
-		logger.debug("Kenc: "+HexString.bufferToHex(kenc));
-		logger.debug("Kmac: "+HexString.bufferToHex(kmac));
+		final byte[] kenc = new byte[KeyDerivationFunction.getKeySize(keyLength)];
+		final byte[] kmac = new byte[kenc.length];
+		deriveSessionKeys(Y2, kenc, kmac);
 		// Authentication Token T_PCD berechnen
 		byte[] tpcd = calcAuthToken(kmac, Y2);
 
+		// T_PICC', SecureMessaging und PK_PICC berechnen, während die Karte T_PCD prüft
+		CompletableFuture<ExpectedAuthentication> expected = startMutualAuthentication(X2, kenc, kmac);
+
 		// Authentication Token T_PCD zur Karte schicken und Authentication Token T_PICC empfangen
 		DynamicAuthenticationData dad = performMutualAuthentication(tpcd);
-		byte[] tpicc = dad.getDataObject(6);
-		if (dad.getDataObject(7)!= null) logger.info("CAR: "+new String(dad.getDataObject(7)));
-		if (dad.getDataObject(8)!= null) logger.info("CAR2: "+new String(dad.getDataObject(8)));
 
-		// Authentication Token T_PICC' berechnen
-		byte[] tpicc_strich = calcAuthToken(kmac, X2);
-		logger.debug("tpicc' :"+HexString.bufferToHex(tpicc_strich));
-
-		// Prüfe ob T_PICC = T_PICC'
-		if (!Arrays.areEqual(tpicc, tpicc_strich)) throw new PaceException("Authentication Tokens are different");
-		
-		return new SecureMessaging(crypto, kenc, kmac, new byte[crypto.getBlockSize()]);
+		return verifyMutualAuthentication(dad, awaitMutualAuthentication(expected), kenc);
 	}
 
 	
 	
+	/**
+	 * Asynchrone Variante von {@link #performPace()}. Während auf die Karte
+	 * gewartet wird, belegt die Session keinen Thread; die Berechnungen laufen
+	 * auf dem übergebenen Executor. Eine PaceOperator-Instanz führt immer nur
+	 * eine Session gleichzeitig durch.
+	 * 
+	 * @param ch AsyncCardHandler über den die Kartenkommandos gesendet werden
+	 * @param executor Executor für die Berechnungen oder <code>null</code>
+	 * @return CompletionStage mit der intialisierten SecureMessaging-Instanz,
+	 * 			bzw. mit einer PaceException, SecureMessagingException oder 
+	 * 			Exception des Transports falls PACE fehlschlägt
+	 */
+	public CompletionStage<SecureMessaging> performPaceAsync(AsyncCardHandler ch, Executor executor) {
+		return new AsyncPace(ch, executor).run();
+	}
+
+	/**
+	 * @return <code>true</code> falls die Protokoll-OID PACE mit Chip
+	 *         Authentication Mapping (PACE-CAM) festlegt
+	 */
+	public boolean isChipAuthenticationMapping() {
+		return protocol != null && protocol.getMapping() == ProtocolDescriptor.MAPPING_CHIP_AUTHENTICATION;
+	}
+
+	/**
+	 * Prüft nach PACE-CAM die von der Karte gesendeten Chip Authentication
+	 * Data CA_PICC gegen den statischen Chip Authentication Public Key
+	 * PK_PICC aus dem EF.CardSecurity. Die Karte ist authentisiert, wenn
+	 * PK_Map,PICC = CA_PICC * PK_PICC gilt (ICAO Doc 9303 Part 11, 4.4.3.5).
+	 * Bei Erfolg entfällt die separate Chip Authentication, die Session Keys
+	 * aus PACE bleiben gültig.
+	 * 
+	 * @param caPKInfo
+	 *            ChipAuthenticationPublicKeyInfo aus dem EF.CardSecurity
+	 * @return <code>true</code> falls die Chip Authentication Data zum
+	 *         öffentlichen Schlüssel passen, <code>false</code> falls der
+	 *         Schlüssel nicht passt oder andere Domain Parameter verwendet
+	 * @throws PaceException
+	 *             falls kein PACE-CAM durchgeführt wurde
+	 */
+	public boolean verifyChipAuthenticationMapping(ChipAuthenticationPublicKeyInfo caPKInfo) throws PaceException {
+		if (!isChipAuthenticationMapping() || ca_picc == null || pk_map_picc == null)
+			throw new PaceException("No Chip Authentication Data available, PACE-CAM wasn't performed");
+
+		DomainParameter caDP = DomainParameter.getInstance(caPKInfo.getPublicKey().getAlgorithm());
+		if (!"ECDH".equals(caDP.getDPType()) || !caDP.getECParameter().equals(dp.getECParameter())) return false;
+
+		Fp curve = (Fp) dp.getECParameter().getCurve();
+		BigInteger n = dp.getECParameter().getN();
+		BigInteger caData = new BigInteger(1, ca_picc);
+		if (caData.signum() == 0 || caData.compareTo(n) >= 0) return false;
+
+		ECPoint pkPicc = Converter.byteArrayToECPoint(caPKInfo.getPublicKey().getPublicKey(), curve);
+		ECPoint pkMapPicc = Converter.byteArrayToECPoint(pk_map_picc, curve).normalize();
+		ECPoint check = pkPicc.multiply(caData).normalize();
+
+		return check.equals(pkMapPicc);
+	}
+
 	/**
 	 * Liefert den ephemeralen Public Key des Chips zurück. Dieser wird für Terminal
 	 * Authentisierung nach V.2 benötigt.
 	 * @return
 	 */
 	public PublicKey getPKpicc() {
+		if (pubKeyPicc == null) pubKeyPicc = createPKpicc();
+		return pubKeyPicc;
+	}
+
+	private void setPKpicc(byte[] Y2) {
+		pk_picc = Y2.clone();
+		pubKeyPicc = null;
+	}
+
+	private PublicKey createPKpicc() {
 		
 		KeyFactory fact = null;
 		PublicKey pubKey = null;
@@ -365,13 +422,13 @@ public class PaceOperator {
 	 */
 	private byte[] calcAuthToken(byte[] kmac, byte[] data) {
 		byte[] tpcd = null;
-		if (pace instanceof PaceECDH) {
+		if (protocol.getKeyAgreement() == ProtocolDescriptor.KEY_AGREEMENT_ECDH) {
 			Fp curve = (Fp) dp.getECParameter().getCurve();
 			ECPoint pointY = Converter.byteArrayToECPoint(data, curve);
 			AmECPublicKey pkpcd = new AmECPublicKey(protocolOIDString, pointY);
 			tpcd = crypto.getMAC(kmac, pkpcd.getEncoded());
 		}
-		else if (pace instanceof PaceDH) {
+		else if (protocol.getKeyAgreement() == ProtocolDescriptor.KEY_AGREEMENT_DH) {
 			BigInteger y = new BigInteger(data);
 			AmDHPublicKey pkpcd = new AmDHPublicKey(protocolOIDString, y);
 			tpcd = crypto.getMAC(kmac, pkpcd.getEncoded());
@@ -379,70 +436,192 @@ public class PaceOperator {
 		return tpcd;
 	}
 	
-	private DynamicAuthenticationData sendGeneralAuthenticate(boolean chaining, byte[] data) throws SecureMessagingException, CardException, PaceException {
+	/**
+	 * Berechnet aus Y2 das Shared Secret K und leitet daraus K_enc und K_mac
+	 * ab
+	 */
+	private void deriveSessionKeys(byte[] Y2, byte[] kenc, byte[] kmac) {
+		byte[] S = pace.getSharedSecret_K(Y2);
+		new KeyDerivationFunction(S).deriveSessionKeys(keyLength, kenc, kmac);
+		logger.debug("K bzw S: "+HexString.bufferToHex(S));
+		logger.debug("Kenc: "+HexString.bufferToHex(kenc));
+		logger.debug("Kmac: "+HexString.bufferToHex(kmac));
+	}
+
+	/**
+	 * Was die Karte bei der Mutual Authentication liefern muss und was danach
+	 * gebraucht wird. Hängt nicht von der Antwort der Karte ab und wird
+	 * berechnet, während die Karte T_PCD prüft.
+	 */
+	private static final class ExpectedAuthentication {
+		byte[] tpicc;
+		SecureMessaging sm;
+		PublicKey pkpicc;
+	}
+
+	/**
+	 * Berechnet den erwarteten Authentication Token T_PICC', das
+	 * SecureMessaging mit den Session Keys und den Public Key PK_PICC
+	 */
+	private ExpectedAuthentication prepareMutualAuthentication(byte[] X2, byte[] kenc, byte[] kmac) {
+		ExpectedAuthentication expected = new ExpectedAuthentication();
+		expected.tpicc = calcAuthToken(kmac, X2);
+		logger.debug("tpicc' :"+HexString.bufferToHex(expected.tpicc));
+		expected.sm = new SecureMessaging(crypto, kenc, kmac, new byte[crypto.getBlockSize()]);
+		expected.pkpicc = createPKpicc();
+		return expected;
+	}
+
+	/**
+	 * Startet {@link #prepareMutualAuthentication(byte[], byte[], byte[])} auf
+	 * dem gesetzten Executor oder führt es ohne Executor bzw. wenn der
+	 * Executor die Aufgabe ablehnt direkt aus
+	 */
+	private CompletableFuture<ExpectedAuthentication> startMutualAuthentication(final byte[] X2, final byte[] kenc, final byte[] kmac) {
+		if (executor != null) {
+			try {
+				return CompletableFuture.supplyAsync(() -> prepareMutualAuthentication(X2, kenc, kmac), executor);
+			} catch (RejectedExecutionException e) {
+				logger.debug("Executor rejected calculation of T_PICC', calculating inline");
+			}
+		}
+		return CompletableFuture.completedFuture(prepareMutualAuthentication(X2, kenc, kmac));
+	}
+
+	/**
+	 * Wartet auf das Ergebnis von
+	 * {@link #startMutualAuthentication(byte[], byte[], byte[])}
+	 */
+	private ExpectedAuthentication awaitMutualAuthentication(CompletableFuture<ExpectedAuthentication> expected) throws PaceException {
+		try {
+			return expected.join();
+		} catch (CompletionException e) {
+			throw new PaceException("Calculation of T_PICC' failed", e.getCause());
+		} catch (CancellationException e) {
+			throw new PaceException("Calculation of T_PICC' cancelled", e);
+		}
+	}
+
+	/**
+	 * Prüft den Authentication Token T_PICC der Karte und übernimmt bei
+	 * PACE-CAM die Chip Authentication Data.
+	 * 
+	 * @return mit den Session Keys initialisiertes SecureMessaging
+	 */
+	private SecureMessaging verifyMutualAuthentication(DynamicAuthenticationData dad, ExpectedAuthentication expected, byte[] kenc) throws PaceException {
+		byte[] tpicc = dad.getDataObject(6);
+		if (dad.getDataObject(7)!= null) logger.info("CAR: "+new String(dad.getDataObject(7)));
+		if (dad.getDataObject(8)!= null) logger.info("CAR2: "+new String(dad.getDataObject(8)));
+
+		// Prüfe ob T_PICC = T_PICC'
+		if (!Arrays.areEqual(tpicc, expected.tpicc)) {
+			invalidateCachedKey();
+			throw new PaceException("Authentication Tokens are different");
+		}
 		
-		CommandAPDU capdu = new CommandAPDU(chaining?0x10:0x00, 0x86, 0x00, 0x00, data, 0xFF);
-				
-		ResponseAPDU resp = cardHandler.transceive(capdu);
+		// PACE-CAM: verschlüsselte Chip Authentication Data A_PICC (DO 8A)
+		ca_picc = null;
+		if (isChipAuthenticationMapping()) ca_picc = decryptChipAuthenticationData(kenc, dad.getDataObject(10));
 		
+		pubKeyPicc = expected.pkpicc;
+		return expected.sm;
+	}
+
+	/**
+	 * Erzeugt ein General Authenticate mit einem Datenobjekt im Dynamic
+	 * Authentication Data Objekt (7C)
+	 * 
+	 * @param chaining <code>true</code> falls weitere Schritte folgen
+	 * @param tagno Nummer des kontextspezifischen Tags oder -1 für ein leeres 7C
+	 * @param data Inhalt des Datenobjekts
+	 */
+	private static CommandAPDU createGeneralAuthenticate(boolean chaining, int tagno, byte[] data) throws PaceException {
+		byte[] dadBytes = new byte[]{0x7C,0x00};
+		if (tagno >= 0) {
+			DynamicAuthenticationData dad = new DynamicAuthenticationData();
+			dad.addDataObject(tagno, data);
+			try {
+				dadBytes = dad.getEncoded(ASN1Encoding.DER);
+			} catch (IOException e) {
+				throw new PaceException("Couldn't encode Dynamic Authentication Data", e);
+			}
+		}
+		return new CommandAPDU(chaining?0x10:0x00, 0x86, 0x00, 0x00, dadBytes, 0xFF);
+	}
+
+	private static DynamicAuthenticationData evaluateGeneralAuthenticate(ResponseAPDU resp) throws PaceException {
 		if (!(resp.getSW() == 0x9000 || resp.getSW() == 0x6282))
 			throw new PaceException("General Authentication returns: " + HexString.bufferToHex(resp.getBytes()));
 
-		DynamicAuthenticationData dad = new DynamicAuthenticationData(resp.getData());
-		return dad;
+		return new DynamicAuthenticationData(resp.getData());
+	}
+
+	private DynamicAuthenticationData sendGeneralAuthenticate(boolean chaining, int tagno, byte[] data) throws SecureMessagingException, CardException, PaceException {
+		
+		ResponseAPDU resp = cardHandler.transceive(createGeneralAuthenticate(chaining, tagno, data));
+		
+		return evaluateGeneralAuthenticate(resp);
 	}
 
 	private DynamicAuthenticationData performMutualAuthentication(byte[] authToken) throws SecureMessagingException, CardException, PaceException {
 
-		DynamicAuthenticationData dad85 = new DynamicAuthenticationData();
-		DynamicAuthenticationData rspdad = null;
-		dad85.addDataObject(5, authToken);
-		
 		try {
-			rspdad = sendGeneralAuthenticate(false, dad85.getEncoded(ASN1Encoding.DER));
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			return sendGeneralAuthenticate(false, 5, authToken);
+		} catch (PaceException e) {
+			// Karte lehnt T_PCD ab, z.B. wegen falschem Passwort
+			invalidateCachedKey();
+			throw e;
 		}
-		
-		return rspdad;
 	}
 
 
 	private DynamicAuthenticationData performKeyAgreement(byte[] ephemeralPK) throws PaceException, CardException, SecureMessagingException {
 
-		DynamicAuthenticationData dad83 = new DynamicAuthenticationData();
-		DynamicAuthenticationData rspdad = null;
-		dad83.addDataObject(3, ephemeralPK);
-		
+		return sendGeneralAuthenticate(true, 3, ephemeralPK);
+	}
+
+
+	/**
+	 * Entschlüsselt A_PICC mit K_enc. Der IV ist E(K_enc, -1), d.h. der mit
+	 * einem SSC aus lauter 1-Bits berechnete IV.
+	 */
+	private byte[] decryptChipAuthenticationData(byte[] kenc, byte[] a_picc) throws PaceException {
+		if (a_picc == null) throw new PaceException("PACE-CAM: card didn't send Chip Authentication Data");
+		byte[] ssc = new byte[crypto.getBlockSize()];
+		Arrays.fill(ssc, (byte) 0xFF);
 		try {
-			rspdad =  sendGeneralAuthenticate(true, dad83.getEncoded(ASN1Encoding.DER));
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			crypto.init(kenc, ssc);
+			return crypto.decrypt(a_picc);
+		} catch (AmCryptoException e) {
+			throw new PaceException("PACE-CAM: couldn't decrypt Chip Authentication Data", e);
 		}
-		
-		return rspdad;
 	}
 
+	/**
+	 * Erzeugt passend zu Schlüsselvereinbarung und Mapping der Protokoll-OID
+	 * die PACE-Implementierung.
+	 */
+	private Pace createPace() {
+		boolean im = protocol.getMapping() == ProtocolDescriptor.MAPPING_INTEGRATED;
+		if (protocol.getMapping() == ProtocolDescriptor.MAPPING_CHIP_AUTHENTICATION)
+			return new PaceECDH(dp.getECParameter()); // Generic Mapping, CA_PICC folgt bei der Mutual Authentication
+		if (protocol.getKeyAgreement() == ProtocolDescriptor.KEY_AGREEMENT_DH)
+			return im ? new PaceDHIM(dp.getDHParameter(), protocol.getCipher(), protocol.getKeyLength()) : new PaceDH(dp.getDHParameter());
+		else if (protocol.getKeyAgreement() == ProtocolDescriptor.KEY_AGREEMENT_ECDH)
+			return im ? new PaceECDHIM(dp.getECParameter(), protocol.getCipher(), protocol.getKeyLength()) : new PaceECDH(dp.getECParameter());
+		return null;
+	}
 
 	private DynamicAuthenticationData mapNonce(byte[] mappingData) throws SecureMessagingException, CardException, PaceException {
 
-		DynamicAuthenticationData dad81 = new DynamicAuthenticationData();
-		DynamicAuthenticationData rspdad = null;
-		dad81.addDataObject(1, mappingData);
-
-		try {
-			rspdad = sendGeneralAuthenticate(true, dad81.getEncoded(ASN1Encoding.DER));
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		
-		return rspdad;
+		return sendGeneralAuthenticate(true, 1, mappingData);
 	}
 
 	private ResponseAPDU sendMSESetAT(int terminalType) throws PaceException, SecureMessagingException, CardException {
+		return cardHandler.transceive(createMSESetAT(terminalType));
+	}
+
+	private CommandAPDU createMSESetAT(int terminalType) throws PaceException {
 		MSESetAT mse = new MSESetAT();
 		mse.setAT(MSESetAT.setAT_PACE);
 		mse.setProtocol(protocolOIDString);
@@ -462,15 +641,13 @@ public class PaceOperator {
 		default:
 			throw new PaceException("Unknown Terminal Reference: " + terminalType);
 		}
-		return cardHandler.transceive(mse.getCommandAPDU());
+		return mse.getCommandAPDU();
 	}
 
 
 	private DynamicAuthenticationData getNonce() throws PaceException, SecureMessagingException, CardException {
 		
-		byte[] data = new byte[]{0x7C,0x00};
-		
-		return sendGeneralAuthenticate(true, data);
+		return sendGeneralAuthenticate(true, -1, null);
 	}
 
 	/**
@@ -478,26 +655,38 @@ public class PaceOperator {
 	 * @return
 	 */
 	private byte[] decryptNonce(byte[] z) {
-		byte[] derivatedPassword = getKey(keyLength, passwordBytes, 3);
-		//logger.info("PASSWORD BYTES: " + HexString.bufferToHex(passwordBytes));
-		logger.info("PACE NONCE ENC KEY: " + HexString.bufferToHex(derivatedPassword));
-		return crypto.decryptBlock(derivatedPassword, z);
+		byte[] derivatedPassword = null;
+		if (keyCache != null) derivatedPassword = keyCache.get(passwordRef, password, keyLength);
+		if (derivatedPassword == null) {
+			byte[] passwordBytes = getPasswordBytes();
+			derivatedPassword = getKey(keyLength, passwordBytes, 3);
+			Arrays.fill(passwordBytes, (byte) 0);
+			if (keyCache != null) keyCache.put(passwordRef, password, keyLength, derivatedPassword);
+		}
+		try {
+			return crypto.decryptBlock(derivatedPassword, z);
+		} finally {
+			// K_pi ist eine Kopie, das Original bleibt ggf. im Cache
+			Arrays.fill(derivatedPassword, (byte) 0);
+		}
 	}
 
 	/**
-	 * @param sharedSecret_S
-	 * @return
+	 * Liefert die Eingabe der Schlüsselableitung für K_pi: SHA1 über die MRZ
+	 * bzw. das Passwort selbst für CAN, PIN und PUK.
 	 */
-	private byte[] getKenc(byte[] sharedSecret_S) {
-		return getKey(keyLength, sharedSecret_S, 1);
+	private byte[] getPasswordBytes() {
+		if (passwordRef == 1)
+			return calcSHA1(password.getBytes());
+		else
+			return password.getBytes();
 	}
 
 	/**
-	 * @param sharedSecret_S
-	 * @return
+	 * Entfernt K_pi des aktuellen Passworts aus dem Cache
 	 */
-	private byte[] getKmac(byte[] sharedSecret_S) {
-		return getKey(keyLength, sharedSecret_S, 2);
+	private void invalidateCachedKey() {
+		if (keyCache != null) keyCache.invalidate(passwordRef, password);
 	}
 
 	/**
@@ -508,32 +697,15 @@ public class PaceOperator {
 	 */
 	private byte[] getKey(int keyLength, byte[] K, int c)  {
 
-		byte[] key = null;
-
-		KeyDerivationFunction kdf = new KeyDerivationFunction(K, c);
-
-		//logger.info("KEY LENGTH: " + keyLength);
-		switch (keyLength) {
-		case 112:
-			key = kdf.getDESedeKey();
-			break;
-		case 128:
-			key = kdf.getAES128Key();
-			break;
-		case 192:
-			key = kdf.getAES192Key();
-			break;
-		case 256:
-			key = kdf.getAES256Key();
-			break;
-		}
+		byte[] key = new byte[KeyDerivationFunction.getKeySize(keyLength)];
+		new KeyDerivationFunction(K).deriveKey(c, keyLength, key, 0);
 		return key;
 	}
 
 	
 	private void getProprietaryDomainParameters(PaceDomainParameterInfo pdpi) throws PaceException {
 		if (pdpi.getDomainParameter().getAlgorithm().toString().contains(BSIObjectIdentifiers.id_ecc.toString())) {
-			dp = new DomainParameter(pdpi.getDomainParameter());
+			dp = DomainParameter.getInstance(pdpi.getDomainParameter());
 		} else
 			throw new PaceException("Can't decode properietary domain parameters in PaceDomainParameterInfo!");
 	}
@@ -560,32 +732,107 @@ public class PaceOperator {
 	 * Ermittelt anhand der ProtokollOID den Algorithmus und die Schlüssellänge
 	 * für PACE
 	 */
-	private void getCryptoInformation(PaceInfo pi) {
-		String protocolOIDString = pi.getProtocolOID();
-		if (protocolOIDString.equals(id_PACE_DH_GM_3DES_CBC_CBC.toString())
-				|| protocolOIDString.equals(id_PACE_DH_IM_3DES_CBC_CBC.toString())
-				|| protocolOIDString.equals(id_PACE_ECDH_GM_3DES_CBC_CBC.toString())
-				|| protocolOIDString.equals(id_PACE_ECDH_IM_3DES_CBC_CBC.toString())) {
-			keyLength = 112;
-			crypto = new AmDESCrypto();
-		} else if (protocolOIDString.equals(id_PACE_DH_GM_AES_CBC_CMAC_128.toString())
-				|| protocolOIDString.equals(id_PACE_DH_IM_AES_CBC_CMAC_128.toString())
-				|| protocolOIDString.equals(id_PACE_ECDH_GM_AES_CBC_CMAC_128.toString())
-				|| protocolOIDString.equals(id_PACE_ECDH_IM_AES_CBC_CMAC_128.toString())) {
-			keyLength = 128;
-			crypto = new AmAESCrypto();
-		} else if (protocolOIDString.equals(id_PACE_DH_GM_AES_CBC_CMAC_192.toString())
-				|| protocolOIDString.equals(id_PACE_DH_IM_AES_CBC_CMAC_192.toString())
-				|| protocolOIDString.equals(id_PACE_ECDH_GM_AES_CBC_CMAC_192.toString())
-				|| protocolOIDString.equals(id_PACE_ECDH_IM_AES_CBC_CMAC_192.toString())) {
-			keyLength = 192;
-			crypto = new AmAESCrypto();
-		} else if (protocolOIDString.equals(id_PACE_DH_GM_AES_CBC_CMAC_256.toString())
-				|| protocolOIDString.equals(id_PACE_DH_IM_AES_CBC_CMAC_256.toString())
-				|| protocolOIDString.equals(id_PACE_ECDH_GM_AES_CBC_CMAC_256.toString())
-				|| protocolOIDString.equals(id_PACE_ECDH_IM_AES_CBC_CMAC_256.toString())) {
-			keyLength = 256;
-			crypto = new AmAESCrypto();
+	private void getCryptoInformation() {
+		keyLength = protocol.getKeyLength();
+		crypto = protocol.createCryptoProvider();
+	}
+
+	private static ProtocolDescriptor getProtocolDescriptor(PaceInfo pi) {
+		ProtocolDescriptor pd = ProtocolRegistry.lookup(pi.getProtocol());
+		if (pd == null || pd.getType() != ProtocolDescriptor.TYPE_PACE_INFO)
+			throw new IllegalArgumentException("Unsupported PACE protocol: " + pi.getProtocolOID());
+		return pd;
+	}
+
+	/**
+	 * PACE als Zustandsautomat. Der Zustand gibt an, auf welche APDU die
+	 * Antwort erwartet wird.
+	 */
+	private class AsyncPace extends AsyncProtocol<SecureMessaging> {
+
+		private static final int SET_AT = 1;
+		private static final int GET_NONCE = 2;
+		private static final int MAP_NONCE = 3;
+		private static final int KEY_AGREEMENT = 4;
+		private static final int MUTUAL_AUTHENTICATION = 5;
+
+		private byte[] X2 = null;
+		private byte[] kenc = null;
+		private ExpectedAuthentication expected = null;
+
+		AsyncPace(AsyncCardHandler ch, Executor executor) {
+			super(ch, executor);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see de.tsenger.animamea.AsyncProtocol#start()
+		 */
+		@Override
+		protected void start() throws PaceException {
+			state = SET_AT;
+			send(createMSESetAT(terminalType));
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see de.tsenger.animamea.AsyncProtocol#onResponse(javax.smartcardio.ResponseAPDU)
+		 */
+		@Override
+		protected void onResponse(ResponseAPDU resp) throws PaceException {
+			switch (state) {
+			case SET_AT:
+				if (resp.getSW() != 0x9000) throw new PaceException("MSE:Set AT failed. SW: " + Integer.toHexString(resp.getSW()));
+				state = GET_NONCE;
+				send(createGeneralAuthenticate(true, -1, null));
+				break;
+			case GET_NONCE:
+				final byte[] nonce_z = evaluateGeneralAuthenticate(resp).getDataObject(0);
+				compute(() -> {
+					byte[] X1 = pace.getX1(decryptNonce(nonce_z));
+					state = MAP_NONCE;
+					send(createGeneralAuthenticate(true, 1, X1));
+				});
+				break;
+			case MAP_NONCE:
+				// Integrated Mapping: Y1 ist leer
+				final byte[] Y1 = evaluateGeneralAuthenticate(resp).getDataObject(2);
+				pk_map_picc = Y1;
+				compute(() -> {
+					X2 = pace.getX2(Y1);
+					state = KEY_AGREEMENT;
+					send(createGeneralAuthenticate(true, 3, X2));
+				});
+				break;
+			case KEY_AGREEMENT:
+				final byte[] Y2 = evaluateGeneralAuthenticate(resp).getDataObject(4);
+				setPKpicc(Y2);
+				compute(() -> {
+					kenc = new byte[KeyDerivationFunction.getKeySize(keyLength)];
+					final byte[] kmac = new byte[kenc.length];
+					deriveSessionKeys(Y2, kenc, kmac);
+					state = MUTUAL_AUTHENTICATION;
+					// T_PICC', SecureMessaging und PK_PICC berechnen, während die Karte T_PCD prüft
+					send(createGeneralAuthenticate(false, 5, calcAuthToken(kmac, Y2)),
+							() -> expected = prepareMutualAuthentication(X2, kenc, kmac));
+				});
+				break;
+			case MUTUAL_AUTHENTICATION:
+				DynamicAuthenticationData dad;
+				try {
+					dad = evaluateGeneralAuthenticate(resp);
+				} catch (PaceException e) {
+					// Karte lehnt T_PCD ab, z.B. wegen falschem Passwort
+					invalidateCachedKey();
+					throw e;
+				}
+				complete(verifyMutualAuthentication(dad, expected, kenc));
+				break;
+			default:
+				throw new IllegalStateException("Unexpected state: " + state);
+			}
 		}
 	}
 
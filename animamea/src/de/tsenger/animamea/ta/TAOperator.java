@@ -24,7 +24,10 @@ import java.security.KeyPair;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
+import javax.crypto.interfaces.DHPublicKey;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
@@ -34,10 +37,11 @@ import org.bouncycastle.asn1.ASN1Encoding;
 import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.DERTaggedObject;
 import org.bouncycastle.jce.interfaces.ECPublicKey;
-import org.bouncycastle.jce.provider.JCEDHPublicKey;
 import org.bouncycastle.util.encoders.Hex;
 
 import de.tsenger.animamea.AmCardHandler;
+import de.tsenger.animamea.AsyncCardHandler;
+import de.tsenger.animamea.AsyncProtocol;
 import de.tsenger.animamea.asn1.AmECPublicKey;
 import de.tsenger.animamea.asn1.AmPublicKey;
 import de.tsenger.animamea.asn1.CVCertificate;
@@ -138,6 +142,36 @@ public class TAOperator {
 		byte[] rpicc = getChipChallenge();
 		
 		// 5. External Authenticate
+		byte[] signature = signChallenge(rpicc, compEphPK);
+		
+		if (sendExternalAuthenticate(signature).getSW()!=0x9000) throw new TAException("External Authentication failed.");
+		
+		return pair;
+
+	}
+	
+	/**
+	 * Asynchrone Variante von {@link #performTA()}. Während auf die Karte
+	 * gewartet wird, belegt die Session keinen Thread; Schlüsselerzeugung und
+	 * Signatur laufen auf dem übergebenen Executor.
+	 * 
+	 * @param ch AsyncCardHandler über den die Kartenkommandos gesendet werden
+	 * @param executor Executor für die Berechnungen oder <code>null</code>
+	 * @return CompletionStage mit dem Keypair des Terminals bzw. mit einer
+	 *         TAException oder SecureMessagingException
+	 */
+	public CompletionStage<KeyPair> performTAAsync(AsyncCardHandler ch, Executor executor) {
+		return new AsyncTA(ch, executor).run();
+	}
+	
+	/**
+	 * Signiert ID_PICC || r_PICC || Comp(ephPK_PCD)
+	 * 
+	 * @param rpicc Challenge des Chips
+	 * @param compEphPK komprimierter ephemeraler Public Key des Terminals
+	 * @return Signatur für External Authenticate
+	 */
+	private byte[] signChallenge(byte[] rpicc, byte[] compEphPK) throws TAException {
 		// Komprimierter ephemeraler Public Key des Chips aus PACE: ID_PICC = Comp(ephPK_PICC)
 		byte[] idpicc = comp(pkpicc);
 		
@@ -146,12 +180,7 @@ public class TAOperator {
 		System.arraycopy(rpicc, 0, message, idpicc.length, rpicc.length);
 		System.arraycopy(compEphPK, 0, message, idpicc.length+rpicc.length, compEphPK.length);
 				
-		byte[] signature = ta.sign(message);
-		
-		if (sendExternalAuthenticate(signature).getSW()!=0x9000) throw new TAException("External Authentication failed.");
-		
-		return pair;
-
+		return ta.sign(message);
 	}
 	
 	private byte[] comp(java.security.PublicKey publicKey) {
@@ -164,7 +193,7 @@ public class TAOperator {
 			try {
 				md = MessageDigest.getInstance("SHA1");
 			} catch (NoSuchAlgorithmException e) {}
-			md.update(((JCEDHPublicKey)publicKey).getY().toByteArray()); 
+			md.update(((DHPublicKey)publicKey).getY().toByteArray()); 
 	      	return md.digest();
 		}
 		return null;
@@ -176,10 +205,13 @@ public class TAOperator {
 	 * @throws CardException
 	 */
 	private byte[] getChipChallenge() throws  SecureMessagingException, CardException {
-		CommandAPDU capdu = new CommandAPDU(Hex.decode("0084000008"));
-		ResponseAPDU resp = cardHandler.transceive(capdu);
+		ResponseAPDU resp = cardHandler.transceive(createGetChallenge());
 		return resp.getData();
 	}
+	
+	private static CommandAPDU createGetChallenge() {
+		return new CommandAPDU(Hex.decode("0084000008"));
+	}
 
 	
 	/**
@@ -190,8 +222,11 @@ public class TAOperator {
 	 */
 	private ResponseAPDU sendExternalAuthenticate(byte[] signature) throws SecureMessagingException, CardException {
 		
-		CommandAPDU extAuth = new CommandAPDU(0x00,0x82,0x00,0x00,signature);
-		return cardHandler.transceive(extAuth);
+		return cardHandler.transceive(createExternalAuthenticate(signature));
+	}
+	
+	private static CommandAPDU createExternalAuthenticate(byte[] signature) {
+		return new CommandAPDU(0x00,0x82,0x00,0x00,signature);
 	}
 	
 	
@@ -201,14 +236,16 @@ public class TAOperator {
 	 * @throws CardException 
 	 */
 	private void sendMSESetAT(String protocolOIDString, String pkname, byte[] epubkey) throws SecureMessagingException, CardException {
+		cardHandler.transceive(createMSESetAT(protocolOIDString, pkname, epubkey));
+	}
+	
+	private static CommandAPDU createMSESetAT(String protocolOIDString, String pkname, byte[] epubkey) {
 		MSESetAT mse = new MSESetAT();
 		mse.setAT(MSESetAT.setAT_TA);
 		mse.setProtocol(protocolOIDString);
 		mse.setKeyReference(pkname);
 		mse.setEphemeralPublicKey(epubkey);
-		cardHandler.transceive(mse.getCommandAPDU());
-		
-		
+		return mse.getCommandAPDU();
 	}
 
 	/**
@@ -219,6 +256,18 @@ public class TAOperator {
 	 */
 	private ResponseAPDU sendPSOVerifyCertificate(CVCertificate dvCert) throws SecureMessagingException, CardException, TAException {
 		
+		ResponseAPDU resp = cardHandler.transceive(createPSOVerifyCertificate(dvCert));
+		checkPSOVerifyCertificate(resp);
+
+		return resp;
+	}
+	
+	private static void checkPSOVerifyCertificate(ResponseAPDU resp) throws TAException {
+		if (resp.getSW1()!=0x90) throw new TAException("PSO:Verify failed "+HexString.bufferToHex(resp.getBytes()));
+	}
+	
+	private static CommandAPDU createPSOVerifyCertificate(CVCertificate dvCert) {
+		
 		byte[] certBody = null;
 		byte[] certSignature = null;
 		byte[] data = null;
@@ -235,11 +284,7 @@ public class TAOperator {
 			e.printStackTrace();
 		}
 		
-		CommandAPDU pso = new CommandAPDU(0x00, 0x2A, 0x00, 0xBE, data);
-		ResponseAPDU resp = cardHandler.transceive(pso);
-		if (resp.getSW1()!=0x90) throw new TAException("PSO:Verify failed "+HexString.bufferToHex(resp.getBytes()));
-
-		return resp;
+		return new CommandAPDU(0x00, 0x2A, 0x00, 0xBE, data);
 	}
 
 	/**
@@ -250,6 +295,18 @@ public class TAOperator {
 	 * @throws TAException 
 	 */
 	private ResponseAPDU sendMSESetDST(String pubKeyRef) throws SecureMessagingException, CardException, TAException{
+		
+		ResponseAPDU resp = cardHandler.transceive(createMSESetDST(pubKeyRef));
+		checkMSESetDST(resp);
+		
+		return resp;
+	}
+	
+	private static void checkMSESetDST(ResponseAPDU resp) throws TAException {
+		if (resp.getSW1()!=0x90) throw new TAException("MSE:Set AT failed "+HexString.bufferToHex(resp.getBytes()));
+	}
+	
+	private static CommandAPDU createMSESetDST(String pubKeyRef) {
 	
 		DERTaggedObject do83 = new DERTaggedObject(false, 0x03, new DEROctetString(pubKeyRef.getBytes()));
 		byte[] data = null;
@@ -261,14 +318,97 @@ public class TAOperator {
 			e.printStackTrace();
 		}
 		
-		CommandAPDU setdst = new CommandAPDU(0x00,0x22,0x81,0xB6,data);
-		
-		ResponseAPDU resp = cardHandler.transceive(setdst);
-		if (resp.getSW1()!=0x90) throw new TAException("MSE:Set AT failed "+HexString.bufferToHex(resp.getBytes()));
-		
-		return resp;
+		return new CommandAPDU(0x00,0x22,0x81,0xB6,data);
 	}
 
+	/**
+	 * Terminal Authentisierung als Zustandsautomat. Der Zustand gibt an, auf
+	 * welche APDU die Antwort erwartet wird.
+	 */
+	private class AsyncTA extends AsyncProtocol<KeyPair> {
+
+		private static final int SET_DST_DV = 1;
+		private static final int VERIFY_DV = 2;
+		private static final int SET_DST_TERMINAL = 3;
+		private static final int VERIFY_TERMINAL = 4;
+		private static final int SET_AT = 5;
+		private static final int GET_CHALLENGE = 6;
+		private static final int EXTERNAL_AUTHENTICATE = 7;
 
+		private KeyPair pair = null;
+		private byte[] compEphPK = null;
+
+		AsyncTA(AsyncCardHandler ch, Executor executor) {
+			super(ch, executor);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see de.tsenger.animamea.AsyncProtocol#start()
+		 */
+		@Override
+		protected void start() throws IOException {
+			state = SET_DST_DV;
+			send(createMSESetDST(certProv.getDVCert().getBody().getCAR()));
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see de.tsenger.animamea.AsyncProtocol#onResponse(javax.smartcardio.ResponseAPDU)
+		 */
+		@Override
+		protected void onResponse(ResponseAPDU resp) throws TAException, IOException {
+			switch (state) {
+			case SET_DST_DV:
+				checkMSESetDST(resp);
+				state = VERIFY_DV;
+				send(createPSOVerifyCertificate(certProv.getDVCert()));
+				break;
+			case VERIFY_DV:
+				checkPSOVerifyCertificate(resp);
+				state = SET_DST_TERMINAL;
+				send(createMSESetDST(certProv.getTerminalCert().getBody().getCAR()));
+				break;
+			case SET_DST_TERMINAL:
+				checkMSESetDST(resp);
+				state = VERIFY_TERMINAL;
+				send(createPSOVerifyCertificate(certProv.getTerminalCert()));
+				break;
+			case VERIFY_TERMINAL:
+				checkPSOVerifyCertificate(resp);
+				compute(() -> {
+					// Erzeuge die ephemeralen Keys des Terminals
+					pair = ta.getEphemeralPCDKeyPair();
+					ephemeralPKpcd = pair.getPublic();
+					compEphPK = comp(ephemeralPKpcd);
+					String protocolOID = certProv.getTerminalCert().getBody().getPublicKey().getOID();
+					String pkname = certProv.getTerminalCert().getBody().getCHR();
+					state = SET_AT;
+					send(createMSESetAT(protocolOID, pkname, compEphPK));
+				});
+				break;
+			case SET_AT:
+				state = GET_CHALLENGE;
+				send(createGetChallenge());
+				break;
+			case GET_CHALLENGE:
+				final byte[] rpicc = resp.getData();
+				compute(() -> {
+					byte[] signature = signChallenge(rpicc, compEphPK);
+					state = EXTERNAL_AUTHENTICATE;
+					send(createExternalAuthenticate(signature));
+				});
+				break;
+			case EXTERNAL_AUTHENTICATE:
+				if (resp.getSW() != 0x9000) throw new TAException("External Authentication failed.");
+				complete(pair);
+				break;
+			default:
+				throw new IllegalStateException("Unexpected state: " + state);
+			}
+		}
+	}
 
 }
@@ -18,7 +18,10 @@
  */
 package de.tsenger.animamea.ta;
 
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
@@ -27,10 +30,19 @@ import java.security.SecureRandom;
 import java.security.Security;
 import java.util.Random;
 
+import javax.crypto.spec.DHPrivateKeySpec;
+import javax.crypto.spec.DHPublicKeySpec;
+
+import org.bouncycastle.crypto.params.DHParameters;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.jce.spec.ECParameterSpec;
+import org.bouncycastle.jce.spec.ECPrivateKeySpec;
+import org.bouncycastle.jce.spec.ECPublicKeySpec;
+import org.bouncycastle.math.ec.ECPoint;
 
 import de.tsenger.animamea.asn1.DomainParameter;
+import de.tsenger.animamea.crypto.DHEngine;
+import de.tsenger.animamea.crypto.FixedBaseMultiplier;
 
 /**
  * @author Tobias Senger (tobias@t-senger.de)
@@ -52,6 +64,12 @@ public abstract class TerminalAuthentication {
 	
 	public KeyPair getEphemeralPCDKeyPair() {
 		ECParameterSpec ecSpec = caDP.getECParameter();
+		if (ecSpec != null) {
+			KeyPair pair = getEphemeralECKeyPair(ecSpec);
+			if (pair != null) return pair;
+		} else if (caDP.getDHParameter() != null) {
+			return getEphemeralDHKeyPair(caDP.getDHParameter());
+		}
 		KeyPairGenerator g = null;
 		try {
 			g = KeyPairGenerator.getInstance(caDP.getDPType(), "BC");
@@ -74,6 +92,56 @@ public abstract class TerminalAuthentication {
 		return pair;
 	}
 
+	/**
+	 * Erzeugt ein ephemerales EC-Schlüsselpaar. Q = d*G wird mit der
+	 * vorberechneten Tabelle für den Basispunkt der Domain Parameter
+	 * berechnet.
+	 * 
+	 * @param ecSpec
+	 *            EC-Domain-Parameter
+	 * @return Schlüsselpaar oder <code>null</code> falls die Schlüssel nicht
+	 *         erzeugt werden konnten
+	 */
+	private KeyPair getEphemeralECKeyPair(ECParameterSpec ecSpec) {
+		BigInteger n = ecSpec.getN();
+		BigInteger d;
+		do {
+			d = new BigInteger(n.bitLength(), randomGenerator);
+		} while (d.signum() == 0 || d.compareTo(n) >= 0);
+
+		ECPoint q = FixedBaseMultiplier.getInstance(ecSpec).multiply(d).normalize();
+		try {
+			KeyFactory fact = KeyFactory.getInstance(caDP.getDPType(), "BC");
+			return new KeyPair(fact.generatePublic(new ECPublicKeySpec(q, ecSpec)), fact.generatePrivate(new ECPrivateKeySpec(d, ecSpec)));
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Erzeugt ein ephemerales DH-Schlüsselpaar mit einem Exponenten in der
+	 * Größe der Untergruppenordnung q.
+	 * 
+	 * @param dhParameters
+	 *            DH-Domain-Parameter
+	 * @return Schlüsselpaar oder <code>null</code> falls die Schlüssel nicht
+	 *         erzeugt werden konnten
+	 */
+	private KeyPair getEphemeralDHKeyPair(DHParameters dhParameters) {
+		DHEngine engine = new DHEngine(dhParameters);
+		BigInteger x = engine.generatePrivateKey(randomGenerator);
+		BigInteger y = engine.getPublicKey(x);
+		try {
+			KeyFactory fact = KeyFactory.getInstance("DH", "BC");
+			return new KeyPair(fact.generatePublic(new DHPublicKeySpec(y, engine.getP(), engine.getG())),
+					fact.generatePrivate(new DHPrivateKeySpec(x, engine.getP(), engine.getG())));
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 
 	
 	/**
@@ -0,0 +1,139 @@
+/**
+ *  Copyright 2011, Tobias Senger
+ *  
+ *  This file is part of animamea.
+ *
+ *  Animamea is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Animamea is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License   
+ *  along with animamea.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.tsenger.sandbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tsenger.animamea.crypto.AmAESCrypto;
+import de.tsenger.animamea.crypto.AmCryptoProvider;
+import de.tsenger.animamea.iso7816.SecureMessaging;
+
+/**
+ * Prüft, dass SecureMessaging.wrap() und die Array-Methoden des
+ * AmCryptoProvider nach dem Warmup keine Objekte mehr anlegen.
+ * 
+ * @author Tobias Senger (tobias@t-senger.de)
+ * 
+ */
+public class SMAllocationTest {
+
+	private static final int WARMUP = 20000;
+	private static final int ROUNDS = 1000;
+
+	private com.sun.management.ThreadMXBean threadBean = null;
+	private long threadId;
+
+	byte[] kenc = new byte[16];
+	byte[] kmac = new byte[16];
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		threadBean = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+		threadId = Thread.currentThread().getId();
+
+		for (int i = 0; i < 16; i++) {
+			kenc[i] = (byte) i;
+			kmac[i] = (byte) (0xF0 + i);
+		}
+	}
+
+	@Test
+	public void testWrapAllocationFree() throws Exception {
+
+		SecureMessaging sm = new SecureMessaging(new AmAESCrypto(), kenc, kmac, new byte[16]);
+
+		// READ BINARY mit Le und UPDATE BINARY mit 200 Bytes Daten
+		ByteBuffer readBinary = ByteBuffer.wrap(new byte[] { 0x00, (byte) 0xB0, 0x00, 0x00, 0x00 });
+		byte[] update = new byte[205];
+		update[1] = (byte) 0xD6;
+		update[4] = (byte) 200;
+		ByteBuffer updateBinary = ByteBuffer.wrap(update);
+		ByteBuffer out = ByteBuffer.allocate(sm.getMaxProtectedLength(update.length));
+
+		wrap(sm, readBinary, updateBinary, out, WARMUP);
+		assertEquals("bytes allocated by wrap()", 0, wrap(sm, readBinary, updateBinary, out, ROUNDS));
+	}
+
+	@Test
+	public void testArrayAPIAllocationFree() throws Exception {
+
+		AmCryptoProvider crypto = new AmAESCrypto();
+		crypto.setSessionKeys(kenc, kmac);
+
+		byte[] data = new byte[256 + 16];
+		byte[] cryptogram = new byte[data.length];
+		byte[] plain = new byte[data.length];
+		byte[] mac = new byte[8];
+
+		arrayRounds(crypto, data, cryptogram, plain, mac, WARMUP);
+		assertEquals("bytes allocated by array API", 0, arrayRounds(crypto, data, cryptogram, plain, mac, ROUNDS));
+	}
+
+	/**
+	 * Der Warmup läuft über denselben Code wie die Messung, damit die
+	 * Auflösung der Aufrufstellen nicht mitgezählt wird.
+	 * 
+	 * @return während der Runden angelegte Bytes
+	 */
+	private long wrap(SecureMessaging sm, ByteBuffer readBinary, ByteBuffer updateBinary, ByteBuffer out, int rounds) throws Exception {
+		long start = threadBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < rounds; i++) {
+			readBinary.rewind();
+			out.clear();
+			sm.wrap(readBinary, out);
+			updateBinary.rewind();
+			out.clear();
+			sm.wrap(updateBinary, out);
+		}
+		return threadBean.getThreadAllocatedBytes(threadId) - start;
+	}
+
+	private long arrayRounds(AmCryptoProvider crypto, byte[] data, byte[] cryptogram, byte[] plain, byte[] mac, int rounds) throws Exception {
+		long start = threadBean.getThreadAllocatedBytes(threadId);
+		for (int ssc = 0; ssc < rounds; ssc++) {
+			crypto.init(kenc, ssc);
+			int len = crypto.encrypt(data, 0, 256, cryptogram, 0);
+			crypto.init(kenc, ssc);
+			assertEquals(256, crypto.decrypt(cryptogram, 0, len, plain, 0));
+
+			crypto.init(kmac, ssc);
+			int padded = crypto.addPadding(data, 0, 100);
+			crypto.macUpdate(data, 0, padded);
+			crypto.macUpdate(cryptogram, 0, len);
+			crypto.macFinal(mac, 0);
+			assertEquals(100, crypto.removePadding(data, 0, padded));
+		}
+		return threadBean.getThreadAllocatedBytes(threadId) - start;
+	}
+}